@@ -0,0 +1,90 @@
+package io.vantiq.ext.bench;
+
+import io.vantiq.ext.sftp.ArrayDeviceStateStore;
+import io.vantiq.ext.sftp.DeviceStateStore;
+import io.vantiq.ext.sftp.MapDeviceStateStore;
+import io.vantiq.ext.sftp.MeterRecord;
+import io.vantiq.ext.sftp.RecordTokenizer;
+import io.vantiq.ext.sftp.StripedDeviceStateStore;
+import io.vantiq.ext.sftp.WindowedDeviceStateStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Updating the device states with parsed records, for each aggregation mode of the connector. The stores are
+ * filled once, so the score is the steady state update of known devices, per record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(AggregationBenchmark.LINES)
+public class AggregationBenchmark {
+
+    static final int LINES = 10_000;
+
+    @Param({"decimal", "fixed", "compact", "striped", "hourly"})
+    String mode;
+
+    @Param({"1000", "100000"})
+    int devices;
+
+    private List<MeterRecord> records;
+    private DeviceStateStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        records = new ArrayList<>(LINES);
+        for (String line : new DtGenerator(devices, 0, 42).nextLines(LINES)) {
+            records.add(RecordTokenizer.parse(line));
+        }
+        store = createStore(mode);
+        DtGenerator all = new DtGenerator(devices, 0, 7);
+        for (int i = 0; i < devices; i++) {
+            store.update(RecordTokenizer.parse(all.nextLine()));
+        }
+    }
+
+    static DeviceStateStore createStore(String mode) {
+        switch (mode) {
+            case "decimal":
+                return new MapDeviceStateStore(false);
+            case "fixed":
+                return new MapDeviceStateStore(true);
+            case "compact":
+                return new ArrayDeviceStateStore();
+            case "striped":
+                return new StripedDeviceStateStore(() -> new MapDeviceStateStore(true));
+            case "hourly":
+                // the generated readings span days, no window is closed as the store is not polled
+                return new WindowedDeviceStateStore(WindowedDeviceStateStore.HOURLY, 0,
+                        () -> new MapDeviceStateStore(true));
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    @Benchmark
+    public DeviceStateStore update() {
+        for (MeterRecord record : records) {
+            if (record.hasValue()) {
+                store.update(record);
+            }
+        }
+        return store;
+    }
+}
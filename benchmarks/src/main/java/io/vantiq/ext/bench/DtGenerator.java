@@ -0,0 +1,126 @@
+package io.vantiq.ext.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic .DT meter files with the layout of the real ones, one reading per device every 15 minutes:
+ * <pre>511182490||2020-03-15 23:00:00||0.0000||0.0000||...||||||0.9700||0.0000||0.0000||0.0000</pre>
+ * The first three columns are deviceId, date time and value, followed by the other registers of the meter, some
+ * of them empty. The same seed gives the same lines.
+ */
+public final class DtGenerator {
+
+    public static final long FIRST_DEVICE_ID = 511182490L;
+
+    /** registers after the value, empty ones are written as nothing between the delimiters */
+    private static final int REGISTERS = 15;
+    private static final int EMPTY_REGISTERS = 3;
+    private static final int INTERVAL_MINUTES = 15;
+
+    private final int devices;
+    private final double emptyValueRatio;
+    private final Random random;
+
+    private int device;
+    private int interval;
+
+    /**
+     * @param devices           number of distinct devices, the lines cycle over them
+     * @param emptyValueRatio   share of lines without value, e.g. 0.01
+     * @param seed              random seed of the values
+     */
+    public DtGenerator(int devices, double emptyValueRatio, long seed) {
+        this.devices = devices;
+        this.emptyValueRatio = emptyValueRatio;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return  the next line, without terminator
+     */
+    public String nextLine() {
+        StringBuilder line = new StringBuilder(160);
+        line.append(FIRST_DEVICE_ID + device).append("||");
+        appendTime(line, interval * INTERVAL_MINUTES);
+        line.append("||");
+        if (random.nextDouble() >= emptyValueRatio) {
+            appendValue(line);
+        }
+        for (int i = 0; i < REGISTERS; i++) {
+            line.append("||");
+            if (i < 8 || i >= 8 + EMPTY_REGISTERS) {
+                appendValue(line);
+            }
+        }
+        if (++device == devices) {
+            device = 0;
+            interval++;
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return  the next count lines
+     */
+    public List<String> nextLines(int count) {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(nextLine());
+        }
+        return lines;
+    }
+
+    /**
+     * @return  the next count lines as the bytes of a file, with '\n' terminators
+     */
+    public byte[] nextFile(int count) {
+        StringBuilder content = new StringBuilder(count * 160);
+        for (int i = 0; i < count; i++) {
+            content.append(nextLine()).append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Write the next count lines to a file.
+     */
+    public void writeFile(Path file, int count) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < count; i++) {
+                writer.write(nextLine());
+                writer.write('\n');
+            }
+        }
+    }
+
+    private void appendValue(StringBuilder line) {
+        line.append(String.format(Locale.ROOT, "%.4f", random.nextInt(100_000) / 10_000.0));
+    }
+
+    /**
+     * Append "2020-03-15 HH:mm:00" plus minutes, days after the 15th roll over within March.
+     */
+    private static void appendTime(StringBuilder line, int minutes) {
+        int day = 15 + minutes / (24 * 60) % 17;
+        int hour = minutes / 60 % 24;
+        int minute = minutes % 60;
+        line.append("2020-03-").append(day).append(' ');
+        pad(line, hour).append(':');
+        pad(line, minute).append(":00");
+    }
+
+    private static StringBuilder pad(StringBuilder line, int value) {
+        if (value < 10) {
+            line.append('0');
+        }
+        return line.append(value);
+    }
+}
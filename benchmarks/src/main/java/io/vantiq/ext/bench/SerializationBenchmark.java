@@ -0,0 +1,73 @@
+package io.vantiq.ext.bench;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.vantiq.ext.sftp.BatchEncoder;
+import io.vantiq.ext.sftp.ColumnarBatchEncoder;
+import io.vantiq.ext.sftp.MeterRecord;
+import io.vantiq.ext.sftp.RecordTokenizer;
+import io.vantiq.ext.sftp.RowBatchEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoding the batches of records into data notifications and serializing them to JSON with Jackson, as the
+ * WebSocket client does, for both payload formats and several batch sizes. The score is per record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(SerializationBenchmark.LINES)
+public class SerializationBenchmark {
+
+    static final int LINES = 10_000;
+
+    @Param({"rows", "columnar"})
+    String format;
+
+    @Param({"10", "500"})
+    int batchSize;
+
+    private List<List<MeterRecord>> batches;
+    private BatchEncoder encoder;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Setup
+    public void setUp() {
+        batches = new ArrayList<>();
+        List<MeterRecord> batch = new ArrayList<>(batchSize);
+        for (String line : new DtGenerator(1000, 0.01, 42).nextLines(LINES)) {
+            batch.add(RecordTokenizer.parse(line));
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        encoder = "columnar".equals(format) ? new ColumnarBatchEncoder() : new RowBatchEncoder();
+    }
+
+    @Benchmark
+    public void encodeAndSerialize(Blackhole blackhole) throws JsonProcessingException {
+        for (List<MeterRecord> batch : batches) {
+            blackhole.consume(mapper.writeValueAsBytes(encoder.encode(batch)));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.vantiq.ext.bench;
+
+import io.vantiq.ext.sftp.SpoolProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Splitting a file into lines: the BufferedReader of the splitter in stream mode, and
+ * {@link SpoolProcessor#forEachLine} on a spooled file in spool mode. The file is smaller than a split so it is one
+ * mapped region. The score is per line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(SplitBenchmark.LINES)
+public class SplitBenchmark {
+
+    static final int LINES = 10_000;
+
+    @Param({"1000"})
+    int devices;
+
+    private byte[] file;
+    private Path directory;
+    private File spooled;
+    private ExecutorService executor;
+    private SpoolProcessor spool;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = new DtGenerator(devices, 0.01, 42).nextFile(LINES);
+        directory = Files.createTempDirectory("split-benchmark");
+        spooled = Files.write(directory.resolve("FS_1.DT"), file).toFile();
+        executor = Executors.newSingleThreadExecutor();
+        spool = new SpoolProcessor(directory.resolve("spool").toFile(), Long.MAX_VALUE, executor, 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        Files.delete(spooled.toPath());
+        Files.delete(directory.resolve("spool"));
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public void readLine(Blackhole blackhole) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(file),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                blackhole.consume(line);
+            }
+        }
+    }
+
+    @Benchmark
+    public long spooledFile(Blackhole blackhole) throws IOException {
+        return spool.forEachLine(spooled, () -> blackhole::consume);
+    }
+}
@@ -0,0 +1,314 @@
+package io.vantiq.ext.sftp;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * {@link DeviceStateStore} keyed by the numeric deviceId, holding the state in primitive arrays.
+ *
+ * Devices are appended to dense arrays in first seen order (fixed-point sum/min/max with
+ * {@link FixedPointDeviceState#SCALE} digits, count, packed first/min/max time), and an open addressing table with
+ * linear probing maps the deviceId to its dense index. No object is kept per device, {@link DeviceState} objects
+ * are only created while iterating for the export.
+ *
+ * The deviceId must be numeric, and it is exported without leading zeros.
+ */
+public class ArrayDeviceStateStore implements DeviceStateStore {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final long INITIAL_MIN = 100 * 10_000L;
+
+    /** dense index + 1, 0 for an empty slot */
+    private int[] table;
+    private int mask;
+
+    private long[] ids;
+    private long[] sums;
+    private long[] mins;
+    private long[] maxs;
+    private long[] firstTimes;
+    private long[] minTimes;
+    private long[] maxTimes;
+    private long[] updateMillis;
+    private int[] counts;
+    private int[] fileEpochs;
+    private boolean[] changed;
+    /** dense indexes of the changed devices, in change order */
+    private int[] changedIndexes;
+    private int changedCount;
+
+    private int size;
+    private int fileEpoch = 1;
+    private int fileDeviceCount;
+
+    public ArrayDeviceStateStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedDevices   expected number of devices, the store grows when exceeded
+     */
+    public ArrayDeviceStateStore(int expectedDevices) {
+        int capacity = Math.max(16, expectedDevices);
+        ids = new long[capacity];
+        sums = new long[capacity];
+        mins = new long[capacity];
+        maxs = new long[capacity];
+        firstTimes = new long[capacity];
+        minTimes = new long[capacity];
+        maxTimes = new long[capacity];
+        updateMillis = new long[capacity];
+        counts = new int[capacity];
+        fileEpochs = new int[capacity];
+        changed = new boolean[capacity];
+        changedIndexes = new int[capacity];
+        table = new int[tableSizeFor(capacity)];
+        mask = table.length - 1;
+    }
+
+    @Override
+    public void update(MeterRecord record) {
+        long deviceId = record.getNumericDeviceId();
+        long value = record.getFixedValue(FixedPointDeviceState.SCALE);
+        int index = indexOf(deviceId);
+        if (index < 0) {
+            index = insert(deviceId, record.getPackedDateTime());
+        }
+        update(index, value, record);
+    }
+
+    private void update(int index, long value, MeterRecord record) {
+        sums[index] += value;
+        counts[index]++;
+        if (value > maxs[index]) {
+            maxs[index] = value;
+            maxTimes[index] = record.getPackedDateTime();
+            updateMillis[index] = System.currentTimeMillis();
+        }
+        if (value < mins[index]) {
+            mins[index] = value;
+            minTimes[index] = record.getPackedDateTime();
+            updateMillis[index] = System.currentTimeMillis();
+        }
+        countFileDevice(index);
+        markChanged(index);
+    }
+
+    private void countFileDevice(int index) {
+        if (fileEpochs[index] != fileEpoch) {
+            fileEpochs[index] = fileEpoch;
+            fileDeviceCount++;
+        }
+    }
+
+    private void markChanged(int index) {
+        if (!changed[index]) {
+            changed[index] = true;
+            changedIndexes[changedCount++] = index;
+        }
+    }
+
+    @Override
+    public void merge(DeviceStateStore other) {
+        if (other instanceof ArrayDeviceStateStore) {
+            ArrayDeviceStateStore store = (ArrayDeviceStateStore) other;
+            for (int i = 0; i < store.size; i++) {
+                merge(store.ids[i], store.firstTimes[i], store.sums[i], store.counts[i], store.mins[i],
+                        store.minTimes[i], store.maxs[i], store.maxTimes[i], store.updateMillis[i]);
+            }
+            return;
+        }
+        for (DeviceState state : other) {
+            merge(state);
+        }
+    }
+
+    @Override
+    public void merge(DeviceState state) {
+        Date updateTime = state.getUpdateTime();
+        merge(Long.parseLong(state.getDeviceId()), packedOrZero(state.getDate()), toFixed(state.getSum()),
+                state.getCount(), toFixed(state.getMinValue()), packedOrZero(state.getMinTime()),
+                toFixed(state.getMaxValue()), packedOrZero(state.getMaxTime()),
+                updateTime == null ? 0 : updateTime.getTime());
+    }
+
+    private void merge(long deviceId, long firstTime, long sum, int count, long min, long minTime,
+                       long max, long maxTime, long millis) {
+        if (count == 0) {
+            return;
+        }
+        int index = indexOf(deviceId);
+        if (index < 0) {
+            index = insert(deviceId, firstTime);
+        }
+        sums[index] += sum;
+        counts[index] += count;
+        if (max > maxs[index]) {
+            maxs[index] = max;
+            maxTimes[index] = maxTime;
+        }
+        if (min < mins[index]) {
+            mins[index] = min;
+            minTimes[index] = minTime;
+        }
+        updateMillis[index] = Math.max(updateMillis[index], millis);
+        countFileDevice(index);
+        markChanged(index);
+    }
+
+    private static long toFixed(BigDecimal value) {
+        return value.setScale(FixedPointDeviceState.SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    private static long packedOrZero(String dateTime) {
+        return dateTime == null ? 0 : RecordTokenizer.parsePackedDateTime(dateTime, 0, dateTime.length());
+    }
+
+    /**
+     * @return  the dense index of the device, or -1 if not in the store
+     */
+    int indexOf(long deviceId) {
+        int slot = hash(deviceId) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (ids[entry - 1] == deviceId) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int insert(long deviceId, long firstTime) {
+        if (size == ids.length) {
+            grow();
+        }
+        int index = size++;
+        ids[index] = deviceId;
+        firstTimes[index] = firstTime;
+        mins[index] = INITIAL_MIN;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        } else {
+            putSlot(deviceId, index);
+        }
+        return index;
+    }
+
+    private void putSlot(long deviceId, int index) {
+        int slot = hash(deviceId) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private void rehash(int tableSize) {
+        table = new int[tableSize];
+        mask = tableSize - 1;
+        for (int i = 0; i < size; i++) {
+            putSlot(ids[i], i);
+        }
+    }
+
+    private void grow() {
+        int capacity = ids.length + (ids.length >> 1);
+        ids = Arrays.copyOf(ids, capacity);
+        sums = Arrays.copyOf(sums, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        maxs = Arrays.copyOf(maxs, capacity);
+        firstTimes = Arrays.copyOf(firstTimes, capacity);
+        minTimes = Arrays.copyOf(minTimes, capacity);
+        maxTimes = Arrays.copyOf(maxTimes, capacity);
+        updateMillis = Arrays.copyOf(updateMillis, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        fileEpochs = Arrays.copyOf(fileEpochs, capacity);
+        changed = Arrays.copyOf(changed, capacity);
+        changedIndexes = Arrays.copyOf(changedIndexes, capacity);
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        return Math.max(size, 32);
+    }
+
+    private static int hash(long key) {
+        // murmur3 fmix64, device ids are mostly sequential
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    @Override
+    public void drainChanged(Consumer<DeviceState> consumer) {
+        for (int i = 0; i < changedCount; i++) {
+            int index = changedIndexes[i];
+            changed[index] = false;
+            consumer.accept(toDeviceState(index));
+        }
+        changedCount = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getFileDeviceCount() {
+        return fileDeviceCount;
+    }
+
+    @Override
+    public void endFile() {
+        fileEpoch++;
+        fileDeviceCount = 0;
+    }
+
+    /**
+     * @return  a {@link FixedPointDeviceState} copy of the device at the dense index
+     */
+    DeviceState toDeviceState(int index) {
+        FixedPointDeviceState state = new FixedPointDeviceState(String.valueOf(ids[index]),
+                RecordTokenizer.formatPackedDateTime(firstTimes[index]));
+        state.fixedSum = sums[index];
+        state.count = counts[index];
+        state.fixedMin = mins[index];
+        state.fixedMax = maxs[index];
+        state.minTime = minTimes[index] == 0 ? null : RecordTokenizer.formatPackedDateTime(minTimes[index]);
+        state.maxTime = maxTimes[index] == 0 ? null : RecordTokenizer.formatPackedDateTime(maxTimes[index]);
+        state.updateMillis = updateMillis[index];
+        return state;
+    }
+
+    /**
+     * Iterates the devices in first seen order, each {@link DeviceState} is a new copy.
+     */
+    @Override
+    public Iterator<DeviceState> iterator() {
+        return new Iterator<DeviceState>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public DeviceState next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return toDeviceState(next++);
+            }
+        };
+    }
+}
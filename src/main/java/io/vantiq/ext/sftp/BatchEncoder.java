@@ -0,0 +1,21 @@
+package io.vantiq.ext.sftp;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a batch of {@link MeterRecord}s into the data notification sent to VANTIQ by {@link BatchingSender}.
+ */
+public interface BatchEncoder {
+
+    /**
+     * @param records   the batch, not empty
+     * @return          the notification, it may be reused by the next call
+     */
+    Map<String, Object> encode(List<MeterRecord> records);
+
+    /**
+     * @return  estimated JSON bytes of the record in the notification
+     */
+    int estimateSize(MeterRecord record);
+}
@@ -0,0 +1,100 @@
+package io.vantiq.ext.sftp;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Counters of the batches sent by {@link BatchingSender}: batch sizes and why each batch was flushed.
+ */
+public class BatchMetrics {
+
+    public enum FlushReason {
+        /** the batch reached the configured row count */
+        ROWS,
+        /** the batch reached the configured serialized byte size */
+        BYTES,
+        /** the first row of the batch waited longer than the max linger time */
+        LINGER,
+        /** explicit flush, e.g. at the end of a file or on close */
+        FLUSH
+    }
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAccumulator maxBatchRows = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxBatchBytes = new LongAccumulator(Math::max, 0);
+    private final Map<FlushReason, AtomicLong> flushReasons = new EnumMap<>(FlushReason.class);
+
+    public BatchMetrics() {
+        for (FlushReason reason : FlushReason.values()) {
+            flushReasons.put(reason, new AtomicLong());
+        }
+    }
+
+    void record(int batchRows, int batchBytes, FlushReason reason) {
+        batches.incrementAndGet();
+        rows.addAndGet(batchRows);
+        bytes.addAndGet(batchBytes);
+        maxBatchRows.accumulate(batchRows);
+        maxBatchBytes.accumulate(batchBytes);
+        flushReasons.get(reason).incrementAndGet();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getRows() {
+        return rows.get();
+    }
+
+    /**
+     * @return  total estimated serialized bytes of the rows
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getMaxBatchRows() {
+        return maxBatchRows.get();
+    }
+
+    public long getMaxBatchBytes() {
+        return maxBatchBytes.get();
+    }
+
+    public double getMeanBatchRows() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) rows.get() / count;
+    }
+
+    public long getFlushCount(FlushReason reason) {
+        return flushReasons.get(reason).get();
+    }
+
+    /**
+     * @return  all the counters by name, e.g. for logging
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("batches", getBatches());
+        map.put("rows", getRows());
+        map.put("bytes", getBytes());
+        map.put("meanBatchRows", Math.round(getMeanBatchRows() * 100) / 100.0);
+        map.put("maxBatchRows", getMaxBatchRows());
+        map.put("maxBatchBytes", getMaxBatchBytes());
+        for (FlushReason reason : FlushReason.values()) {
+            map.put("flush" + reason, getFlushCount(reason));
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,155 @@
+package io.vantiq.ext.sftp;
+
+import io.vantiq.ext.sftp.BatchMetrics.FlushReason;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects {@link MeterRecord}s into data notifications, encoded by a {@link BatchEncoder}. A batch is sent when it
+ * reaches {@code maxRows} rows, {@code maxBytes} estimated serialized bytes, or when its first row waited
+ * {@code lingerMillis}, whatever comes first.
+ *
+ * The record buffer and the notification map are reused between batches, so the sink must be done with the
+ * notification when it returns, e.g. {@code ExtensionWebSocketClient.sendNotification} serializes it right away.
+ * Thread safe, batches are sent one at a time.
+ */
+public class BatchingSender implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(BatchingSender.class);
+
+    /**
+     * Sends one notification.
+     */
+    public interface BatchSink {
+
+        /**
+         * @param notification  the encoded batch
+         * @param rows          number of records in the batch
+         */
+        void send(Map<String, Object> notification, int rows);
+    }
+
+    private final int maxRows;
+    private final int maxBytes;
+    private final long lingerNanos;
+    private final BatchEncoder encoder;
+    private final BatchSink sink;
+    private final BatchMetrics metrics = new BatchMetrics();
+
+    private final List<MeterRecord> records;
+    private int batchBytes;
+    private long firstRowNanos;
+
+    private final ScheduledExecutorService lingerTimer;
+
+    /**
+     * @param maxRows       max rows per batch
+     * @param maxBytes      max estimated serialized bytes per batch
+     * @param lingerMillis  max time a row waits for its batch to fill
+     * @param encoder       encodes the batch into a notification
+     * @param sink          sends a notification, e.g. with {@code ExtensionWebSocketClient.sendNotification}
+     */
+    public BatchingSender(int maxRows, int maxBytes, long lingerMillis, BatchEncoder encoder, BatchSink sink) {
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.encoder = encoder;
+        this.sink = sink;
+        this.records = new ArrayList<>(maxRows);
+
+        lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sftp-batch-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, lingerMillis / 2);
+        lingerTimer.scheduleAtFixedRate(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add one record to the current batch, the batch is sent from the calling thread when it is full.
+     *
+     * @return  true if a batch was sent, the caller may then wait for the send queue, out of the lock of the sender
+     */
+    public synchronized boolean add(MeterRecord record) {
+        boolean sent = false;
+        int size = encoder.estimateSize(record);
+        if (!records.isEmpty() && batchBytes + size > maxBytes) {
+            send(FlushReason.BYTES);
+            sent = true;
+        }
+        if (records.isEmpty()) {
+            firstRowNanos = System.nanoTime();
+        }
+        records.add(record);
+        batchBytes += size;
+        if (records.size() >= maxRows) {
+            send(FlushReason.ROWS);
+            sent = true;
+        } else if (batchBytes >= maxBytes) {
+            send(FlushReason.BYTES);
+            sent = true;
+        }
+        return sent;
+    }
+
+    /**
+     * Send the current batch, if any.
+     */
+    public synchronized void flush() {
+        if (!records.isEmpty()) {
+            send(FlushReason.FLUSH);
+        }
+    }
+
+    private synchronized void flushExpired() {
+        try {
+            if (!records.isEmpty() && System.nanoTime() - firstRowNanos >= lingerNanos) {
+                send(FlushReason.LINGER);
+            }
+        } catch (Exception e) {
+            // keep the timer alive
+            LOG.error(e.getMessage(), e);
+        }
+    }
+
+    private void send(FlushReason reason) {
+        int batchRows = records.size();
+        int bytes = batchBytes;
+        try {
+            sink.send(encoder.encode(records), batchRows);
+        } finally {
+            records.clear();
+            batchBytes = 0;
+            metrics.record(batchRows, bytes, reason);
+        }
+    }
+
+    /**
+     * @return  records waiting in the current batch
+     */
+    public synchronized int getPendingRows() {
+        return records.size();
+    }
+
+    public BatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Send the current batch and stop the linger timer.
+     */
+    @Override
+    public void close() {
+        lingerTimer.shutdown();
+        flush();
+    }
+}
@@ -0,0 +1,207 @@
+package io.vantiq.ext.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.metadata.ConcurrentMetadataStore;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The nodes of a cluster of connectors polling the same remote directory, and the files each of them processes.
+ * Each node writes a heartbeat every {@code heartbeatMillis} into one entry of the shared metadata store:
+ * <pre>
+ * sftp_connector_nodes=node1=1584932409000,node2=1584932411000
+ * </pre>
+ * updated with {@code replace} so that the concurrent heartbeats are not lost. Any {@link ConcurrentMetadataStore}
+ * shared by the nodes works, e.g. {@link SharedFileMetadataStore}, a {@code JdbcMetadataStore} or a
+ * {@code RedisMetadataStore}. The nodes without heartbeat for {@code nodeTimeoutMillis} are removed.
+ * <p>
+ * The files are assigned to the live nodes by a {@link ConsistentHashRing} of their paths: when a node joins or
+ * leaves, about 1/n of the files not accepted yet move to another node, on the next heartbeat of each node. The
+ * nodes may disagree on the owner of a file until then, the accept once filter on the same shared store still
+ * accepts it on one node only.
+ */
+public class ClusterMembership implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(ClusterMembership.class);
+
+    /** points of each node on the ring */
+    private static final int VIRTUAL_NODES = 128;
+    /** updates of the heartbeat entry lost to other nodes before giving up until the next heartbeat */
+    private static final int MAX_ATTEMPTS = 10;
+
+    private final ConcurrentMetadataStore store;
+    private final String key;
+    private final String node;
+    private final long heartbeatMillis;
+    private final long nodeTimeoutMillis;
+
+    private volatile ConsistentHashRing ring = new ConsistentHashRing(Collections.emptySet(), VIRTUAL_NODES);
+    private ScheduledExecutorService heartbeatTimer;
+    private boolean closed;
+
+    /**
+     * @param store             the metadata store shared by the nodes
+     * @param key               the entry of the heartbeats, e.g. the source name + "_nodes"
+     * @param node              the id of this node, unique in the cluster, without ',' and '='
+     * @param heartbeatMillis   interval of the heartbeats
+     * @param nodeTimeoutMillis time without heartbeat after which a node is removed, a few heartbeats
+     */
+    public ClusterMembership(ConcurrentMetadataStore store, String key, String node, long heartbeatMillis,
+                             long nodeTimeoutMillis) {
+        if (node.indexOf(',') >= 0 || node.indexOf('=') >= 0) {
+            throw new IllegalArgumentException("Invalid cluster node id: " + node);
+        }
+        this.store = store;
+        this.key = key;
+        this.node = node;
+        this.heartbeatMillis = heartbeatMillis;
+        this.nodeTimeoutMillis = nodeTimeoutMillis;
+    }
+
+    /**
+     * Join the cluster and start the heartbeats.
+     */
+    public synchronized void start() {
+        heartbeat();
+        heartbeatTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sftp-cluster-" + node);
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatTimer.scheduleAtFixedRate(() -> {
+            try {
+                heartbeat();
+            } catch (Exception e) {
+                // keep the timer alive, the last nodes are kept until the store is back
+                LOG.error("Failed to update heartbeat of cluster node {}", node, e);
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the heartbeat of this node, remove the nodes timed out, and rebalance the files if the nodes changed.
+     *
+     * @return  true if the nodes changed
+     */
+    public boolean heartbeat() {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long now = System.currentTimeMillis();
+            String previous = store.get(key);
+            Map<String, Long> nodes = decode(previous);
+            nodes.values().removeIf(time -> now - time > nodeTimeoutMillis);
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                nodes.put(node, now);
+            }
+            if (update(previous, encode(nodes))) {
+                return rebalance(nodes.keySet());
+            }
+        }
+        LOG.warn("Heartbeat of cluster node {} lost to the other nodes {} times, retry in {} ms", node, MAX_ATTEMPTS,
+                heartbeatMillis);
+        return false;
+    }
+
+    private boolean update(String previous, String value) {
+        return previous == null ? store.putIfAbsent(key, value) == null : store.replace(key, previous, value);
+    }
+
+    private boolean rebalance(Set<String> nodes) {
+        if (nodes.equals(ring.getNodes())) {
+            return false;
+        }
+        LOG.info("Cluster nodes of {}: {}, was {}", node, nodes, ring.getNodes());
+        ring = new ConsistentHashRing(nodes, VIRTUAL_NODES);
+        return true;
+    }
+
+    /**
+     * @param path  the path of a remote file, the same on all the nodes
+     * @return      true if this node processes the file
+     */
+    public boolean isOwner(String path) {
+        return node.equals(ring.owner(path));
+    }
+
+    /**
+     * @return  the live nodes as of the last heartbeat
+     */
+    public Set<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Stop the heartbeats and leave the cluster, the other nodes take over the files of this node on their next
+     * heartbeat.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (heartbeatTimer != null) {
+                heartbeatTimer.shutdown();
+            }
+        }
+        ring = new ConsistentHashRing(Collections.emptySet(), VIRTUAL_NODES);
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                String previous = store.get(key);
+                Map<String, Long> nodes = decode(previous);
+                if (nodes.remove(node) == null || update(previous, encode(nodes))) {
+                    LOG.info("Cluster node {} left", node);
+                    return;
+                }
+            }
+            LOG.warn("Cluster node {} could not leave, it times out after {} ms", node, nodeTimeoutMillis);
+        } catch (RuntimeException e) {
+            LOG.warn("Cluster node {} could not leave, it times out after {} ms: {}", node, nodeTimeoutMillis,
+                    e.toString());
+        }
+    }
+
+    static Map<String, Long> decode(String value) {
+        Map<String, Long> nodes = new TreeMap<>();
+        if (value == null || value.isEmpty()) {
+            return nodes;
+        }
+        for (String entry : value.split(",")) {
+            int separator = entry.lastIndexOf('=');
+            if (separator > 0) {
+                try {
+                    nodes.put(entry.substring(0, separator), Long.parseLong(entry.substring(separator + 1)));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid cluster node entry, ignored: {}", entry);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    static String encode(Map<String, Long> nodes) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : nodes.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,119 @@
+package io.vantiq.ext.sftp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact notification format, one array per column for the whole batch:
+ * <pre>
+ * {"columns": {
+ *     "baseTime": "2020-03-15 23:00:00",
+ *     "deviceId": [511182490, 511182491, ...],
+ *     "time": [0, 900, ...],
+ *     "value": [0.97, 0.0, ...],
+ *     "noValue": [1]
+ * }}
+ * </pre>
+ * {@code time} is the offset in seconds from {@code baseTime}, the time of the first record. {@code value} is
+ * a number, {@code noValue} lists the indexes of the records with empty or invalid value, their value is 0.
+ * deviceId and time fall back to full Strings for a batch having a non numeric deviceId (or one with a leading
+ * zero) or an unknown time format.
+ */
+public class ColumnarBatchEncoder implements BatchEncoder {
+
+    /** commas between the values of the three columns */
+    private static final int ROW_OVERHEAD = 3;
+    /** chars of a time offset, up to one day */
+    private static final int TIME_SIZE = 5;
+
+    private static final double SCALE = Math.pow(10, FixedPointDeviceState.SCALE);
+
+    private final Map<String, Object> columns = new HashMap<>();
+    private final Map<String, Object> notification = new HashMap<>();
+
+    private int[] noValue = new int[16];
+
+    public ColumnarBatchEncoder() {
+        notification.put("columns", columns);
+    }
+
+    @Override
+    public Map<String, Object> encode(List<MeterRecord> records) {
+        int size = records.size();
+        columns.put("deviceId", encodeDeviceIds(records));
+        encodeTimes(records);
+
+        double[] values = new double[size];
+        int noValueCount = 0;
+        for (int i = 0; i < size; i++) {
+            MeterRecord record = records.get(i);
+            boolean valid = false;
+            if (record.hasValue()) {
+                try {
+                    values[i] = record.getFixedValue(FixedPointDeviceState.SCALE) / SCALE;
+                    valid = true;
+                } catch (NumberFormatException | ArithmeticException e) {
+                    // sent as no value
+                }
+            }
+            if (!valid) {
+                if (noValueCount == noValue.length) {
+                    noValue = Arrays.copyOf(noValue, noValueCount * 2);
+                }
+                noValue[noValueCount++] = i;
+            }
+        }
+        columns.put("value", values);
+        columns.put("noValue", Arrays.copyOf(noValue, noValueCount));
+        return notification;
+    }
+
+    private static Object encodeDeviceIds(List<MeterRecord> records) {
+        long[] ids = new long[records.size()];
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                MeterRecord record = records.get(i);
+                if (record.getDeviceIdLength() > 1 && record.getLine().charAt(0) == '0') {
+                    // the leading zero would be lost
+                    throw new NumberFormatException("Leading zero");
+                }
+                ids[i] = record.getNumericDeviceId();
+            }
+            return ids;
+        } catch (NumberFormatException | ArithmeticException e) {
+            String[] stringIds = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                stringIds[i] = records.get(i).getDeviceId();
+            }
+            return stringIds;
+        }
+    }
+
+    private void encodeTimes(List<MeterRecord> records) {
+        int[] times = new int[records.size()];
+        try {
+            long base = records.get(0).getPackedDateTime();
+            long baseSecond = RecordTokenizer.packedToEpochSecond(base);
+            for (int i = 0; i < times.length; i++) {
+                long second = RecordTokenizer.packedToEpochSecond(records.get(i).getPackedDateTime());
+                times[i] = Math.toIntExact(second - baseSecond);
+            }
+            columns.put("baseTime", RecordTokenizer.formatPackedDateTime(base));
+            columns.put("time", times);
+        } catch (NumberFormatException | ArithmeticException e) {
+            String[] stringTimes = new String[times.length];
+            for (int i = 0; i < times.length; i++) {
+                stringTimes[i] = records.get(i).getDateTime();
+            }
+            columns.remove("baseTime");
+            columns.put("time", stringTimes);
+        }
+    }
+
+    @Override
+    public int estimateSize(MeterRecord record) {
+        return record.getDeviceIdLength() + TIME_SIZE + Math.max(1, record.getValueLength()) + ROW_OVERHEAD;
+    }
+}
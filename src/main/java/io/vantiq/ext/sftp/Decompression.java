@@ -0,0 +1,88 @@
+package io.vantiq.ext.sftp;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming decompression of the compressed files, e.g. {@code FS_1.DT.gz} or {@code FS_1.DT.zst}, chosen by
+ * the extension of the file or else by the magic bytes at the start of the stream.
+ */
+public final class Decompression {
+
+    public enum Format {
+        NONE, GZIP, ZSTD
+    }
+
+    private static final int GZIP_MAGIC_LENGTH = 2;
+    private static final int ZSTD_MAGIC_LENGTH = 4;
+    private static final int BUFFER_SIZE = 65536;
+
+    private Decompression() {
+    }
+
+    /**
+     * @param fileName  the file name, may be null
+     * @return  the format by the extension of the file
+     */
+    public static Format byExtension(String fileName) {
+        if (fileName == null) {
+            return Format.NONE;
+        }
+        if (fileName.endsWith(".gz")) {
+            return Format.GZIP;
+        }
+        if (fileName.endsWith(".zst")) {
+            return Format.ZSTD;
+        }
+        return Format.NONE;
+    }
+
+    /**
+     * @param magic     the first bytes of a stream
+     * @param length    number of bytes in magic
+     * @return  the format by the magic bytes
+     */
+    public static Format byMagic(byte[] magic, int length) {
+        if (length >= GZIP_MAGIC_LENGTH && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return Format.GZIP;
+        }
+        if (length >= ZSTD_MAGIC_LENGTH && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5
+                && (magic[2] & 0xff) == 0x2f && (magic[3] & 0xff) == 0xfd) {
+            return Format.ZSTD;
+        }
+        return Format.NONE;
+    }
+
+    /**
+     * @param in        the stream of the file, closed with the returned stream
+     * @param fileName  the file name, may be null
+     * @return  the decompressed stream, or the stream of an uncompressed file
+     */
+    public static InputStream decompress(InputStream in, String fileName) throws IOException {
+        Format format = byExtension(fileName);
+        if (format == Format.NONE) {
+            PushbackInputStream pushback = new PushbackInputStream(in, ZSTD_MAGIC_LENGTH);
+            byte[] magic = new byte[ZSTD_MAGIC_LENGTH];
+            int length = 0;
+            int n;
+            while (length < magic.length && (n = pushback.read(magic, length, magic.length - length)) > 0) {
+                length += n;
+            }
+            pushback.unread(magic, 0, length);
+            format = byMagic(magic, length);
+            in = pushback;
+        }
+        switch (format) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdInputStream(in);
+            default:
+                return in;
+        }
+    }
+}
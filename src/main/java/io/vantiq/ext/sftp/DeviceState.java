@@ -63,6 +63,65 @@ public class DeviceState {
         this.mean = this.sum.divide(new BigDecimal(this.count), 4, RoundingMode.HALF_UP);
     }
 
+    /**
+     * Accumulate one reading.
+     *
+     * @param record    a record with value, see {@link MeterRecord#hasValue()}
+     */
+    public void update(MeterRecord record) {
+        String dateTime = record.getDateTime();
+        BigDecimal value = new BigDecimal(record.getValue());
+        updateMean(value);
+
+        if (value.compareTo(maxValue) > 0) {
+            maxValue = value;
+            maxTime = dateTime;
+            updateTime = new Date();
+        }
+        if (value.compareTo(minValue) < 0) {
+            minValue = value;
+            minTime = dateTime;
+            updateTime = new Date();
+        }
+    }
+
+    /**
+     * Merge a partial aggregate of the same device into this one.
+     *
+     * @param other the partial aggregate, it is not modified
+     */
+    public void merge(DeviceState other) {
+        if (other.count == 0) {
+            return;
+        }
+        setSum(getSum().add(other.getSum()));
+        count += other.count;
+        mean = getSum().divide(new BigDecimal(count), 4, RoundingMode.HALF_UP);
+
+        if (other.getMaxValue().compareTo(getMaxValue()) > 0) {
+            setMaxValue(other.getMaxValue());
+            maxTime = other.maxTime;
+        }
+        if (other.getMinValue().compareTo(getMinValue()) < 0) {
+            setMinValue(other.getMinValue());
+            minTime = other.minTime;
+        }
+        Date otherUpdateTime = other.getUpdateTime();
+        Date thisUpdateTime = getUpdateTime();
+        if (otherUpdateTime != null && (thisUpdateTime == null || otherUpdateTime.after(thisUpdateTime))) {
+            setUpdateTime(otherUpdateTime);
+        }
+    }
+
+    /**
+     * @return  a copy of this state, of the same type
+     */
+    public DeviceState copy() {
+        DeviceState copy = new DeviceState(deviceId, date);
+        copy.merge(this);
+        return copy;
+    }
+
     public BigDecimal getMean() {
         return mean;
     }
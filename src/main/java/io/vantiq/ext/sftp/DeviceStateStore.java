@@ -0,0 +1,58 @@
+package io.vantiq.ext.sftp;
+
+import java.util.function.Consumer;
+
+/**
+ * Accumulated {@link DeviceState} of all devices, iterated in first seen order for the result.csv export.
+ */
+public interface DeviceStateStore extends Iterable<DeviceState> {
+
+    /**
+     * Accumulate one reading.
+     *
+     * @param record    a record with value, see {@link MeterRecord#hasValue()}
+     */
+    void update(MeterRecord record);
+
+    /**
+     * Merge the partial aggregates of another store into this one, e.g. the state of one file processed by a
+     * worker thread. Devices not in this store yet are appended in the order of the other store.
+     *
+     * @param other the partial aggregates, it is not modified
+     */
+    default void merge(DeviceStateStore other) {
+        for (DeviceState state : other) {
+            merge(state);
+        }
+    }
+
+    /**
+     * Merge the partial aggregate of one device into this store.
+     *
+     * @param state the partial aggregate, it is not modified
+     */
+    void merge(DeviceState state);
+
+    /**
+     * Pass the devices updated or merged since the last call to the consumer, and clear their changed mark.
+     *
+     * @param consumer  receives a copy of each changed state
+     */
+    void drainChanged(Consumer<DeviceState> consumer);
+
+    /**
+     * @return  number of devices in the store
+     */
+    int size();
+
+    /**
+     * @return  number of distinct devices updated or merged since the last {@link #endFile()}, e.g. the devices of
+     *          the regions of a spooled file merged into the state of the file
+     */
+    int getFileDeviceCount();
+
+    /**
+     * Called at the end of each file, resets {@link #getFileDeviceCount()}.
+     */
+    void endFile();
+}
@@ -0,0 +1,152 @@
+package io.vantiq.ext.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Checkpoints of the files being processed, one file per remote file in the base directory:
+ * <pre>
+ * remoteDirectory=mt_test
+ * remoteFile=FS_20200318_235521_TMR_1201001_1584547126001_2110.DT
+ * lines=100000
+ * bytes=4500000
+ *
+ * 511182490,2020-03-15,96,12.4800,0.0000,2020-03-15 00:00:00,0.9700,2020-03-15 23:00:00,1584547126001
+ * ...
+ * </pre>
+ * followed by the aggregates of the file: deviceId, date, count, sum, minValue, minTime, maxValue, maxTime and
+ * updateTime millis. A checkpoint is written to a temp file and renamed, it is deleted when the file ends.
+ */
+public class FileCheckpointStore {
+
+    static final Logger LOG = LoggerFactory.getLogger(FileCheckpointStore.class);
+
+    private static final String SUFFIX = ".ckpt";
+
+    private final File baseDirectory;
+
+    public FileCheckpointStore(File baseDirectory) {
+        this.baseDirectory = baseDirectory;
+        baseDirectory.mkdirs();
+    }
+
+    /**
+     * Save the progress, the caller must have sent all the counted lines.
+     */
+    public void save(FileProgress progress) throws IOException {
+        Path target = checkpointFile(progress).toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("remoteDirectory=" + nullToEmpty(progress.getRemoteDirectory()) + "\n");
+            writer.write("remoteFile=" + progress.getRemoteFile() + "\n");
+            writer.write("lines=" + progress.getLines() + "\n");
+            writer.write("bytes=" + progress.getBytes() + "\n");
+            writer.write("\n");
+            for (DeviceState state : progress.getState()) {
+                if (state.getCount() == 0) {
+                    continue;
+                }
+                Date updateTime = state.getUpdateTime();
+                writer.write(state.getDeviceId() + ',' + state.getDate() + ',' + state.getCount() + ','
+                        + state.getSum().toPlainString() + ','
+                        + state.getMinValue().toPlainString() + ',' + nullToEmpty(state.getMinTime()) + ','
+                        + state.getMaxValue().toPlainString() + ',' + nullToEmpty(state.getMaxTime()) + ','
+                        + (updateTime == null ? "" : String.valueOf(updateTime.getTime())) + "\n");
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param storeFactory  creates the store of the restored aggregates
+     * @return  the progress of the files which were not completed
+     */
+    public List<FileProgress> load(Supplier<DeviceStateStore> storeFactory) {
+        List<FileProgress> result = new ArrayList<>();
+        File[] files = baseDirectory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            try {
+                result.add(load(file, storeFactory.get()));
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Invalid checkpoint: {}, the file will not be resumed", file, e);
+            }
+        }
+        return result;
+    }
+
+    private static FileProgress load(File file, DeviceStateStore state) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String remoteDirectory = value(reader.readLine(), "remoteDirectory");
+            String remoteFile = value(reader.readLine(), "remoteFile");
+            long lines = Long.parseLong(value(reader.readLine(), "lines"));
+            long bytes = Long.parseLong(value(reader.readLine(), "bytes"));
+            reader.readLine();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split(",", -1);
+                DeviceState deviceState = new DeviceState(columns[0], columns[1]);
+                deviceState.setCount(Integer.parseInt(columns[2]));
+                deviceState.setSum(new BigDecimal(columns[3]));
+                deviceState.setMinValue(new BigDecimal(columns[4]));
+                deviceState.setMinTime(emptyToNull(columns[5]));
+                deviceState.setMaxValue(new BigDecimal(columns[6]));
+                deviceState.setMaxTime(emptyToNull(columns[7]));
+                if (!columns[8].isEmpty()) {
+                    deviceState.setUpdateTime(new Date(Long.parseLong(columns[8])));
+                }
+                state.merge(deviceState);
+            }
+            return new FileProgress(emptyToNull(remoteDirectory), remoteFile, state, lines, bytes);
+        }
+    }
+
+    /**
+     * Delete the checkpoint of a completed file.
+     */
+    public void delete(FileProgress progress) {
+        File file = checkpointFile(progress);
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Failed to delete checkpoint: {}", file);
+        }
+    }
+
+    private File checkpointFile(FileProgress progress) {
+        String path = progress.getRemotePath();
+        // readable name, the hash tells apart paths with the same replaced chars
+        String name = path.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(path.hashCode());
+        return new File(baseDirectory, name + SUFFIX);
+    }
+
+    private static String value(String line, String key) throws IOException {
+        if (line == null || !line.startsWith(key + "=")) {
+            throw new IOException("Missing " + key);
+        }
+        return line.substring(key.length() + 1);
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
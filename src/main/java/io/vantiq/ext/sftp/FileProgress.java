@@ -0,0 +1,202 @@
+package io.vantiq.ext.sftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Progress of one remote file through the flow: the lines read so far, the byte offset of the next line and the
+ * in-progress aggregates of the file. It is saved periodically by {@link FileCheckpointStore} so a restart
+ * resumes the file at {@link #getBytes()} instead of reading it again from the start.
+ * <p>
+ * Byte offsets count the terminator of the first line read, '\n' or "\r\n", for all the lines, see
+ * {@link #detectTerminator(InputStream)}. A file with other terminators is resumed by skipping {@link #getLines()}
+ * lines from the start, see {@link #skipFromStart()}.
+ */
+public class FileProgress {
+
+    private final String remoteDirectory;
+    private final String remoteFile;
+    private final DeviceStateStore state;
+
+    private long lines;
+    private long bytes;
+    /** lines before the start of the stream, when resumed at the byte offset */
+    private long resumedLines;
+    /** lines to skip at the start of the stream, when resumed from the start */
+    private long skipLines;
+    private long checkpointLines;
+    /** bytes of the line terminator, 2 for "\r\n", read on the thread reading the stream */
+    private int terminatorBytes = 1;
+
+    /**
+     * @param state the aggregates of the file, or the shared state when the file is not checkpointed
+     */
+    public FileProgress(String remoteDirectory, String remoteFile, DeviceStateStore state) {
+        this.remoteDirectory = remoteDirectory;
+        this.remoteFile = remoteFile;
+        this.state = state;
+    }
+
+    /**
+     * Restores a checkpointed progress, the stream resumes at the byte offset.
+     */
+    FileProgress(String remoteDirectory, String remoteFile, DeviceStateStore state, long lines, long bytes) {
+        this(remoteDirectory, remoteFile, state);
+        this.lines = lines;
+        this.bytes = bytes;
+        this.resumedLines = lines;
+        this.checkpointLines = lines;
+    }
+
+    /**
+     * Count a line read from the file.
+     *
+     * @param line  the line without terminator
+     */
+    public void countLine(CharSequence line) {
+        lines++;
+        bytes += utf8Length(line) + terminatorBytes;
+    }
+
+    /**
+     * The lines read from the stream end with "\r\n" if the first one does, the splitter strips the terminators.
+     *
+     * @param in    the stream of the lines of the file
+     * @return      the stream, which sets the terminator of the lines counted when it reads the first '\n'
+     */
+    public InputStream detectTerminator(InputStream in) {
+        return new FilterInputStream(in) {
+
+            private boolean detected;
+            private int previous = -1;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0 && !detected) {
+                    detect(b);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                for (int i = offset; !detected && i < offset + n; i++) {
+                    detect(buffer[i] & 0xff);
+                }
+                return n;
+            }
+
+            private void detect(int b) {
+                if (b == '\n') {
+                    terminatorBytes = previous == '\r' ? 2 : 1;
+                    detected = true;
+                }
+                previous = b;
+            }
+        };
+    }
+
+    /**
+     * Count the lines of a part of the file read as a whole, e.g. a spooled file.
+     *
+     * @param count     lines of the part
+     * @param length    bytes of the part, with the line terminators
+     */
+    public void countLines(long count, long length) {
+        lines += count;
+        bytes += length;
+    }
+
+    /**
+     * @return  true if the file is resumed after lines processed before a restart
+     */
+    public boolean isResumed() {
+        return resumedLines > 0 || skipLines > 0;
+    }
+
+    /**
+     * @return  true if the line is before the checkpoint and must be skipped, only after {@link #skipFromStart()}
+     */
+    public boolean skipLine() {
+        if (skipLines > 0) {
+            skipLines--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The stream is read again from the start, skip the lines already processed.
+     */
+    public void skipFromStart() {
+        skipLines = resumedLines;
+        resumedLines = 0;
+    }
+
+    /**
+     * @param interval  lines between checkpoints
+     * @return  true if a checkpoint is due before the next line
+     */
+    public boolean isCheckpointDue(long interval) {
+        return lines - checkpointLines >= interval;
+    }
+
+    public void checkpointed() {
+        checkpointLines = lines;
+    }
+
+    /**
+     * @return  the path of the file on the sftp server
+     */
+    public String getRemotePath() {
+        if (remoteDirectory == null || remoteDirectory.isEmpty()) {
+            return remoteFile;
+        }
+        return remoteDirectory.endsWith("/") ? remoteDirectory + remoteFile : remoteDirectory + "/" + remoteFile;
+    }
+
+    public String getRemoteDirectory() {
+        return remoteDirectory;
+    }
+
+    public String getRemoteFile() {
+        return remoteFile;
+    }
+
+    public DeviceStateStore getState() {
+        return state;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getResumedLines() {
+        return resumedLines;
+    }
+
+    static int utf8Length(CharSequence cs) {
+        int length = cs.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = cs.charAt(i);
+            if (c >= 0x800) {
+                bytes += 2;
+                if (Character.isHighSurrogate(c)) {
+                    // 4 bytes for the pair
+                    i++;
+                }
+            } else if (c >= 0x80) {
+                bytes += 1;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,134 @@
+package io.vantiq.ext.sftp;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Date;
+
+/**
+ * {@link DeviceState} keeping sum/min/max as fixed-point longs with {@link #SCALE} fraction digits.
+ * No object is allocated per reading, the BigDecimal values and the mean (rounded HALF_UP to 4 digits, same as
+ * {@link DeviceState#updateMean}) are only created when read, e.g. for the result.csv export.
+ */
+public class FixedPointDeviceState extends DeviceState {
+
+    public static final int SCALE = 4;
+
+    private static final long INITIAL_MIN = 100 * 10_000L;
+
+    long fixedSum;
+    long fixedMax;
+    long fixedMin = INITIAL_MIN;
+    long updateMillis;
+
+    public FixedPointDeviceState(String deviceId, String dateTime) {
+        super(deviceId, dateTime);
+    }
+
+    @Override
+    public void update(MeterRecord record) {
+        update(record.getFixedValue(SCALE), record);
+    }
+
+    /**
+     * @param value     the reading as fixed-point long with {@link #SCALE} fraction digits
+     * @param record    the record, dateTime is only materialized when min or max changes
+     */
+    public void update(long value, MeterRecord record) {
+        fixedSum += value;
+        count++;
+        if (value > fixedMax) {
+            fixedMax = value;
+            maxTime = record.getDateTime();
+            updateMillis = System.currentTimeMillis();
+        }
+        if (value < fixedMin) {
+            fixedMin = value;
+            minTime = record.getDateTime();
+            updateMillis = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public void merge(DeviceState other) {
+        if (!(other instanceof FixedPointDeviceState)) {
+            super.merge(other);
+            return;
+        }
+        FixedPointDeviceState fixed = (FixedPointDeviceState) other;
+        if (fixed.count == 0) {
+            return;
+        }
+        fixedSum += fixed.fixedSum;
+        count += fixed.count;
+        if (fixed.fixedMax > fixedMax) {
+            fixedMax = fixed.fixedMax;
+            maxTime = fixed.maxTime;
+        }
+        if (fixed.fixedMin < fixedMin) {
+            fixedMin = fixed.fixedMin;
+            minTime = fixed.minTime;
+        }
+        updateMillis = Math.max(updateMillis, fixed.updateMillis);
+    }
+
+    @Override
+    public DeviceState copy() {
+        DeviceState copy = new FixedPointDeviceState(deviceId, date);
+        copy.merge(this);
+        return copy;
+    }
+
+    @Override
+    public void updateMean(BigDecimal newValue) {
+        fixedSum += newValue.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+        count++;
+    }
+
+    @Override
+    public BigDecimal getMean() {
+        if (count == 0) {
+            return BigDecimal.ZERO;
+        }
+        return BigDecimal.valueOf(fixedSum, SCALE).divide(BigDecimal.valueOf(count), SCALE, RoundingMode.HALF_UP);
+    }
+
+    @Override
+    public BigDecimal getSum() {
+        return BigDecimal.valueOf(fixedSum, SCALE);
+    }
+
+    @Override
+    public void setSum(BigDecimal sum) {
+        fixedSum = sum.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    @Override
+    public BigDecimal getMaxValue() {
+        return BigDecimal.valueOf(fixedMax, SCALE);
+    }
+
+    @Override
+    public void setMaxValue(BigDecimal maxValue) {
+        fixedMax = maxValue.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    @Override
+    public BigDecimal getMinValue() {
+        return BigDecimal.valueOf(fixedMin, SCALE);
+    }
+
+    @Override
+    public void setMinValue(BigDecimal minValue) {
+        fixedMin = minValue.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    @Override
+    public Date getUpdateTime() {
+        return updateMillis == 0 ? null : new Date(updateMillis);
+    }
+
+    @Override
+    public void setUpdateTime(Date updateTime) {
+        updateMillis = updateTime == null ? 0 : updateTime.getTime();
+    }
+}
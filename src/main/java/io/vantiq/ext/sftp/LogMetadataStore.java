@@ -0,0 +1,266 @@
+package io.vantiq.ext.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.integration.metadata.ConcurrentMetadataStore;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metadata store appending each update to a log file, instead of rewriting all the entries on each update as
+ * {@code PropertiesPersistingMetadataStore} does. The entries are kept in memory and loaded from the log on start.
+ * <pre>
+ * P	mt_FS_20200318_235521_TMR_1201001_1584547126001_2110_2.DT	1584932409000
+ * R	mt_dir2
+ * </pre>
+ * Each line puts (P) or removes (R) a key, tab, newline and backslash are escaped with a backslash. The log is
+ * compacted to the live entries when it has more than twice as many lines, and on close. A last line without
+ * newline, from an append cut short by a crash, is ignored on load.
+ * <p>
+ * The entries of a properties file from {@code PropertiesPersistingMetadataStore} with the same base directory and
+ * file name are imported when there is no log yet.
+ */
+public class LogMetadataStore implements ConcurrentMetadataStore, InitializingBean, DisposableBean, Closeable,
+        Flushable {
+
+    static final Logger LOG = LoggerFactory.getLogger(LogMetadataStore.class);
+
+    private static final String SUFFIX = ".log";
+    /** lines of the log below which it is never compacted */
+    private static final int MIN_COMPACT_LINES = 1024;
+
+    private final Map<String, String> entries = new ConcurrentHashMap<>();
+
+    private String baseDirectory = System.getProperty("java.io.tmpdir") + "/spring-integration/";
+    private String fileName = "metadata-store";
+
+    private File logFile;
+    private Writer writer;
+    private long logLines;
+
+    public void setBaseDirectory(String baseDirectory) {
+        this.baseDirectory = baseDirectory;
+    }
+
+    /**
+     * @param fileName  the log is fileName + ".log"
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        File directory = new File(baseDirectory);
+        directory.mkdirs();
+        logFile = new File(directory, fileName + SUFFIX);
+        if (logFile.exists()) {
+            replay();
+        } else {
+            File properties = new File(directory, fileName);
+            if (properties.exists()) {
+                importProperties(properties);
+            }
+        }
+        // start with a compacted log
+        compact();
+    }
+
+    private void replay() throws IOException {
+        boolean terminated = endsWithNewline(logFile);
+        try (BufferedReader reader = Files.newBufferedReader(logFile.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next == null && !terminated) {
+                    // the last append was cut short by a crash, its value may be truncated
+                    LOG.warn("Incomplete last metadata log line, ignored: {}", line);
+                    break;
+                }
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 3 && fields[0].equals("P")) {
+                    entries.put(unescape(fields[1]), unescape(fields[2]));
+                } else if (fields.length == 2 && fields[0].equals("R")) {
+                    entries.remove(unescape(fields[1]));
+                } else {
+                    LOG.warn("Invalid metadata log line, ignored: {}", line);
+                }
+                line = next;
+            }
+        }
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() == 0) {
+                return true;
+            }
+            in.seek(in.length() - 1);
+            return in.read() == '\n';
+        }
+    }
+
+    private void importProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            entries.put(key, properties.getProperty(key));
+        }
+        LOG.info("Imported {} entries from metadata properties: {}", entries.size(), file);
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        entries.put(key, value);
+        appendPut(key, value);
+    }
+
+    @Override
+    public String get(String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public synchronized String remove(String key) {
+        String previous = entries.remove(key);
+        if (previous != null) {
+            append("R\t" + escape(key) + "\n");
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized String putIfAbsent(String key, String value) {
+        String previous = entries.putIfAbsent(key, value);
+        if (previous == null) {
+            appendPut(key, value);
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized boolean replace(String key, String oldValue, String newValue) {
+        if (entries.replace(key, oldValue, newValue)) {
+            appendPut(key, newValue);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return  number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void appendPut(String key, String value) {
+        append("P\t" + escape(key) + "\t" + escape(value) + "\n");
+    }
+
+    private void append(String line) {
+        try {
+            writer.write(line);
+            if (++logLines > MIN_COMPACT_LINES && logLines > 2L * entries.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write metadata log: " + logFile, e);
+        }
+    }
+
+    /**
+     * Rewrite the log with the live entries only.
+     */
+    public synchronized void compact() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        File temp = new File(logFile.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                out.write("P\t" + escape(entry.getKey()) + "\t" + escape(entry.getValue()) + "\n");
+            }
+        }
+        Files.move(temp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        logLines = entries.size();
+        writer = new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            compact();
+            writer.close();
+            writer = null;
+        }
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        close();
+    }
+
+    static String escape(String value) {
+        if (value.indexOf('\\') < 0 && value.indexOf('\t') < 0 && value.indexOf('\n') < 0
+                && value.indexOf('\r') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
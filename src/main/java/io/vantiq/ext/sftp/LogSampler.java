@@ -0,0 +1,38 @@
+package io.vantiq.ext.sftp;
+
+/**
+ * Samples a message logged on a hot path, e.g. at the end of each file, to at most one per interval:
+ * <pre>
+ * long skipped = sampler.sample();
+ * if (skipped >= 0) {
+ *     LOG.info("Processed file: {}, {} files not logged", file, skipped);
+ * }
+ * </pre>
+ * With an interval of 0 all the messages are logged.
+ */
+public class LogSampler {
+
+    private final long intervalMillis;
+    private long lastLog;
+    private long skipped;
+
+    public LogSampler(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.lastLog = System.currentTimeMillis() - intervalMillis;
+    }
+
+    /**
+     * @return  -1 when the message is skipped, else the number of messages skipped since the last logged one
+     */
+    public synchronized long sample() {
+        long now = System.currentTimeMillis();
+        if (now - lastLog < intervalMillis) {
+            skipped++;
+            return -1;
+        }
+        lastLog = now;
+        long count = skipped;
+        skipped = 0;
+        return count;
+    }
+}
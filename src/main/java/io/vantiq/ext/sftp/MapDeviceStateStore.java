@@ -0,0 +1,90 @@
+package io.vantiq.ext.sftp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * {@link DeviceStateStore} keeping one {@link DeviceState} object per device, keyed by the deviceId String.
+ */
+public class MapDeviceStateStore implements DeviceStateStore {
+
+    private final boolean fixedPoint;
+
+    private final Map<String, DeviceState> accumulateState = new HashMap<>();
+    private final List<DeviceState> deviceStateList = new ArrayList<>();
+    private final Set<String> fileDevices = new HashSet<>();
+    private final Set<String> changedDevices = new LinkedHashSet<>();
+
+    /**
+     * @param fixedPoint    true to use {@link FixedPointDeviceState}, otherwise the BigDecimal {@link DeviceState}
+     */
+    public MapDeviceStateStore(boolean fixedPoint) {
+        this.fixedPoint = fixedPoint;
+    }
+
+    @Override
+    public void update(MeterRecord record) {
+        String deviceId = record.getDeviceId();
+        DeviceState deviceState = accumulateState.get(deviceId);
+        if (deviceState == null) {
+            deviceState = add(deviceId, record.getDateTime());
+        }
+        deviceState.update(record);
+        fileDevices.add(deviceId);
+        changedDevices.add(deviceId);
+    }
+
+    @Override
+    public void merge(DeviceState state) {
+        DeviceState deviceState = accumulateState.get(state.getDeviceId());
+        if (deviceState == null) {
+            deviceState = add(state.getDeviceId(), state.getDate());
+        }
+        deviceState.merge(state);
+        fileDevices.add(state.getDeviceId());
+        changedDevices.add(state.getDeviceId());
+    }
+
+    private DeviceState add(String deviceId, String dateTime) {
+        DeviceState deviceState = fixedPoint ? new FixedPointDeviceState(deviceId, dateTime)
+                                             : new DeviceState(deviceId, dateTime);
+        accumulateState.put(deviceId, deviceState);
+        deviceStateList.add(deviceState);
+        return deviceState;
+    }
+
+    @Override
+    public void drainChanged(Consumer<DeviceState> consumer) {
+        for (String deviceId : changedDevices) {
+            consumer.accept(accumulateState.get(deviceId).copy());
+        }
+        changedDevices.clear();
+    }
+
+    @Override
+    public int size() {
+        return deviceStateList.size();
+    }
+
+    @Override
+    public int getFileDeviceCount() {
+        return fileDevices.size();
+    }
+
+    @Override
+    public void endFile() {
+        fileDevices.clear();
+    }
+
+    @Override
+    public Iterator<DeviceState> iterator() {
+        return deviceStateList.iterator();
+    }
+}
@@ -0,0 +1,108 @@
+package io.vantiq.ext.sftp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One parsed meter line. Only the offsets of the first three columns are kept, the column Strings are created
+ * on demand, so the line is tokenized once in the flow and reused by the later stages.
+ */
+public final class MeterRecord {
+
+    private final CharSequence line;
+    private final int deviceEnd;
+    private final int timeStart;
+    private final int timeEnd;
+    private final int valueStart;
+    private final int valueEnd;
+
+    MeterRecord(CharSequence line, int deviceEnd, int timeStart, int timeEnd, int valueStart, int valueEnd) {
+        this.line = line;
+        this.deviceEnd = deviceEnd;
+        this.timeStart = timeStart;
+        this.timeEnd = timeEnd;
+        this.valueStart = valueStart;
+        this.valueEnd = valueEnd;
+    }
+
+    public CharSequence getLine() {
+        return line;
+    }
+
+    /**
+     * @return  true if the value column has any non-whitespace char, same as {@code StringUtils.hasText}
+     */
+    public boolean hasValue() {
+        for (int i = valueStart; i < valueEnd; i++) {
+            if (!Character.isWhitespace(line.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getDeviceId() {
+        return line.subSequence(0, deviceEnd).toString();
+    }
+
+    public String getDateTime() {
+        return line.subSequence(timeStart, timeEnd).toString();
+    }
+
+    public String getValue() {
+        return line.subSequence(valueStart, valueEnd).toString();
+    }
+
+    /**
+     * @return  the deviceId column as long, see {@link RecordTokenizer#parseLong}
+     */
+    public long getNumericDeviceId() {
+        return RecordTokenizer.parseLong(line, 0, deviceEnd);
+    }
+
+    /**
+     * @return  the dateTime column packed as long, see {@link RecordTokenizer#parsePackedDateTime}
+     */
+    public long getPackedDateTime() {
+        return RecordTokenizer.parsePackedDateTime(line, timeStart, timeEnd);
+    }
+
+    /**
+     * @param scale number of fraction digits
+     * @return      the value column as fixed-point long, see {@link RecordTokenizer#parseFixed}
+     */
+    public long getFixedValue(int scale) {
+        return RecordTokenizer.parseFixed(line, valueStart, valueEnd, scale);
+    }
+
+    public int getDeviceIdLength() {
+        return deviceEnd;
+    }
+
+    public int getValueLength() {
+        return valueEnd - valueStart;
+    }
+
+    /**
+     * @return  total chars of the deviceId, dateTime and value columns
+     */
+    public int getDataLength() {
+        return deviceEnd + (timeEnd - timeStart) + (valueEnd - valueStart);
+    }
+
+    /**
+     * @return  the [deviceId, dateTime, value] list sent to VANTIQ
+     */
+    public List<String> toList() {
+        List<String> dataList = new ArrayList<>(3);
+        dataList.add(getDeviceId());
+        dataList.add(getDateTime());
+        dataList.add(getValue());
+        return dataList;
+    }
+
+    @Override
+    public String toString() {
+        return line.toString();
+    }
+}
@@ -0,0 +1,120 @@
+package io.vantiq.ext.sftp;
+
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rate limited log of the invalid lines. The first lines of each interval are logged one by one, with the stack
+ * trace only when DEBUG is enabled, the next ones are only counted. At the end of an interval with errors, a summary
+ * with the count of each error type is logged instead, e.g.
+ * {@code Invalid lines in the last 10000 ms: {NumberFormatException=3, columns=1200}, 1193 not logged}.
+ * <p>
+ * The intervals end on the next error or on {@link #flushIfDue()}, there is no timer. With an interval of 0 all the
+ * lines are logged.
+ */
+public class ParseErrorLog {
+
+    /** type of the lines with less than 3 columns, the other types are the simple names of the exceptions */
+    public static final String COLUMNS = "columns";
+
+    private final Logger log;
+    private final long intervalMillis;
+    private final int samples;
+
+    private long intervalStart;
+    private int intervalLogged;
+    private long intervalSuppressed;
+    private final Map<String, Long> intervalCounts = new TreeMap<>();
+    private final Map<String, Long> counts = new TreeMap<>();
+
+    /**
+     * @param log               logs the lines and the summaries
+     * @param intervalMillis    length of the intervals
+     * @param samples           lines logged one by one per interval
+     */
+    public ParseErrorLog(Logger log, long intervalMillis, int samples) {
+        this.log = log;
+        this.intervalMillis = intervalMillis;
+        this.samples = samples;
+        this.intervalStart = System.currentTimeMillis();
+    }
+
+    /**
+     * A line with less than 3 columns.
+     */
+    public void invalidLine(CharSequence line) {
+        record(COLUMNS, line, null);
+    }
+
+    /**
+     * A line failed to be aggregated, e.g. with a value which is not a number.
+     */
+    public void failedLine(CharSequence line, Exception e) {
+        record(e.getClass().getSimpleName(), line, e);
+    }
+
+    private synchronized void record(String type, CharSequence line, Exception e) {
+        long now = System.currentTimeMillis();
+        if (intervalMillis > 0 && now - intervalStart >= intervalMillis) {
+            summarize(now);
+        }
+        intervalCounts.merge(type, 1L, Long::sum);
+        counts.merge(type, 1L, Long::sum);
+        if (intervalMillis > 0 && intervalLogged >= samples) {
+            intervalSuppressed++;
+            return;
+        }
+        intervalLogged++;
+        if (e == null) {
+            log.error("Invalid line, less than 3 columns: {}", line);
+        } else if (log.isDebugEnabled()) {
+            log.error("Invalid line: {}", line, e);
+        } else {
+            log.error("Invalid line: {}, {}", line, e.toString());
+        }
+    }
+
+    /**
+     * Log the summary of the current interval if it is over.
+     */
+    public synchronized void flushIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - intervalStart >= intervalMillis) {
+            summarize(now);
+        }
+    }
+
+    /**
+     * Log the summary of the current interval.
+     */
+    public synchronized void flush() {
+        summarize(System.currentTimeMillis());
+    }
+
+    private void summarize(long now) {
+        if (intervalMillis > 0 && !intervalCounts.isEmpty()) {
+            log.warn("Invalid lines in the last {} ms: {}, {} not logged", now - intervalStart, intervalCounts,
+                    intervalSuppressed);
+        }
+        intervalStart = now;
+        intervalLogged = 0;
+        intervalSuppressed = 0;
+        intervalCounts.clear();
+    }
+
+    /**
+     * @return  invalid lines by type, since the start
+     */
+    public synchronized Map<String, Long> getCounts() {
+        return new TreeMap<>(counts);
+    }
+
+    /**
+     * @return  invalid lines only counted in the current interval
+     */
+    public synchronized long getSuppressed() {
+        return intervalSuppressed;
+    }
+}
@@ -0,0 +1,300 @@
+package io.vantiq.ext.sftp;
+
+import io.github.resilience4j.ratelimiter.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.io.input.ProxyInputStream;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer meters of each stage of the flow of a source, tagged with the source name and exposed by the actuator
+ * at /actuator/prometheus:
+ * <ul>
+ *     <li>{@code sftp.list}, {@code sftp.fetch}: listing the remote directories and opening the remote files</li>
+ *     <li>{@code sftp.bytes.read}: bytes read from the remote files, before decompression</li>
+ *     <li>{@code sftp.lines}, {@code sftp.parse.errors}: lines parsed, invalid lines by type</li>
+ *     <li>{@code sftp.file}, {@code sftp.file.devices}: processing time and devices of each file</li>
+ *     <li>{@code sftp.devices}: devices of the aggregated state</li>
+ *     <li>{@code sftp.send}, {@code sftp.send.rows}: sending the notifications and their records</li>
+ *     <li>{@code sftp.ratelimiter.wait}, {@code sftp.backpressure.wait}: time waiting to send</li>
+ *     <li>{@code sftp.spill.pending}, {@code sftp.spill.spilled}, {@code sftp.spill.replayed}: notifications
+ *     spilled to disk, see {@link SpillingSendQueue}</li>
+ *     <li>{@code sftp.cluster.nodes}: live nodes of the cluster, see {@link ClusterMembership}</li>
+ *     <li>{@code sftp.inflight}: files being processed, files submitted to the file threads, records waiting in the
+ *     batch and WebSocket bytes, by {@code stage}</li>
+ * </ul>
+ * The meters are removed from the registry on {@link #close()}, when the source is reconfigured.
+ */
+public class PipelineMetrics {
+
+    public static final String PARSE_ERROR_COLUMNS = "columns";
+    public static final String PARSE_ERROR_VALUE = "value";
+
+    private final MeterRegistry registry;
+    private final Tags tags;
+    private final List<Meter> meters = new ArrayList<>();
+
+    private final Counter bytesRead;
+    private final Counter lines;
+    private final Counter columnErrors;
+    private final Counter valueErrors;
+    private final Timer fileTimer;
+    private final DistributionSummary fileDevices;
+    private final Timer sendTimer;
+    private final DistributionSummary sendRows;
+    private final Timer rateLimiterWait;
+    private final Timer backpressureWait;
+
+    private final AtomicInteger filesInFlight = new AtomicInteger();
+    /** start of the file processed by the thread */
+    private final ThreadLocal<Timer.Sample> fileSample = new ThreadLocal<>();
+
+    /**
+     * @param registry  the registry of the actuator, or e.g. a {@code SimpleMeterRegistry}
+     * @param source    name of the source, the {@code source} tag of the meters
+     */
+    public PipelineMetrics(MeterRegistry registry, String source) {
+        this.registry = registry;
+        this.tags = Tags.of("source", String.valueOf(source));
+
+        bytesRead = add(Counter.builder("sftp.bytes.read")
+                               .description("Bytes read from the remote files, before decompression")
+                               .baseUnit("bytes")
+                               .tags(tags)
+                               .register(registry));
+        lines = add(Counter.builder("sftp.lines")
+                           .description("Lines parsed")
+                           .tags(tags)
+                           .register(registry));
+        columnErrors = add(parseErrors(PARSE_ERROR_COLUMNS));
+        valueErrors = add(parseErrors(PARSE_ERROR_VALUE));
+        fileTimer = add(Timer.builder("sftp.file")
+                             .description("Time from the start to the end of a file")
+                             .tags(tags)
+                             .register(registry));
+        fileDevices = add(DistributionSummary.builder("sftp.file.devices")
+                                             .description("Devices of a file")
+                                             .tags(tags)
+                                             .register(registry));
+        sendTimer = add(Timer.builder("sftp.send")
+                             .description("Time to send a notification to VANTIQ")
+                             .tags(tags)
+                             .register(registry));
+        sendRows = add(DistributionSummary.builder("sftp.send.rows")
+                                          .description("Records of a notification")
+                                          .tags(tags)
+                                          .register(registry));
+        rateLimiterWait = add(Timer.builder("sftp.ratelimiter.wait")
+                                   .description("Time waiting for the rate limiter")
+                                   .tags(tags)
+                                   .register(registry));
+        backpressureWait = add(Timer.builder("sftp.backpressure.wait")
+                                    .description("Time waiting for the WebSocket send queue to drain")
+                                    .tags(tags)
+                                    .register(registry));
+        inFlight("files", filesInFlight, AtomicInteger::get);
+    }
+
+    private Counter parseErrors(String type) {
+        return Counter.builder("sftp.parse.errors")
+                      .description("Invalid lines")
+                      .tags(tags)
+                      .tag("type", type)
+                      .register(registry);
+    }
+
+    private <M extends Meter> M add(M meter) {
+        meters.add(meter);
+        return meter;
+    }
+
+    /**
+     * Time the listings and the opening of the remote files with the sessions of the pool.
+     */
+    public void bindSessionPool(SftpSessionPool pool) {
+        add(FunctionTimer.builder("sftp.list", pool, SftpSessionPool::getLists, SftpSessionPool::getListNanos,
+                                  TimeUnit.NANOSECONDS)
+                         .description("Time to list a remote directory")
+                         .tags(tags)
+                         .register(registry));
+        add(FunctionTimer.builder("sftp.fetch", pool, SftpSessionPool::getReads, SftpSessionPool::getReadNanos,
+                                  TimeUnit.NANOSECONDS)
+                         .description("Time to open a remote file")
+                         .tags(tags)
+                         .register(registry));
+        add(Gauge.builder("sftp.sessions.active", pool, SftpSessionPool::getActiveCount)
+                 .description("Sessions checked out of the pool")
+                 .tags(tags)
+                 .register(registry));
+    }
+
+    /**
+     * Devices of the aggregated state, the gauge is read when the metrics are scraped.
+     */
+    public void bindStateStore(DeviceStateStore store) {
+        add(Gauge.builder("sftp.devices", store, DeviceStateStore::size)
+                 .description("Devices of the aggregated state")
+                 .tags(tags)
+                 .register(registry));
+    }
+
+    /**
+     * Notifications spilled to disk while VANTIQ is disconnected or falls behind, and replayed.
+     */
+    public void bindSendQueue(SpillingSendQueue queue) {
+        add(Gauge.builder("sftp.spill.pending", queue, SpillingSendQueue::getPendingBytes)
+                 .description("Bytes of the spilled notifications not replayed yet")
+                 .baseUnit("bytes")
+                 .tags(tags)
+                 .register(registry));
+        add(FunctionCounter.builder("sftp.spill.spilled", queue, SpillingSendQueue::getSpilled)
+                           .description("Notifications spilled to disk")
+                           .tags(tags)
+                           .register(registry));
+        add(FunctionCounter.builder("sftp.spill.replayed", queue, SpillingSendQueue::getReplayed)
+                           .description("Spilled notifications replayed")
+                           .tags(tags)
+                           .register(registry));
+    }
+
+    /**
+     * Live nodes of the cluster of the source.
+     */
+    public void bindCluster(ClusterMembership membership) {
+        add(Gauge.builder("sftp.cluster.nodes", membership, m -> m.getNodes().size())
+                 .description("Live nodes of the cluster")
+                 .tags(tags)
+                 .register(registry));
+    }
+
+    /**
+     * One more {@code sftp.inflight} gauge, for the messages waiting in a stage.
+     */
+    public <T> void inFlight(String stage, T obj, ToDoubleFunction<T> value) {
+        add(Gauge.builder("sftp.inflight", obj, value)
+                 .description("Messages in flight")
+                 .tags(tags)
+                 .tag("stage", stage)
+                 .register(registry));
+    }
+
+    /**
+     * @return  the stream counting the bytes read into {@code sftp.bytes.read}
+     */
+    public InputStream countBytes(InputStream in) {
+        return new ProxyInputStream(in) {
+
+            @Override
+            protected void afterRead(int n) {
+                if (n > 0) {
+                    bytesRead.increment(n);
+                }
+            }
+        };
+    }
+
+    public void lineParsed() {
+        lines.increment();
+    }
+
+    /**
+     * @param type  {@link #PARSE_ERROR_COLUMNS} or {@link #PARSE_ERROR_VALUE}
+     */
+    public void parseError(String type) {
+        (PARSE_ERROR_COLUMNS.equals(type) ? columnErrors : valueErrors).increment();
+    }
+
+    /**
+     * Called at the start of a file, on the thread processing it.
+     */
+    public void startFile() {
+        if (fileSample.get() == null) {
+            filesInFlight.incrementAndGet();
+        }
+        // else the previous file of the thread failed before its end
+        fileSample.set(Timer.start(registry));
+    }
+
+    /**
+     * Called at the end of a file, on the thread which started it.
+     */
+    public void endFile(int devices) {
+        Timer.Sample sample = fileSample.get();
+        if (sample != null) {
+            fileSample.remove();
+            filesInFlight.decrementAndGet();
+            sample.stop(fileTimer);
+        }
+        fileDevices.record(devices);
+    }
+
+    public void waitForPermission(RateLimiter rateLimiter) {
+        long start = System.nanoTime();
+        RateLimiter.waitForPermission(rateLimiter);
+        rateLimiterWait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    public void awaitCredit(SendBackpressure backpressure) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            backpressure.awaitCredit();
+        } finally {
+            backpressureWait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Send a notification of {@code rows} records, timed.
+     */
+    public void send(int rows, Runnable send) {
+        sendTimer.record(send);
+        sendRows.record(rows);
+    }
+
+    public long getLines() {
+        return (long) lines.count();
+    }
+
+    public long getFiles() {
+        return fileTimer.count();
+    }
+
+    public long getSent() {
+        return sendTimer.count();
+    }
+
+    public long getParseErrors() {
+        return (long) (columnErrors.count() + valueErrors.count());
+    }
+
+    public int getFilesInFlight() {
+        return filesInFlight.get();
+    }
+
+    public long getBytesRead() {
+        return (long) bytesRead.count();
+    }
+
+    /**
+     * Remove the meters of the source from the registry.
+     */
+    public void close() {
+        for (Meter meter : meters) {
+            registry.remove(meter);
+        }
+        meters.clear();
+    }
+}
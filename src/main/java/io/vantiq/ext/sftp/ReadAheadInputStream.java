@@ -0,0 +1,170 @@
+package io.vantiq.ext.sftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a stream ahead of its consumer on a separate thread, into a ring of depth reusable chunks. While the
+ * parser consumes one chunk, the next ones are already being read from the remote file, so the parser does not
+ * wait for a round trip as long as the link keeps up.
+ * <p>
+ * The source is only read by the read-ahead thread, and closed by {@link #close()} after the thread stopped.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private static final long POLL_MILLIS = 100;
+
+    private final InputStream source;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> filled;
+    private final Thread reader;
+    private volatile boolean closed;
+
+    /** chunk being consumed */
+    private Chunk current;
+    private int position;
+
+    /**
+     * @param source    the stream, read by the read-ahead thread
+     * @param chunkSize bytes of each chunk
+     * @param depth     number of chunks, read ahead of the consumer
+     */
+    public ReadAheadInputStream(InputStream source, int chunkSize, int depth) {
+        this.source = source;
+        this.free = new ArrayBlockingQueue<>(depth);
+        // and the end of stream
+        this.filled = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            free.add(new Chunk(new byte[chunkSize]));
+        }
+        reader = new Thread(this::readAhead, "sftp-read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAhead() {
+        try {
+            while (!closed) {
+                Chunk chunk = free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (chunk == null) {
+                    continue;
+                }
+                chunk.length = 0;
+                int n = 0;
+                while (chunk.length < chunk.data.length
+                        && (n = source.read(chunk.data, chunk.length, chunk.data.length - chunk.length)) >= 0) {
+                    chunk.length += n;
+                }
+                if (chunk.length > 0) {
+                    filled.put(chunk);
+                }
+                if (n < 0) {
+                    filled.put(Chunk.END);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            filled.offer(new Chunk(e));
+        } catch (InterruptedException e) {
+            filled.offer(new Chunk(new InterruptedIOException("Read-ahead interrupted")));
+        }
+    }
+
+    /**
+     * @return  false at the end of the stream
+     */
+    private boolean nextChunk() throws IOException {
+        if (current != null) {
+            if (current == Chunk.END) {
+                return false;
+            }
+            if (position < current.length) {
+                return true;
+            }
+            free.add(current);
+            current = null;
+        }
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        try {
+            current = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the read-ahead");
+        }
+        position = 0;
+        if (current.error != null) {
+            IOException error = current.error;
+            current = Chunk.END;
+            throw new IOException("Read-ahead failed", error);
+        }
+        return current != Chunk.END;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return current.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null || current == Chunk.END ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // unblock the reader waiting for a free chunk, it stops after its current read from the source
+        filled.clear();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        source.close();
+    }
+
+    private static class Chunk {
+
+        static final Chunk END = new Chunk(new byte[0]);
+
+        final byte[] data;
+        final IOException error;
+        int length;
+
+        Chunk(byte[] data) {
+            this.data = data;
+            this.error = null;
+        }
+
+        Chunk(IOException error) {
+            this.data = null;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package io.vantiq.ext.sftp;
+
+/**
+ * Tokenizer for the "||" delimited meter lines, e.g.
+ * <pre>511182490||2020-03-15 23:00:00||0.0000||0.0000||...||0.9700</pre>
+ *
+ * Columns are located by offset directly on the {@link CharSequence}, no intermediate Strings or arrays are
+ * created. Only the first three columns (deviceId, dateTime, value) are used by the connector.
+ */
+public final class RecordTokenizer {
+
+    public static final String DELIMITER = "||";
+
+    private RecordTokenizer() { }
+
+    /**
+     * Parse the first three columns of a line.
+     *
+     * @param line  the raw line
+     * @return      the parsed record, or null if the line has less than three columns
+     */
+    public static MeterRecord parse(CharSequence line) {
+        int length = line.length();
+        int deviceEnd = indexOfDelimiter(line, 0, length);
+        if (deviceEnd < 0) {
+            return null;
+        }
+        int timeStart = deviceEnd + 2;
+        int timeEnd = indexOfDelimiter(line, timeStart, length);
+        if (timeEnd < 0) {
+            return null;
+        }
+        int valueStart = timeEnd + 2;
+        int valueEnd = indexOfDelimiter(line, valueStart, length);
+        if (valueEnd < 0) {
+            valueEnd = trimEnd(line, valueStart, length);
+        }
+        return new MeterRecord(line, deviceEnd, timeStart, timeEnd, valueStart, valueEnd);
+    }
+
+    /**
+     * Find the next "||" delimiter in {@code [from, to)}.
+     *
+     * @return  the offset of the delimiter, or -1 if none
+     */
+    public static int indexOfDelimiter(CharSequence line, int from, int to) {
+        for (int i = from; i < to - 1; i++) {
+            if (line.charAt(i) == '|' && line.charAt(i + 1) == '|') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a decimal column as fixed-point long with {@code scale} fraction digits, e.g. "0.97" with scale 4
+     * gives 9700. Extra fraction digits are rounded half up, like {@link java.math.RoundingMode#HALF_UP}.
+     *
+     * @throws NumberFormatException if the column is not a plain decimal number
+     */
+    public static long parseFixed(CharSequence s, int start, int end, int scale) {
+        while (start < end && Character.isWhitespace(s.charAt(start))) {
+            start++;
+        }
+        end = trimEnd(s, start, end);
+        if (start >= end) {
+            throw new NumberFormatException("Empty number");
+        }
+        boolean negative = false;
+        char first = s.charAt(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            start++;
+        }
+        long value = 0;
+        int fraction = -1;
+        boolean roundUp = false;
+        boolean digits = false;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else if (c >= '0' && c <= '9') {
+                digits = true;
+                if (fraction < scale) {
+                    value = Math.addExact(Math.multiplyExact(value, 10L), c - '0');
+                    if (fraction >= 0) {
+                        fraction++;
+                    }
+                } else if (fraction == scale) {
+                    roundUp = c >= '5';
+                    fraction++;
+                }
+            } else {
+                throw new NumberFormatException("Invalid number: " + s.subSequence(start, end));
+            }
+        }
+        if (!digits) {
+            throw new NumberFormatException("Invalid number: " + s.subSequence(start, end));
+        }
+        for (int f = Math.max(fraction, 0); f < scale; f++) {
+            value = Math.multiplyExact(value, 10L);
+        }
+        if (roundUp) {
+            value++;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse an unsigned integer column, e.g. the deviceId "511182490".
+     *
+     * @throws NumberFormatException if the column is empty, has other chars than digits or overflows a long
+     */
+    public static long parseLong(CharSequence s, int start, int end) {
+        if (start >= end) {
+            throw new NumberFormatException("Empty number");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Invalid number: " + s.subSequence(start, end));
+            }
+            value = Math.addExact(Math.multiplyExact(value, 10L), c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Pack a "yyyy-MM-dd HH:mm:ss" column into a long by its digits, e.g. 20200315230000. Missing time digits are
+     * padded with 0, so "2020-03-15" gives 20200315000000.
+     *
+     * @throws NumberFormatException if there are less than 8 or more than 14 digits, or a field is out of range
+     */
+    public static long parsePackedDateTime(CharSequence s, int start, int end) {
+        long value = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits++;
+            }
+        }
+        if (digits < 8 || digits > 14) {
+            throw new NumberFormatException("Invalid date time: " + s.subSequence(start, end));
+        }
+        for (; digits < 14; digits++) {
+            value *= 10;
+        }
+        long month = value / 100000000 % 100;
+        long day = value / 1000000 % 100;
+        if (month < 1 || month > 12 || day < 1 || day > 31 || value / 10000 % 100 > 23 || value / 100 % 100 > 59
+                || value % 100 > 59) {
+            throw new NumberFormatException("Invalid date time: " + s.subSequence(start, end));
+        }
+        return value;
+    }
+
+    /**
+     * Format a date time packed by {@link #parsePackedDateTime} back to "yyyy-MM-dd HH:mm:ss".
+     */
+    public static String formatPackedDateTime(long packed) {
+        char[] chars = "0000-00-00 00:00:00".toCharArray();
+        int[] positions = {18, 17, 15, 14, 12, 11, 9, 8, 6, 5, 3, 2, 1, 0};
+        for (int position : positions) {
+            chars[position] = (char) ('0' + packed % 10);
+            packed /= 10;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Convert a date time packed by {@link #parsePackedDateTime} to seconds since 1970-01-01 00:00:00, the time is
+     * taken as is, no time zone is applied.
+     */
+    public static long packedToEpochSecond(long packed) {
+        int second = (int) (packed % 100);
+        int minute = (int) (packed / 100 % 100);
+        int hour = (int) (packed / 10000 % 100);
+        int day = (int) (packed / 1000000 % 100);
+        int month = (int) (packed / 100000000 % 100);
+        long year = packed / 10000000000L;
+        // days from civil, see http://howardhinnant.github.io/date_algorithms.html
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097 + dayOfEra - 719468;
+        return days * 86400 + hour * 3600 + minute * 60 + second;
+    }
+
+    static int trimEnd(CharSequence s, int start, int end) {
+        while (end > start && Character.isWhitespace(s.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+}
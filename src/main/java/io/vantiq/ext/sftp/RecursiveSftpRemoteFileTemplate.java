@@ -0,0 +1,199 @@
+package io.vantiq.ext.sftp;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.integration.file.remote.session.Session;
+import org.springframework.integration.file.remote.session.SessionFactory;
+import org.springframework.integration.sftp.session.SftpRemoteFileTemplate;
+import org.springframework.messaging.MessagingException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Template listing the files of the whole subtree of a directory, for the streaming inbound adapter which only
+ * lists one directory. The files of the subdirectories are named with their path relative to the listed directory,
+ * e.g. {@code 2020-03-15/north/FS_1.DT}, the same as the recursive {@code mget} of the outbound gateway, so the
+ * file filters and the accept-once keys see the relative path.
+ * <p>
+ * The directories of one level are listed concurrently on the executor, each with its own session from the
+ * session factory. The listing of each directory is cached with the directory's mtime, a directory with the same
+ * mtime on the next poll is not listed again, only its mtime is read. Directories modified in the last
+ * {@link #RECENT_SECONDS} are not cached, the mtime only has a precision of seconds.
+ */
+public class RecursiveSftpRemoteFileTemplate extends SftpRemoteFileTemplate {
+
+    static final Logger LOG = LoggerFactory.getLogger(RecursiveSftpRemoteFileTemplate.class);
+
+    private static final int RECENT_SECONDS = 60;
+    private static final long UNKNOWN_MTIME = -1;
+
+    private final AsyncTaskExecutor executor;
+
+    /** listing by directory path, of the directories found by the last scan */
+    private volatile Map<String, Listing> cache = new ConcurrentHashMap<>();
+
+    private final AtomicLong listings = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    public RecursiveSftpRemoteFileTemplate(SessionFactory<ChannelSftp.LsEntry> sessionFactory,
+                                           AsyncTaskExecutor executor) {
+        super(sessionFactory);
+        this.executor = executor;
+    }
+
+    /**
+     * @return  the files of the subtree of the directory, named by their path relative to it
+     */
+    @Override
+    public ChannelSftp.LsEntry[] list(String path) {
+        Map<String, Listing> scanned = new ConcurrentHashMap<>();
+        List<ChannelSftp.LsEntry> files = new ArrayList<>();
+        List<Directory> level = Collections.singletonList(new Directory(path, "", UNKNOWN_MTIME));
+        long start = System.currentTimeMillis();
+        int directoryCount = 0;
+        try {
+            while (!level.isEmpty()) {
+                List<Future<Listing>> futures = new ArrayList<>(level.size());
+                for (Directory directory : level) {
+                    futures.add(executor.submit(() -> scan(directory)));
+                }
+                List<Directory> next = new ArrayList<>();
+                for (int i = 0; i < futures.size(); i++) {
+                    Listing listing = futures.get(i).get();
+                    if (listing.cacheable) {
+                        scanned.put(level.get(i).path, listing);
+                    }
+                    files.addAll(listing.files);
+                    next.addAll(listing.directories);
+                }
+                directoryCount += level.size();
+                level = next;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while listing " + path, e);
+        } catch (ExecutionException e) {
+            throw new MessagingException("Failed to list " + path, e.getCause());
+        }
+        cache = scanned;
+        LOG.debug("Scanned {} directories under {} in {} ms, {} files, listed {} times, {} cache hits",
+                directoryCount, path, System.currentTimeMillis() - start, files.size(), listings.get(),
+                cacheHits.get());
+        return files.toArray(new ChannelSftp.LsEntry[0]);
+    }
+
+    private Listing scan(Directory directory) throws Exception {
+        Session<ChannelSftp.LsEntry> session = getSession();
+        try {
+            long mtime = directory.mtime;
+            if (mtime == UNKNOWN_MTIME) {
+                mtime = readMtime(session, directory.path);
+            }
+            Listing cached = cache.get(directory.path);
+            if (cached != null && cached.mtime == mtime) {
+                cacheHits.incrementAndGet();
+                return cached.withUnknownMtimes();
+            }
+
+            List<ChannelSftp.LsEntry> files = new ArrayList<>();
+            List<Directory> directories = new ArrayList<>();
+            for (ChannelSftp.LsEntry entry : session.list(directory.path)) {
+                String name = entry.getFilename();
+                if (".".equals(name) || "..".equals(name)) {
+                    continue;
+                }
+                if (entry.getAttrs().isDir()) {
+                    String path = directory.path.endsWith("/") ? directory.path + name : directory.path + "/" + name;
+                    directories.add(new Directory(path, directory.prefix + name + "/", entry.getAttrs().getMTime()));
+                } else {
+                    if (!directory.prefix.isEmpty()) {
+                        enhanceNameWithSubDirectory(entry, directory.prefix);
+                    }
+                    files.add(entry);
+                }
+            }
+            listings.incrementAndGet();
+            boolean cacheable = mtime < System.currentTimeMillis() / 1000 - RECENT_SECONDS;
+            return new Listing(mtime, files, directories, cacheable);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @return  the mtime of the directory, in seconds
+     */
+    protected long readMtime(Session<ChannelSftp.LsEntry> session, String path) throws SftpException {
+        return ((ChannelSftp) session.getClientInstance()).stat(path).getMTime();
+    }
+
+    /**
+     * Same as the recursive listing of {@code SftpOutboundGateway}, the long name ends with the relative path too.
+     */
+    private static void enhanceNameWithSubDirectory(ChannelSftp.LsEntry file, String directory) {
+        String name = file.getFilename();
+        String longName = file.getLongname();
+        DirectFieldAccessor fileAccessor = new DirectFieldAccessor(file);
+        fileAccessor.setPropertyValue("filename", directory + name);
+        fileAccessor.setPropertyValue("longname", longName.replace(name, directory + name));
+    }
+
+    public long getListings() {
+        return listings.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    private static class Directory {
+
+        final String path;
+        /** path relative to the listed directory, with a trailing '/' */
+        final String prefix;
+        final long mtime;
+
+        Directory(String path, String prefix, long mtime) {
+            this.path = path;
+            this.prefix = prefix;
+            this.mtime = mtime;
+        }
+    }
+
+    private static class Listing {
+
+        final long mtime;
+        final List<ChannelSftp.LsEntry> files;
+        final List<Directory> directories;
+        final boolean cacheable;
+
+        Listing(long mtime, List<ChannelSftp.LsEntry> files, List<Directory> directories, boolean cacheable) {
+            this.mtime = mtime;
+            this.files = files;
+            this.directories = directories;
+            this.cacheable = cacheable;
+        }
+
+        /**
+         * The subdirectories may have changed since the listing, their mtime is read again.
+         */
+        Listing withUnknownMtimes() {
+            List<Directory> unknown = new ArrayList<>(directories.size());
+            for (Directory directory : directories) {
+                unknown.add(new Directory(directory.path, directory.prefix, UNKNOWN_MTIME));
+            }
+            return new Listing(mtime, files, unknown, true);
+        }
+    }
+}
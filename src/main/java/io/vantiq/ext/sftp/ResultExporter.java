@@ -0,0 +1,139 @@
+package io.vantiq.ext.sftp;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incremental export of the device states: only the states changed since the last export are written, every
+ * interval, instead of the whole store. The sink receives the changed states in batches, e.g. appends them to
+ * result.csv, see {@link #csv(File)}, or sends them to VANTIQ. A device changed again is written again, the last
+ * row of a device is its current state.
+ * <p>
+ * Once {@link #start(DeviceStateStore)}ed, a timer exports the store while the files are processed, the store must
+ * be thread safe. Each export holds the monitor of the store, so that the other users of the whole store, e.g. the
+ * end of a file, can exclude it.
+ */
+public class ResultExporter implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(ResultExporter.class);
+
+    /**
+     * Writes one batch of changed states.
+     */
+    public interface Sink {
+
+        void write(List<DeviceState> states) throws IOException;
+    }
+
+    private final long intervalMillis;
+    private final int batchSize;
+    private final Sink sink;
+
+    private volatile long exported;
+
+    private ScheduledExecutorService exportTimer;
+    private DeviceStateStore store;
+
+    /**
+     * @param intervalMillis    milliseconds between the exports of the timer
+     * @param batchSize         states per batch passed to the sink
+     * @param sink              writes the batches
+     */
+    public ResultExporter(long intervalMillis, int batchSize, Sink sink) {
+        this.intervalMillis = intervalMillis;
+        this.batchSize = batchSize;
+        this.sink = sink;
+    }
+
+    /**
+     * Export the store every interval, until {@link #close()}.
+     */
+    public synchronized void start(DeviceStateStore store) {
+        this.store = store;
+        exportTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sftp-result-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, intervalMillis);
+        exportTimer.scheduleWithFixedDelay(() -> {
+            try {
+                int count = exportSynchronized(store);
+                LOG.debug("Exported {} changed device states", count);
+            } catch (Exception e) {
+                // keep the timer alive, the states are exported again when they change
+                LOG.error("Failed to export device states", e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private int exportSynchronized(DeviceStateStore store) throws IOException {
+        synchronized (store) {
+            return export(store);
+        }
+    }
+
+    /**
+     * Export the states changed since the last export, the changed marks are cleared even if the sink fails.
+     *
+     * @return  number of exported states
+     */
+    public int export(DeviceStateStore store) throws IOException {
+        List<DeviceState> changed = new ArrayList<>();
+        store.drainChanged(changed::add);
+        for (int i = 0; i < changed.size(); i += batchSize) {
+            sink.write(changed.subList(i, Math.min(changed.size(), i + batchSize)));
+        }
+        exported += changed.size();
+        return changed.size();
+    }
+
+    /**
+     * @return  number of states exported so far
+     */
+    public long getExported() {
+        return exported;
+    }
+
+    /**
+     * Stop the timer and export the states changed since its last export.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (exportTimer == null) {
+            return;
+        }
+        exportTimer.shutdown();
+        exportTimer = null;
+        exportSynchronized(store);
+    }
+
+    /**
+     * @return  a sink appending the states to the CSV file, with a header when the file is new
+     */
+    public static Sink csv(File file) {
+        CsvMapper mapper = new CsvMapper();
+        CsvSchema schema = mapper.schemaFor(DeviceState.class);
+        return states -> {
+            boolean header = file.length() == 0;
+            try (OutputStream out = new FileOutputStream(file, true);
+                 SequenceWriter writer = mapper.writer(header ? schema.withHeader() : schema).writeValues(out)) {
+                writer.writeAll(states);
+            }
+        };
+    }
+}
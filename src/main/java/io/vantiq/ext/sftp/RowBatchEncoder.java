@@ -0,0 +1,34 @@
+package io.vantiq.ext.sftp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The default notification format, one [deviceId, dateTime, value] String list per record:
+ * <pre>{"data": [["511182490", "2020-03-15 23:00:00", "0.0000"], ...]}</pre>
+ */
+public class RowBatchEncoder implements BatchEncoder {
+
+    /** quotes of the three strings, commas and brackets of one row, and the comma between rows */
+    private static final int ROW_OVERHEAD = 11;
+
+    private final List<List<String>> rows = new ArrayList<>();
+    private final Map<String, Object> notification = new HashMap<>();
+
+    @Override
+    public Map<String, Object> encode(List<MeterRecord> records) {
+        rows.clear();
+        for (MeterRecord record : records) {
+            rows.add(record.toList());
+        }
+        notification.put("data", rows);
+        return notification;
+    }
+
+    @Override
+    public int estimateSize(MeterRecord record) {
+        return record.getDataLength() + ROW_OVERHEAD;
+    }
+}
@@ -1,158 +1,240 @@
-package io.vantiq.ext.sftp;
-
-import io.vantiq.ext.sftp.handler.*;
-import io.vantiq.extjsdk.ConnectorConfig;
-import io.vantiq.extjsdk.ExtensionWebSocketClient;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
-import org.springframework.integration.dsl.context.IntegrationFlowContext;
-import org.springframework.integration.file.remote.session.CachingSessionFactory;
-import org.springframework.stereotype.Component;
-
-import javax.annotation.PostConstruct;
-import java.io.Closeable;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-
-import static io.vantiq.extjsdk.ConnectorConstants.CONNECTOR_CONNECT_TIMEOUT;
-import static io.vantiq.extjsdk.ConnectorConstants.RECONNECT_INTERVAL;
-
-
-@Component
-public class SFTPConnector implements Closeable {
-
-    static final Logger LOG = LoggerFactory.getLogger(SFTPConnector.class);
-
-    ExtensionWebSocketClient vantiqClient = null;
-    String sourceName;
-    String vantiqUrl;
-    String vantiqToken;
-
-
-    CachingSessionFactory sessionFactory;
-
-    private ConnectorConfig connectionInfo;
-    @Autowired
-    private ApplicationContext context;
-    @Autowired
-    private IntegrationFlowContext flowContext;
-
-    public SFTPConnector() { }
-
-    @PostConstruct
-    public void start() {
-        connectionInfo = new ConnectorConfig();
-        if (connectionInfo == null) {
-            throw new RuntimeException("No VANTIQ connection information provided");
-        }
-        if (connectionInfo.getSourceName() == null) {
-            throw new RuntimeException("No source name provided");
-        }
-
-        this.vantiqUrl = connectionInfo.getVantiqUrl();
-        this.vantiqToken = connectionInfo.getToken();
-        this.sourceName = connectionInfo.getSourceName();
-
-        vantiqClient = new ExtensionWebSocketClient(sourceName);
-
-        vantiqClient.setConfigHandler(new ConfigHandler(this));
-        vantiqClient.setReconnectHandler(new ReconnectHandler(this));
-        vantiqClient.setCloseHandler(new CloseHandler(this));
-        vantiqClient.setPublishHandler(new PublishHandler(this));
-        vantiqClient.setQueryHandler(new QueryHandler(this));
-
-        boolean sourcesSucceeded = false;
-        while (!sourcesSucceeded) {
-            vantiqClient.initiateFullConnection(vantiqUrl, vantiqToken);
-
-            sourcesSucceeded = checkConnectionFails(vantiqClient, CONNECTOR_CONNECT_TIMEOUT);
-            if (!sourcesSucceeded) {
-                try {
-                    Thread.sleep(RECONNECT_INTERVAL);
-                } catch (InterruptedException e) {
-                    LOG.error("An error occurred when trying to sleep the current thread. Error Message: ", e);
-                }
-            }
-        }
-    }
-
-    @Override
-    public void close() {
-        this.vantiqClient.close();
-    }
-
-    public ExtensionWebSocketClient getVantiqClient() {
-        return vantiqClient;
-    }
-
-    public String getSourceName() {
-        return sourceName;
-    }
-
-    public String getVantiqUrl() {
-        return vantiqUrl;
-    }
-
-    public String getVantiqToken() {
-        return vantiqToken;
-    }
-
-    public ConnectorConfig getConnectionInfo() {
-        return connectionInfo;
-    }
-
-    public ApplicationContext getContext() {
-        return context;
-    }
-
-    public CachingSessionFactory getSessionFactory() {
-        return sessionFactory;
-    }
-
-    public void setSessionFactory(CachingSessionFactory sessionFactory) {
-        this.sessionFactory = sessionFactory;
-    }
-
-    public IntegrationFlowContext getFlowContext() {
-        return flowContext;
-    }
-
-    public void setFlowContext(IntegrationFlowContext flowContext) {
-        this.flowContext = flowContext;
-    }
-
-    /**
-     * Waits for the connection to succeed or fail, logs and exits if the connection does not succeed within
-     * {@code timeout} seconds.
-     *
-     * @param client    The client to watch for success or failure.
-     * @param timeout   The maximum number of seconds to wait before assuming failure and stopping
-     * @return          true if the connection succeeded, false if it failed to connect within {@code timeout} seconds.
-     */
-    public boolean checkConnectionFails(ExtensionWebSocketClient client, int timeout) {
-        boolean sourcesSucceeded = false;
-        try {
-            sourcesSucceeded = client.getSourceConnectionFuture().get(timeout, TimeUnit.SECONDS);
-        }
-        catch (TimeoutException e) {
-            LOG.error("Timeout: full connection did not succeed within {} seconds: {}", timeout, e);
-        }
-        catch (Exception e) {
-            LOG.error("Exception occurred while waiting for webSocket connection", e);
-        }
-        if (!sourcesSucceeded) {
-            LOG.error("Failed to connect to all sources.");
-            if (!client.isOpen()) {
-                LOG.error("Failed to connect to server url '" + vantiqUrl + "'.");
-            } else if (!client.isAuthed()) {
-                LOG.error("Failed to authenticate within " + timeout + " seconds using the given authentication data.");
-            } else {
-                LOG.error("Failed to connect within 10 seconds");
-            }
-            return false;
-        }
-        return true;
-    }
-}
+package io.vantiq.ext.sftp;
+
+import io.vantiq.ext.sftp.handler.*;
+import io.vantiq.extjsdk.ExtensionWebSocketClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.integration.dsl.context.IntegrationFlowContext;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static io.vantiq.extjsdk.ConnectorConstants.CONNECTOR_CONNECT_TIMEOUT;
+import static io.vantiq.extjsdk.ConnectorConstants.RECONNECT_INTERVAL;
+
+/**
+ * The connection of one VANTIQ source, created by {@link SFTPConnectors} for each source of the JVM. The flow of the
+ * source is started by its config, see {@link ConfigHandler}, and keeps its files in the data directory of the
+ * source.
+ */
+public class SFTPConnector implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(SFTPConnector.class);
+
+    ExtensionWebSocketClient vantiqClient = null;
+    String sourceName;
+    String vantiqUrl;
+    String vantiqToken;
+
+
+    SftpSessionPool sessionFactory;
+    /** the flow of the current config */
+    private volatile SourceFlow flow;
+    private volatile boolean closed;
+    /** null for the working directory */
+    private File dataDirectory;
+    /** the notifications to VANTIQ, spilled to disk while disconnected */
+    private SpillingSendQueue sendQueue;
+
+    @Value("${sftp.send.buffer-bytes:8388608}")
+    private long sendBufferBytes;
+    @Value("${sftp.send.segment-bytes:67108864}")
+    private long sendSegmentBytes;
+
+    @Autowired
+    private ApplicationContext context;
+    @Autowired
+    private IntegrationFlowContext flowContext;
+    @Autowired
+    private SharedExecutors executors;
+
+    public SFTPConnector() { }
+
+    /**
+     * Connect to the source in VANTIQ, retrying until it succeeds. The source config then starts the flow, see
+     * {@link ConfigHandler}.
+     */
+    public void connect(String vantiqUrl, String vantiqToken, String sourceName) {
+        this.vantiqUrl = vantiqUrl;
+        this.vantiqToken = vantiqToken;
+        this.sourceName = sourceName;
+
+        vantiqClient = new ExtensionWebSocketClient(sourceName);
+
+        vantiqClient.setConfigHandler(new ConfigHandler(this));
+        vantiqClient.setReconnectHandler(new ReconnectHandler(this));
+        vantiqClient.setCloseHandler(new CloseHandler(this));
+        vantiqClient.setPublishHandler(new PublishHandler(this));
+        vantiqClient.setQueryHandler(new QueryHandler(this));
+
+        ExtensionWebSocketClient client = vantiqClient;
+        sendQueue = new SpillingSendQueue(getDataFile("sendspool"), sendBufferBytes, sendSegmentBytes,
+                SendBackpressure.webSocketQueueSize(client), client::sendNotification, sourceName);
+
+        connectWithRetry();
+    }
+
+    /**
+     * (Re)connect the client to the source, retrying until it succeeds or the connector is closed.
+     */
+    public void connectWithRetry() {
+        boolean sourcesSucceeded = false;
+        while (!sourcesSucceeded && !closed) {
+            vantiqClient.initiateFullConnection(vantiqUrl, vantiqToken);
+
+            sourcesSucceeded = checkConnectionFails(vantiqClient, CONNECTOR_CONNECT_TIMEOUT);
+            if (!sourcesSucceeded) {
+                try {
+                    Thread.sleep(RECONNECT_INTERVAL);
+                } catch (InterruptedException e) {
+                    LOG.error("An error occurred when trying to sleep the current thread. Error Message: ", e);
+                }
+            }
+        }
+        if (sourcesSucceeded) {
+            sendQueue.connected();
+        }
+    }
+
+    /**
+     * Send a notification to the source, or spill it to disk while VANTIQ is disconnected or falls behind, see
+     * {@link SpillingSendQueue}.
+     */
+    public void send(Map<String, Object> notification) {
+        sendQueue.send(notification);
+    }
+
+    public SpillingSendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // the files in progress are sent before the connection is closed
+        SourceFlow current = flow;
+        flow = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (sendQueue != null) {
+            sendQueue.close();
+        }
+        if (this.vantiqClient != null) {
+            this.vantiqClient.close();
+        }
+    }
+
+    public ExtensionWebSocketClient getVantiqClient() {
+        return vantiqClient;
+    }
+
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    public String getVantiqUrl() {
+        return vantiqUrl;
+    }
+
+    public String getVantiqToken() {
+        return vantiqToken;
+    }
+
+    public File getDataDirectory() {
+        return dataDirectory;
+    }
+
+    public void setDataDirectory(File dataDirectory) {
+        this.dataDirectory = dataDirectory;
+    }
+
+    /**
+     * @return  the file or directory {@code name} in the data directory of the source, e.g. metadata
+     */
+    public File getDataFile(String name) {
+        return new File(dataDirectory, name);
+    }
+
+    public SharedExecutors getExecutors() {
+        return executors;
+    }
+
+    public ApplicationContext getContext() {
+        return context;
+    }
+
+    public SftpSessionPool getSessionFactory() {
+        return sessionFactory;
+    }
+
+    public void setSessionFactory(SftpSessionPool sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    public SourceFlow getFlow() {
+        return flow;
+    }
+
+    public void setFlow(SourceFlow flow) {
+        this.flow = flow;
+    }
+
+    /**
+     * @return  true once {@link #close()} is called, the connection is then not restarted
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public IntegrationFlowContext getFlowContext() {
+        return flowContext;
+    }
+
+    public void setFlowContext(IntegrationFlowContext flowContext) {
+        this.flowContext = flowContext;
+    }
+
+    /**
+     * Waits for the connection to succeed or fail, logs and exits if the connection does not succeed within
+     * {@code timeout} seconds.
+     *
+     * @param client    The client to watch for success or failure.
+     * @param timeout   The maximum number of seconds to wait before assuming failure and stopping
+     * @return          true if the connection succeeded, false if it failed to connect within {@code timeout} seconds.
+     */
+    public boolean checkConnectionFails(ExtensionWebSocketClient client, int timeout) {
+        boolean sourcesSucceeded = false;
+        try {
+            sourcesSucceeded = client.getSourceConnectionFuture().get(timeout, TimeUnit.SECONDS);
+        }
+        catch (TimeoutException e) {
+            LOG.error("Timeout: full connection did not succeed within {} seconds: {}", timeout, e);
+        }
+        catch (Exception e) {
+            LOG.error("Exception occurred while waiting for webSocket connection", e);
+        }
+        if (!sourcesSucceeded) {
+            LOG.error("Failed to connect to all sources.");
+            if (!client.isOpen()) {
+                LOG.error("Failed to connect to server url '" + vantiqUrl + "'.");
+            } else if (!client.isAuthed()) {
+                LOG.error("Failed to authenticate within " + timeout + " seconds using the given authentication data.");
+            } else {
+                LOG.error("Failed to connect within 10 seconds");
+            }
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,140 @@
+package io.vantiq.ext.sftp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.vantiq.extjsdk.ConnectorConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The sources of the JVM. With the usual config.json, the single source {@code sourceName} keeps its files in the
+ * working directory. With a {@code sources} list, each source has its own connection, flow, session pool and
+ * metadata in {@code sources/<sourceName>}, the thread pools are shared, see {@link SharedExecutors}:
+ * <pre>
+ * {
+ *     "vantiqUrl": "https://dev.vantiq.com.cn",
+ *     "token": "&lt;the_token&gt;",
+ *     "sources": [
+ *         {"sourceName": "sftp_north"},
+ *         {"sourceName": "sftp_south", "token": "&lt;token_of_another_namespace&gt;"}
+ *     ]
+ * }
+ * </pre>
+ * The {@code vantiqUrl} and {@code token} of a source default to the top level ones.
+ */
+@Component
+public class SFTPConnectors {
+
+    static final Logger LOG = LoggerFactory.getLogger(SFTPConnectors.class);
+
+    private static final String CONFIG_FILE = "config.json";
+    private static final String SOURCES = "sources";
+    private static final String SOURCE_NAME = "sourceName";
+    private static final String VANTIQ_URL = "vantiqUrl";
+    private static final String TOKEN = "token";
+
+    private final List<SFTPConnector> connectors = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    private ApplicationContext context;
+
+    @PostConstruct
+    public void start() throws IOException {
+        List<Map<String, String>> sources = readSources(new File(CONFIG_FILE));
+        if (sources == null) {
+            ConnectorConfig connectionInfo = new ConnectorConfig();
+            if (connectionInfo.getSourceName() == null) {
+                throw new RuntimeException("No source name provided");
+            }
+            connect(connectionInfo.getVantiqUrl(), connectionInfo.getToken(), connectionInfo.getSourceName(), null);
+            return;
+        }
+
+        // a source which cannot connect does not hold the others
+        List<Thread> threads = new ArrayList<>();
+        for (Map<String, String> source : sources) {
+            String sourceName = source.get(SOURCE_NAME);
+            Thread thread = new Thread(() -> connect(source.get(VANTIQ_URL), source.get(TOKEN), sourceName,
+                    new File(SOURCES, sourceName)), "sftp-connect-" + sourceName);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        LOG.info("Connected {} sources", connectors.size());
+    }
+
+    /**
+     * @return  the sources of the {@code sources} list of the config file, with the default URL and token, or null
+     *          without list
+     */
+    @SuppressWarnings("unchecked")
+    static List<Map<String, String>> readSources(File configFile) throws IOException {
+        if (!configFile.exists()) {
+            return null;
+        }
+        Map<String, Object> config = new ObjectMapper().readValue(configFile, Map.class);
+        if (!(config.get(SOURCES) instanceof List)) {
+            return null;
+        }
+        List<Map<String, String>> sources = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Map<String, String> source : (List<Map<String, String>>) config.get(SOURCES)) {
+            String sourceName = source.get(SOURCE_NAME);
+            if (sourceName == null) {
+                throw new RuntimeException("No source name provided: " + source);
+            }
+            if (!names.add(sourceName)) {
+                throw new RuntimeException("Duplicate source name: " + sourceName);
+            }
+            source.putIfAbsent(VANTIQ_URL, (String) config.get(VANTIQ_URL));
+            source.putIfAbsent(TOKEN, (String) config.get(TOKEN));
+            sources.add(source);
+        }
+        return sources;
+    }
+
+    /**
+     * Connect one more source, retrying until it succeeds.
+     *
+     * @param dataDirectory the directory of the files of the source, null for the working directory
+     */
+    public SFTPConnector connect(String vantiqUrl, String vantiqToken, String sourceName, File dataDirectory) {
+        SFTPConnector connector = new SFTPConnector();
+        context.getAutowireCapableBeanFactory().autowireBean(connector);
+        connector.setDataDirectory(dataDirectory);
+        connectors.add(connector);
+        connector.connect(vantiqUrl, vantiqToken, sourceName);
+        return connector;
+    }
+
+    public List<SFTPConnector> getConnectors() {
+        return connectors;
+    }
+
+    @PreDestroy
+    public void close() {
+        for (SFTPConnector connector : connectors) {
+            connector.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package io.vantiq.ext.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Credit based throttle of the send path. VANTIQ does not acknowledge notifications, so the outstanding data is
+ * the number of bytes queued in the WebSocket but not transmitted yet. A send is allowed while the queue is below
+ * {@code highWatermark}; once it is reached, senders wait until the queue drained below {@code lowWatermark}.
+ *
+ * As the flow is synchronous from the SFTP stream to the sender, waiting here throttles the SFTP read side only
+ * when VANTIQ falls behind, and the queued memory stays bounded. The wait ends as soon as the client is not
+ * connected, the queue of a closed WebSocket never drains, and after {@code maxWaitMillis} at most; the caller must
+ * not hold the lock of the sender, so that the other senders and the linger timer go on meanwhile.
+ */
+public class SendBackpressure {
+
+    static final Logger LOG = LoggerFactory.getLogger(SendBackpressure.class);
+
+    private static final long MAX_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final LongSupplier queuedBytes;
+    private final BooleanSupplier connected;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final long maxWaitNanos;
+
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param queuedBytes   bytes queued in the WebSocket, see {@link #webSocketQueueSize(Object)}
+     * @param connected     false when the WebSocket is closed or not authenticated, no wait then
+     * @param highWatermark queued bytes at which senders start waiting
+     * @param lowWatermark  queued bytes at which waiting senders resume
+     * @param maxWaitMillis max time of one wait, the sender resumes even if the queue did not drain
+     */
+    public SendBackpressure(LongSupplier queuedBytes, BooleanSupplier connected, long highWatermark,
+                            long lowWatermark, long maxWaitMillis) {
+        this.queuedBytes = queuedBytes;
+        this.connected = connected;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Wait until there is credit to send, returns immediately while the WebSocket keeps up or is not connected.
+     */
+    public void awaitCredit() throws InterruptedException {
+        if (queuedBytes.getAsLong() < highWatermark || !connected.getAsBoolean()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long pollNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        try {
+            while (queuedBytes.getAsLong() > lowWatermark && connected.getAsBoolean()) {
+                long waited = System.nanoTime() - start;
+                if (waited >= maxWaitNanos) {
+                    timeouts.incrementAndGet();
+                    LOG.warn("Send queue still has {} bytes after {} ms, sending anyway", queuedBytes.getAsLong(),
+                            TimeUnit.NANOSECONDS.toMillis(waited));
+                    return;
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.min(pollNanos, maxWaitNanos - waited));
+                pollNanos = Math.min(pollNanos * 2, MAX_POLL_NANOS);
+            }
+        } finally {
+            waits.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.getAsLong();
+    }
+
+    /**
+     * @return  number of sends which had to wait for credit
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    /**
+     * @return  number of waits which ended after {@code maxWaitMillis} with the queue still above the low watermark
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Probe of the bytes queued in the OkHttp WebSocket of an {@code ExtensionWebSocketClient}. The client does not
+     * expose it, so the WebSocket field is looked up by reflection, and read on each call as it is replaced on
+     * reconnect.
+     *
+     * @param client    the ExtensionWebSocketClient
+     * @return          the probe, or null if the client has no OkHttp WebSocket
+     */
+    public static LongSupplier webSocketQueueSize(Object client) {
+        for (Class<?> type = client.getClass(); type != null; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                Method queueSize = queueSizeMethod(field.getType());
+                if (queueSize == null) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                } catch (RuntimeException e) {
+                    LOG.warn("Cannot access WebSocket field {}: {}", field, e.getMessage());
+                    return null;
+                }
+                return () -> {
+                    try {
+                        Object webSocket = field.get(client);
+                        return webSocket == null ? 0 : (Long) queueSize.invoke(webSocket);
+                    } catch (ReflectiveOperationException e) {
+                        throw new IllegalStateException("Cannot read WebSocket queue size", e);
+                    }
+                };
+            }
+        }
+        return null;
+    }
+
+    private static Method queueSizeMethod(Class<?> type) {
+        if (!isWebSocket(type)) {
+            return null;
+        }
+        try {
+            return type.getMethod("queueSize");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static boolean isWebSocket(Class<?> type) {
+        if (type == null) {
+            return false;
+        }
+        if ("okhttp3.WebSocket".equals(type.getName())) {
+            return true;
+        }
+        for (Class<?> face : type.getInterfaces()) {
+            if (isWebSocket(face)) {
+                return true;
+            }
+        }
+        return isWebSocket(type.getSuperclass());
+    }
+}
@@ -0,0 +1,442 @@
+package io.vantiq.ext.sftp;
+
+import com.jcraft.jsch.ChannelSftp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.integration.file.remote.session.Session;
+import org.springframework.integration.file.remote.session.SessionFactory;
+import org.springframework.integration.util.PoolItemNotAvailableException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Session pool replacing {@code CachingSessionFactory} with {@code testSession}, which tests each session on
+ * checkout with a round trip to the server. Here a checked out idle session is only checked to be open, the idle
+ * sessions are tested in the background every validation interval, when idle for longer than it.
+ * <p>
+ * At most poolSize sessions are checked out at the same time, {@link #getSession()} waits up to the wait timeout
+ * for a session to be released. The pool is logged at DEBUG after a validation which found it changed, see
+ * {@link #toMap()}.
+ */
+public class SftpSessionPool implements SessionFactory<ChannelSftp.LsEntry>, DisposableBean {
+
+    static final Logger LOG = LoggerFactory.getLogger(SftpSessionPool.class);
+
+    private final SessionFactory<ChannelSftp.LsEntry> sessionFactory;
+    private final int poolSize;
+    private final long waitTimeout;
+    private final long validationInterval;
+
+    private final Semaphore permits;
+    /** most recently released first */
+    private final ConcurrentLinkedDeque<PooledSession> idle = new ConcurrentLinkedDeque<>();
+    private final ScheduledExecutorService validator;
+    private volatile boolean destroyed;
+
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAccumulator peakActive = new LongAccumulator(Long::max, 0);
+    private final AtomicLong checkouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitMillis = new AtomicLong();
+    private final AtomicLong waitTimeouts = new AtomicLong();
+    private final AtomicLong validations = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong lists = new AtomicLong();
+    private final AtomicLong listNanos = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    /** sessions allocated, created, broken and wait timeouts as of the last log, on the validation thread */
+    private String loggedState;
+
+    /**
+     * @param sessionFactory        creates the sessions
+     * @param poolSize              maximum sessions checked out at the same time
+     * @param waitTimeout           milliseconds to wait for a session when all are checked out
+     * @param validationInterval    milliseconds between the tests of the idle sessions, 0 to never test them
+     */
+    public SftpSessionPool(SessionFactory<ChannelSftp.LsEntry> sessionFactory, int poolSize, long waitTimeout,
+                           long validationInterval) {
+        this.sessionFactory = sessionFactory;
+        this.poolSize = poolSize;
+        this.waitTimeout = waitTimeout;
+        this.validationInterval = validationInterval;
+        this.permits = new Semaphore(poolSize);
+        if (validationInterval > 0) {
+            validator = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "sftp-session-validator");
+                thread.setDaemon(true);
+                return thread;
+            });
+            validator.scheduleWithFixedDelay(this::validate, validationInterval, validationInterval,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            validator = null;
+        }
+    }
+
+    @Override
+    public Session<ChannelSftp.LsEntry> getSession() {
+        if (destroyed) {
+            throw new IllegalStateException("Session pool is destroyed");
+        }
+        acquire();
+        try {
+            PooledSession session;
+            while ((session = idle.pollFirst()) != null && !session.target.isOpen()) {
+                discard(session);
+            }
+            if (session == null) {
+                session = new PooledSession(sessionFactory.getSession());
+                allocated.incrementAndGet();
+                created.incrementAndGet();
+            }
+            checkouts.incrementAndGet();
+            peakActive.accumulate(active.incrementAndGet());
+            return new Lease(session);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void acquire() {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        waits.incrementAndGet();
+        long start = System.currentTimeMillis();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PoolItemNotAvailableException("Interrupted awaiting a session");
+        } finally {
+            waitMillis.addAndGet(System.currentTimeMillis() - start);
+        }
+        if (!acquired) {
+            waitTimeouts.incrementAndGet();
+            throw new PoolItemNotAvailableException("Timed out while waiting to acquire a session, all "
+                    + poolSize + " are in use");
+        }
+    }
+
+    private void release(PooledSession session) {
+        active.decrementAndGet();
+        // above the pool size after a session was created while an idle one was being tested
+        if (destroyed || !session.target.isOpen() || allocated.get() > poolSize) {
+            discard(session);
+        } else {
+            session.releaseTime = System.currentTimeMillis();
+            idle.offerFirst(session);
+        }
+        permits.release();
+    }
+
+    private void discard(PooledSession session) {
+        try {
+            session.target.close();
+        } catch (RuntimeException e) {
+            LOG.debug("Failed to close session", e);
+        }
+        allocated.decrementAndGet();
+    }
+
+    /**
+     * Test the sessions idle for longer than the validation interval, the broken ones are closed.
+     */
+    void validate() {
+        long idleSince = System.currentTimeMillis() - validationInterval;
+        for (PooledSession session : idle) {
+            // a session taken by getSession() in the meantime is not tested
+            if (session.releaseTime > idleSince || !idle.removeFirstOccurrence(session)) {
+                continue;
+            }
+            validations.incrementAndGet();
+            boolean valid;
+            try {
+                valid = session.target.isOpen() && session.target.test();
+            } catch (RuntimeException e) {
+                valid = false;
+            }
+            if (!valid) {
+                discard(session);
+                validationFailures.incrementAndGet();
+                LOG.warn("Closed broken idle sftp session");
+            } else if (destroyed || allocated.get() > poolSize) {
+                discard(session);
+            } else {
+                session.releaseTime = System.currentTimeMillis();
+                idle.offerLast(session);
+            }
+        }
+        String state = allocated.get() + "/" + created.get() + "/" + validationFailures.get() + "/"
+                + waitTimeouts.get();
+        if (!state.equals(loggedState)) {
+            loggedState = state;
+            LOG.debug("Sftp session pool: {}", toMap());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        destroyed = true;
+        if (validator != null) {
+            validator.shutdownNow();
+        }
+        PooledSession session;
+        while ((session = idle.pollFirst()) != null) {
+            discard(session);
+        }
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return  open sessions, checked out, idle or being tested
+     */
+    public int getAllocatedCount() {
+        return allocated.get();
+    }
+
+    public long getPeakActiveCount() {
+        return peakActive.get();
+    }
+
+    public long getCheckouts() {
+        return checkouts.get();
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getWaits() {
+        return waits.get();
+    }
+
+    public long getWaitMillis() {
+        return waitMillis.get();
+    }
+
+    public long getWaitTimeouts() {
+        return waitTimeouts.get();
+    }
+
+    public long getValidations() {
+        return validations.get();
+    }
+
+    public long getValidationFailures() {
+        return validationFailures.get();
+    }
+
+    /**
+     * @return  directory listings, with the pooled sessions
+     */
+    public long getLists() {
+        return lists.get();
+    }
+
+    public long getListNanos() {
+        return listNanos.get();
+    }
+
+    /**
+     * @return  remote streams opened, with the pooled sessions
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * @return  time to open the remote streams, until the server answered the open
+     */
+    public long getReadNanos() {
+        return readNanos.get();
+    }
+
+    /**
+     * @return  checked out sessions relative to the pool size
+     */
+    public double getUtilization() {
+        return (double) active.get() / poolSize;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("poolSize", poolSize);
+        map.put("active", getActiveCount());
+        map.put("idle", getIdleCount());
+        map.put("allocated", getAllocatedCount());
+        map.put("peakActive", getPeakActiveCount());
+        map.put("utilization", getUtilization());
+        map.put("checkouts", getCheckouts());
+        map.put("created", getCreated());
+        map.put("waits", getWaits());
+        map.put("waitMillis", getWaitMillis());
+        map.put("waitTimeouts", getWaitTimeouts());
+        map.put("validations", getValidations());
+        map.put("validationFailures", getValidationFailures());
+        map.put("lists", getLists());
+        map.put("listMillis", TimeUnit.NANOSECONDS.toMillis(getListNanos()));
+        map.put("reads", getReads());
+        map.put("readMillis", TimeUnit.NANOSECONDS.toMillis(getReadNanos()));
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "SftpSessionPool" + toMap();
+    }
+
+    private static class PooledSession {
+
+        final Session<ChannelSftp.LsEntry> target;
+        volatile long releaseTime;
+
+        PooledSession(Session<ChannelSftp.LsEntry> target) {
+            this.target = target;
+        }
+    }
+
+    /**
+     * One checkout of a pooled session, closing it returns the session to the pool.
+     */
+    private class Lease implements Session<ChannelSftp.LsEntry> {
+
+        private final PooledSession session;
+        private final Session<ChannelSftp.LsEntry> target;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(PooledSession session) {
+            this.session = session;
+            this.target = session.target;
+        }
+
+        @Override
+        public boolean remove(String path) throws IOException {
+            return target.remove(path);
+        }
+
+        @Override
+        public ChannelSftp.LsEntry[] list(String path) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return target.list(path);
+            } finally {
+                lists.incrementAndGet();
+                listNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void read(String source, OutputStream outputStream) throws IOException {
+            target.read(source, outputStream);
+        }
+
+        @Override
+        public void write(InputStream inputStream, String destination) throws IOException {
+            target.write(inputStream, destination);
+        }
+
+        @Override
+        public void append(InputStream inputStream, String destination) throws IOException {
+            target.append(inputStream, destination);
+        }
+
+        @Override
+        public boolean mkdir(String directory) throws IOException {
+            return target.mkdir(directory);
+        }
+
+        @Override
+        public boolean rmdir(String directory) throws IOException {
+            return target.rmdir(directory);
+        }
+
+        @Override
+        public void rename(String pathFrom, String pathTo) throws IOException {
+            target.rename(pathFrom, pathTo);
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release(session);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !released.get() && target.isOpen();
+        }
+
+        @Override
+        public boolean exists(String path) throws IOException {
+            return target.exists(path);
+        }
+
+        @Override
+        public String[] listNames(String path) throws IOException {
+            return target.listNames(path);
+        }
+
+        @Override
+        public InputStream readRaw(String source) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return target.readRaw(source);
+            } finally {
+                reads.incrementAndGet();
+                readNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public boolean finalizeRaw() throws IOException {
+            return target.finalizeRaw();
+        }
+
+        @Override
+        public Object getClientInstance() {
+            return target.getClientInstance();
+        }
+
+        @Override
+        public String getHostPort() {
+            return target.getHostPort();
+        }
+
+        @Override
+        public boolean test() {
+            return target.test();
+        }
+    }
+}
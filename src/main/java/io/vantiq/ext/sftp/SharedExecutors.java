@@ -0,0 +1,140 @@
+package io.vantiq.ext.sftp;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread pools shared by the flows of all the sources of the JVM, so that a few busy sources can use all the cores
+ * while the others are idle, instead of each source sizing its own pools:
+ * <ul>
+ *     <li>files: the files of the sources with {@code parallel_files} greater than 1, at most
+ *     {@code parallel_files} of a source at the same time, see {@link #files(int)}</li>
+ *     <li>spool: the regions of the spooled files</li>
+ *     <li>scan: the directories listed by the recursive scans</li>
+ * </ul>
+ * The sizes are the {@code sftp.threads.files}, {@code sftp.threads.spool} and {@code sftp.threads.scan}
+ * properties, the number of processors by default, 8 for the scans.
+ */
+@Component
+public class SharedExecutors implements DisposableBean {
+
+    private final ThreadPoolTaskExecutor files;
+    private final ThreadPoolTaskExecutor spool;
+    private final ThreadPoolTaskExecutor scan;
+
+    /**
+     * @param fileThreads   threads processing the files, 0 for the number of processors
+     * @param spoolThreads  threads processing the spooled regions, 0 for the number of processors
+     * @param scanThreads   threads listing the remote directories, 0 for 8
+     */
+    public SharedExecutors(@Value("${sftp.threads.files:0}") int fileThreads,
+                           @Value("${sftp.threads.spool:0}") int spoolThreads,
+                           @Value("${sftp.threads.scan:0}") int scanThreads) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        files = executor("sftp-file-", fileThreads > 0 ? fileThreads : processors);
+        spool = executor("sftp-spool-", spoolThreads > 0 ? spoolThreads : processors);
+        scan = executor("sftp-scan-", scanThreads > 0 ? scanThreads : 8);
+    }
+
+    private static ThreadPoolTaskExecutor executor(String prefix, int threads) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setThreadNamePrefix(prefix);
+        executor.setDaemon(true);
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * @param limit maximum files of the source processed at the same time
+     * @return      the executor of the files of one source, {@code execute} waits while the source has
+     *              {@code limit} files submitted and not completed
+     */
+    public LimitedExecutor files(int limit) {
+        return new LimitedExecutor(files, limit);
+    }
+
+    public ExecutorService spool() {
+        return spool.getThreadPoolExecutor();
+    }
+
+    public AsyncTaskExecutor scan() {
+        return scan;
+    }
+
+    @Override
+    public void destroy() {
+        files.shutdown();
+        spool.shutdown();
+        scan.shutdown();
+    }
+
+    /**
+     * At most {@code limit} tasks submitted to the shared executor at the same time, the caller, i.e. the poller
+     * of the source, waits for the next permit.
+     */
+    public static class LimitedExecutor implements Executor {
+
+        private final Executor executor;
+        private final int limit;
+        private final Semaphore permits;
+
+        LimitedExecutor(Executor executor, int limit) {
+            this.executor = executor;
+            this.limit = limit;
+            this.permits = new Semaphore(limit);
+        }
+
+        /**
+         * @return  tasks submitted and not completed, running or queued in the shared executor
+         */
+        public int getSubmitted() {
+            return limit - permits.availablePermits();
+        }
+
+        /**
+         * Wait until the submitted tasks are completed, no task should be submitted meanwhile.
+         *
+         * @return  false if they are not completed within the timeout
+         */
+        public boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+            if (!permits.tryAcquire(limit, timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            permits.release(limit);
+            return true;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for a file worker", e);
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package io.vantiq.ext.sftp;
+
+import org.springframework.integration.metadata.ConcurrentMetadataStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Metadata store shared by the connectors of a cluster through a properties file on a shared disk, the stand-in of a
+ * shared database, e.g. a {@code JdbcMetadataStore} or {@code RedisMetadataStore}, for tests and small clusters.
+ * <p>
+ * Each operation holds an exclusive lock on the {@code .lock} file next to it, which also keeps a version incremented
+ * on each update: the entries are read again only when another store updated them, and rewritten on each update.
+ * The stores of the same file in one JVM share a monitor, as the file lock is held by the JVM.
+ */
+public class SharedFileMetadataStore implements ConcurrentMetadataStore {
+
+    private static final Map<String, Object> MONITORS = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final File lockFile;
+    private final Object monitor;
+
+    private final Properties entries = new Properties();
+    /** version of the entries, -1 before they are read */
+    private long version = -1;
+
+    public SharedFileMetadataStore(File file) throws IOException {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        this.monitor = MONITORS.computeIfAbsent(file.getCanonicalPath(), path -> new Object());
+    }
+
+    /**
+     * Run an operation on the current entries, with the lock of the file.
+     *
+     * @param update    true if the operation may change the entries
+     * @param operation returns the result and whether the entries changed
+     */
+    private <T> T execute(boolean update, Function<Properties, Result<T>> operation) {
+        synchronized (monitor) {
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileLock lock = channel.lock(0, Long.MAX_VALUE, !update)) {
+                long current = readVersion(channel);
+                if (current != version) {
+                    load();
+                    version = current;
+                }
+                Result<T> result = operation.apply(entries);
+                if (result.changed) {
+                    store();
+                    version = current + 1;
+                    writeVersion(channel, version);
+                }
+                return result.value;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to access shared metadata store: " + file, e);
+            }
+        }
+    }
+
+    private static long readVersion(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        channel.read(buffer, 0);
+        return buffer.position() < Long.BYTES ? 0 : buffer.getLong(0);
+    }
+
+    private static void writeVersion(FileChannel channel, long version) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        buffer.putLong(0, version);
+        channel.write(buffer, 0);
+        channel.force(false);
+    }
+
+    private void load() throws IOException {
+        entries.clear();
+        if (file.exists()) {
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                entries.load(in);
+            }
+        }
+    }
+
+    private void store() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+            entries.store(out, null);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        execute(true, entries -> new Result<>(null, !value.equals(entries.setProperty(key, value))));
+    }
+
+    @Override
+    public String get(String key) {
+        return execute(false, entries -> new Result<>(entries.getProperty(key), false));
+    }
+
+    @Override
+    public String remove(String key) {
+        return execute(true, entries -> {
+            String previous = (String) entries.remove(key);
+            return new Result<>(previous, previous != null);
+        });
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value) {
+        return execute(true, entries -> {
+            String previous = (String) entries.putIfAbsent(key, value);
+            return new Result<>(previous, previous == null);
+        });
+    }
+
+    @Override
+    public boolean replace(String key, String oldValue, String newValue) {
+        return execute(true, entries -> {
+            if (!Objects.equals(entries.getProperty(key), oldValue)) {
+                return new Result<>(false, false);
+            }
+            entries.setProperty(key, newValue);
+            return new Result<>(true, true);
+        });
+    }
+
+    private static class Result<T> {
+
+        final T value;
+        final boolean changed;
+
+        Result(T value, boolean changed) {
+            this.value = value;
+            this.changed = changed;
+        }
+    }
+}
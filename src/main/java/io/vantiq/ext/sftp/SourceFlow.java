@@ -0,0 +1,119 @@
+package io.vantiq.ext.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The flow started by the config of a source, kept by the {@link SFTPConnector} to stop it when the source is
+ * reconfigured or closed. {@link #drain()} stops the poller, waits for the poll in progress, i.e. its file reached
+ * its end, however long it takes, then runs the drain steps added by the config handler, e.g. waiting for the file
+ * workers, sending the last batch and removing the registration of the flow.
+ * <p>
+ * The session pool is not closed by the drain: a new config with the same SFTP endpoint reuses its open sessions,
+ * see {@link #getEndpoint()}.
+ */
+public class SourceFlow {
+
+    static final Logger LOG = LoggerFactory.getLogger(SourceFlow.class);
+
+    private final String endpoint;
+    private final SftpSessionPool sessionPool;
+    private final StoppableTrigger poller;
+    private final long drainTimeout;
+    private final List<Runnable> drainSteps = new ArrayList<>();
+    /** not guarded by the drain, which may hold the lock for the drain timeout */
+    private final List<Runnable> pauseSteps = new CopyOnWriteArrayList<>();
+    private boolean drained;
+
+    /**
+     * @param endpoint      the SFTP endpoint and settings of the session pool, with a hash of the password
+     * @param sessionPool   the sessions of the flow
+     * @param poller        the trigger of the inbound adapter
+     * @param drainTimeout  milliseconds between the warnings while waiting for the poll in progress
+     */
+    public SourceFlow(String endpoint, SftpSessionPool sessionPool, StoppableTrigger poller, long drainTimeout) {
+        this.endpoint = endpoint;
+        this.sessionPool = sessionPool;
+        this.poller = poller;
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * Add a step run by the drain once the poller has stopped, the steps run in the order they were added.
+     */
+    public synchronized void onDrain(Runnable step) {
+        drainSteps.add(step);
+    }
+
+    /**
+     * Add a step run when the flow is paused, e.g. leaving the cluster so that the other nodes take over the files.
+     */
+    public void onPause(Runnable step) {
+        pauseSteps.add(step);
+    }
+
+    /**
+     * Stop polling, wait for the poll in progress and run the drain steps, only once.
+     */
+    public synchronized void drain() throws InterruptedException {
+        if (drained) {
+            return;
+        }
+        poller.stop();
+        // the rest of the file would be lost once the sender is closed and the registration removed
+        while (!poller.awaitIdle(drainTimeout)) {
+            LOG.warn("The poll of the flow is still in progress after {} ms, waiting for the end of its file",
+                    drainTimeout);
+        }
+        drained = true;
+        for (Runnable step : drainSteps) {
+            try {
+                step.run();
+            } catch (RuntimeException e) {
+                LOG.error("Failed to drain the flow", e);
+            }
+        }
+    }
+
+    /**
+     * Drain the flow and close its sessions.
+     */
+    public void close() throws InterruptedException {
+        try {
+            drain();
+        } finally {
+            sessionPool.destroy();
+        }
+    }
+
+    /**
+     * Stop polling without waiting, e.g. when the connection to VANTIQ is lost, the flow is drained by the next
+     * config.
+     */
+    public void pause() {
+        poller.stop();
+        for (Runnable step : pauseSteps) {
+            try {
+                step.run();
+            } catch (RuntimeException e) {
+                LOG.error("Failed to pause the flow", e);
+            }
+        }
+    }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public SftpSessionPool getSessionPool() {
+        return sessionPool;
+    }
+}
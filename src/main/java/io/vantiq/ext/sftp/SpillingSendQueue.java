@@ -0,0 +1,378 @@
+package io.vantiq.ext.sftp;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded send buffer of the notifications of a source. While VANTIQ is connected and keeps up, a notification is
+ * handed to the WebSocket right away, whose queue is the in-memory buffer, bounded to {@code bufferBytes}. When the
+ * queue is full or VANTIQ is disconnected, the notifications are appended to segment files in the spill directory
+ * instead, and from then on all of them until the spilled ones are replayed, so that they are sent in order:
+ * <pre>
+ * sendspool/segment-00000000000000000000.log
+ * sendspool/segment-00000000000000000001.log
+ * </pre>
+ * Each notification is its JSON length, 4 bytes, and its JSON. A segment is closed at {@code segmentBytes} and
+ * deleted once replayed. The replay thread starts when connected, sends the segments oldest first as fast as the
+ * WebSocket queue allows, and switches back to direct sends when it caught up.
+ * <p>
+ * The segments are kept on close, and replayed after a restart. A segment being replayed when the connection is
+ * lost again is replayed from its last sent notification, from its start after a restart. The notifications already
+ * queued in the WebSocket when the connection is lost are not recovered, VANTIQ does not acknowledge them.
+ */
+public class SpillingSendQueue implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(SpillingSendQueue.class);
+
+    /** OkHttp closes the WebSocket when more than 16 MiB are queued */
+    public static final long MAX_BUFFER_BYTES = 16L * 1024 * 1024;
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final int IO_BUFFER_SIZE = 65536;
+    private static final long MAX_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final TypeReference<Map<String, Object>> NOTIFICATION = new TypeReference<Map<String, Object>>() { };
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final File directory;
+    private final long bufferBytes;
+    private final long segmentBytes;
+    private final LongSupplier queuedBytes;
+    private final Consumer<Map<String, Object>> sink;
+    private final String name;
+
+    /** segments not replayed yet, oldest first, the last one may be the one written */
+    private final Deque<File> segments = new ArrayDeque<>();
+    private long nextSegment;
+    private File writeSegment;
+    private DataOutputStream writer;
+    private long writeSegmentBytes;
+    /** bytes of the oldest segment already replayed */
+    private long replayOffset;
+
+    private boolean connected;
+    private boolean spilling;
+    private boolean replaying;
+    private boolean closed;
+
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    /**
+     * @param directory     the spill directory, its segments from a previous run are replayed first
+     * @param bufferBytes   WebSocket queued bytes above which the notifications are spilled, at most half of
+     *                      {@link #MAX_BUFFER_BYTES}
+     * @param segmentBytes  bytes of a segment file before the next one is started
+     * @param queuedBytes   bytes queued in the WebSocket, see {@link SendBackpressure#webSocketQueueSize(Object)},
+     *                      null if unknown
+     * @param sink          sends a notification, e.g. with {@code ExtensionWebSocketClient.sendNotification}
+     * @param name          name of the source, for the logs and the replay thread
+     */
+    public SpillingSendQueue(File directory, long bufferBytes, long segmentBytes, LongSupplier queuedBytes,
+                             Consumer<Map<String, Object>> sink, String name) {
+        this.directory = directory;
+        if (bufferBytes > MAX_BUFFER_BYTES / 2) {
+            LOG.warn("Send buffer of {} bytes is too close to the WebSocket limit, use {}", bufferBytes,
+                    MAX_BUFFER_BYTES / 2);
+            bufferBytes = MAX_BUFFER_BYTES / 2;
+        }
+        this.bufferBytes = bufferBytes;
+        this.segmentBytes = segmentBytes;
+        this.queuedBytes = queuedBytes;
+        this.sink = sink;
+        this.name = name;
+
+        directory.mkdirs();
+        File[] files = directory.listFiles((dir, file) -> file.startsWith(PREFIX) && file.endsWith(SUFFIX));
+        if (files != null && files.length > 0) {
+            // the zero padded sequence numbers sort by name
+            Arrays.sort(files);
+            for (File file : files) {
+                segments.addLast(file);
+                pendingBytes.addAndGet(file.length());
+            }
+            String last = files[files.length - 1].getName();
+            nextSegment = Long.parseLong(last.substring(PREFIX.length(), last.length() - SUFFIX.length())) + 1;
+            spilling = true;
+            LOG.info("{}: {} spilled bytes in {} segments to replay", name, pendingBytes.get(), files.length);
+        }
+    }
+
+    /**
+     * Send a notification, or spill it. It is serialized before this returns, so it can be reused.
+     */
+    public synchronized void send(Map<String, Object> notification) {
+        if (closed) {
+            throw new IllegalStateException("Send queue of " + name + " is closed");
+        }
+        if (!spilling && connected && queued() < bufferBytes) {
+            try {
+                sink.accept(notification);
+                return;
+            } catch (RuntimeException e) {
+                LOG.warn("{}: failed to send notification, spill it: {}", name, e.toString());
+                connected = false;
+            }
+        }
+        spill(notification);
+    }
+
+    private void spill(Map<String, Object> notification) {
+        try {
+            byte[] bytes = mapper.writeValueAsBytes(notification);
+            if (writer == null || writeSegmentBytes >= segmentBytes) {
+                roll();
+            }
+            writer.writeInt(bytes.length);
+            writer.write(bytes);
+            // to the OS, a crash of the connector does not lose it
+            writer.flush();
+            writeSegmentBytes += Integer.BYTES + bytes.length;
+            pendingBytes.addAndGet(Integer.BYTES + bytes.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot spill notification to " + writeSegment, e);
+        }
+        spilled.incrementAndGet();
+        if (!spilling) {
+            spilling = true;
+            LOG.warn("{}: VANTIQ {}, spilling notifications to {}", name,
+                    connected ? "falls behind" : "is disconnected", directory);
+        }
+        startReplay();
+    }
+
+    private void roll() throws IOException {
+        closeWriter();
+        writeSegment = new File(directory, String.format("%s%020d%s", PREFIX, nextSegment++, SUFFIX));
+        writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(writeSegment, true),
+                IO_BUFFER_SIZE));
+        writeSegmentBytes = 0;
+        segments.addLast(writeSegment);
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close segment {}", writeSegment, e);
+        }
+        writer = null;
+        writeSegment = null;
+    }
+
+    private long queued() {
+        return queuedBytes == null ? 0 : queuedBytes.getAsLong();
+    }
+
+    /**
+     * The connection to VANTIQ succeeded, replay the spilled notifications.
+     */
+    public synchronized void connected() {
+        connected = true;
+        if (spilling) {
+            LOG.info("{}: connected, replaying {} spilled bytes", name, pendingBytes.get());
+        }
+        startReplay();
+    }
+
+    /**
+     * The connection to VANTIQ is lost, spill the next notifications.
+     */
+    public synchronized void disconnected() {
+        connected = false;
+    }
+
+    private void startReplay() {
+        if (replaying || closed || !connected || !spilling) {
+            return;
+        }
+        replaying = true;
+        Thread thread = new Thread(this::replay, "sftp-replay-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void replay() {
+        long start = System.nanoTime();
+        long count = replayed.get();
+        try {
+            while (true) {
+                File segment;
+                long offset;
+                synchronized (this) {
+                    if (!connected || closed) {
+                        replaying = false;
+                        return;
+                    }
+                    segment = segments.peekFirst();
+                    if (segment == null) {
+                        spilling = false;
+                        replaying = false;
+                        LOG.info("{}: replayed {} spilled notifications in {} ms", name, replayed.get() - count,
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        return;
+                    }
+                    if (segment.equals(writeSegment)) {
+                        // complete, the next spilled notification starts a new segment
+                        closeWriter();
+                    }
+                    offset = replayOffset;
+                }
+                if (replaySegment(segment, offset)) {
+                    synchronized (this) {
+                        segments.pollFirst();
+                        replayOffset = 0;
+                    }
+                    Files.deleteIfExists(segment.toPath());
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("{}: failed to replay the spilled notifications, retry on the next spill or connection", name,
+                    e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            replaying = false;
+        }
+    }
+
+    /**
+     * @return  true when the segment is replayed to its end, false when the connection is lost before
+     */
+    private boolean replaySegment(File segment, long offset) throws IOException, InterruptedException {
+        try (FileInputStream file = new FileInputStream(segment)) {
+            file.getChannel().position(offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, IO_BUFFER_SIZE));
+            long position = offset;
+            while (true) {
+                byte[] bytes;
+                try {
+                    bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    long rest = segment.length() - position;
+                    if (rest > 0) {
+                        // the connector stopped while writing it
+                        LOG.warn("{}: dropped truncated notification of {} bytes at the end of {}", name, rest,
+                                segment);
+                        pendingBytes.addAndGet(-rest);
+                    }
+                    return true;
+                }
+                if (!awaitRoom()) {
+                    return false;
+                }
+                try {
+                    sink.accept(mapper.readValue(bytes, NOTIFICATION));
+                } catch (RuntimeException e) {
+                    LOG.warn("{}: failed to replay notification, wait for the connection: {}", name, e.toString());
+                    disconnected();
+                    return false;
+                }
+                position += Integer.BYTES + bytes.length;
+                synchronized (this) {
+                    replayOffset = position;
+                }
+                pendingBytes.addAndGet(-(Integer.BYTES + bytes.length));
+                replayed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Wait until the WebSocket queue is below the buffer size.
+     *
+     * @return  false if the connection is lost or the queue closed meanwhile
+     */
+    private boolean awaitRoom() throws InterruptedException {
+        long pollNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        while (queued() >= bufferBytes) {
+            if (!isReplayable()) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(pollNanos);
+            pollNanos = Math.min(pollNanos * 2, MAX_POLL_NANOS);
+        }
+        return isReplayable();
+    }
+
+    private synchronized boolean isReplayable() {
+        return connected && !closed;
+    }
+
+    /**
+     * @return  true while the notifications are spilled, until the replay caught up
+     */
+    public synchronized boolean isSpilling() {
+        return spilling;
+    }
+
+    /**
+     * @return  true while the notifications go to the WebSocket, false while disconnected or spilling: waiting for the
+     *          WebSocket queue to drain is pointless then, see {@link SendBackpressure}
+     */
+    public synchronized boolean isDirect() {
+        return connected && !spilling;
+    }
+
+    /**
+     * @return  bytes of the segments not replayed yet
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * @return  notifications spilled since the start
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * @return  notifications replayed since the start
+     */
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * Stop the replay and close the segment written, the segments not replayed yet are replayed after a restart.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        closeWriter();
+        if (pendingBytes.get() > 0) {
+            LOG.info("{}: {} spilled bytes left to replay after a restart", name, pendingBytes.get());
+        }
+    }
+}
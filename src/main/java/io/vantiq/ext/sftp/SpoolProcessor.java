@@ -0,0 +1,304 @@
+package io.vantiq.ext.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Downloads the remote files to a local spool directory, then parses each spooled file in parallel: the file is
+ * split into regions on line boundaries, each region is memory mapped and its lines are handed to its own consumer
+ * on the executor. The network time of a file is separated from its parsing, which uses all the cores.
+ * <p>
+ * The spooled files use at most maxBytes of disk. A file which does not fit is not spooled, or, when it only
+ * turns out to be too large while downloading, it is continued as a stream, see {@link #download}.
+ */
+public class SpoolProcessor {
+
+    static final Logger LOG = LoggerFactory.getLogger(SpoolProcessor.class);
+
+    private static final String SUFFIX = ".spool";
+    /** largest region mapped at once */
+    private static final long MAX_REGION = 1 << 28;
+    /** a smaller file is parsed as one region */
+    private static final long MIN_SPLIT = 1 << 20;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final File directory;
+    private final long maxBytes;
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    /** bytes of the spooled files and of the files being downloaded */
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong fileNumber = new AtomicLong();
+
+    /**
+     * @param directory     the spool directory, the files left by a previous run are deleted
+     * @param maxBytes      maximum bytes of the spooled files
+     * @param executor      runs the regions of a file
+     * @param parallelism   number of regions of a file, usually the threads of the executor
+     */
+    public SpoolProcessor(File directory, long maxBytes, ExecutorService executor, int parallelism) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        directory.mkdirs();
+        File[] leftovers = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (!leftover.delete()) {
+                    LOG.warn("Failed to delete spooled file: {}", leftover);
+                }
+            }
+        }
+    }
+
+    /**
+     * Result of {@link #download}, either a spooled file or a stream to process instead.
+     */
+    public static class Download {
+
+        private final File file;
+        private final InputStream stream;
+
+        Download(File file, InputStream stream) {
+            this.file = file;
+            this.stream = stream;
+        }
+
+        /**
+         * @return  the spooled file, null if the file did not fit in the spool
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return  the stream of the whole file when it is not spooled
+         */
+        public InputStream getStream() {
+            return stream;
+        }
+    }
+
+    /**
+     * Download a file to the spool. A file larger than the free space is not spooled, its stream is returned.
+     * When the free space is exceeded while downloading, the returned stream reads the downloaded part and then
+     * the rest of the remote stream, the downloaded part is deleted when it is closed.
+     *
+     * @param in            the remote stream, closed when the file is spooled
+     * @param expectedSize  expected size of the file, at least 0
+     */
+    public Download download(InputStream in, long expectedSize) throws IOException {
+        if (!reserve(expectedSize)) {
+            LOG.debug("Spool full, process the file of {} bytes as a stream", expectedSize);
+            return new Download(null, in);
+        }
+        long reserved = expectedSize;
+        File file = new File(directory, fileNumber.incrementAndGet() + SUFFIX);
+        long written = 0;
+        try (OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                if (written + n > reserved) {
+                    long more = Math.max(n, reserved / 2);
+                    if (!reserve(more)) {
+                        out.close();
+                        // the spooled part keeps its size reserved until it is closed
+                        usedBytes.addAndGet(written - reserved);
+                        LOG.debug("Spool full after {} bytes, continue the file as a stream", written);
+                        return new Download(null, new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                                new SpooledPart(file), new ByteArrayInputStream(buffer, 0, n), in))));
+                    }
+                    reserved += more;
+                }
+                out.write(buffer, 0, n);
+                written += n;
+            }
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            usedBytes.addAndGet(-reserved);
+            throw e;
+        }
+        usedBytes.addAndGet(written - reserved);
+        in.close();
+        return new Download(file, null);
+    }
+
+    private boolean reserve(long bytes) {
+        long used;
+        do {
+            used = usedBytes.get();
+            if (used + bytes > maxBytes) {
+                return false;
+            }
+        } while (!usedBytes.compareAndSet(used, used + bytes));
+        return true;
+    }
+
+    /**
+     * Delete a spooled file and free its space.
+     */
+    public void delete(File file) {
+        long length = file.length();
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Failed to delete spooled file: {}", file);
+            return;
+        }
+        usedBytes.addAndGet(-length);
+    }
+
+    /**
+     * Parse a spooled file in parallel. The lines are ASCII views on the mapped file, without the line terminator,
+     * a region's lines are handed in order to the consumer of the region, on one executor thread.
+     *
+     * @param file      the spooled file
+     * @param consumers called on this thread, creates the consumer of each region
+     * @return  number of lines
+     */
+    public long forEachLine(File file, Supplier<Consumer<CharSequence>> consumers) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] bounds = regionBounds(channel);
+            List<Future<Long>> futures = new ArrayList<>(bounds.length - 1);
+            for (int i = 0; i < bounds.length - 1; i++) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, bounds[i],
+                        bounds[i + 1] - bounds[i]);
+                Consumer<CharSequence> consumer = consumers.get();
+                futures.add(executor.submit(() -> forEachLine(region, consumer)));
+            }
+            long lines = 0;
+            IOException error = null;
+            for (Future<Long> future : futures) {
+                try {
+                    lines += future.get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = new IOException("Failed to process spooled file: " + file, e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while processing spooled file: " + file, e);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * @return  the start offsets of the regions, each region starts at a line, and the file size
+     */
+    long[] regionBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int regions = size < MIN_SPLIT ? 1 : (int) Math.max(parallelism, (size + MAX_REGION - 1) / MAX_REGION);
+        List<Long> bounds = new ArrayList<>(regions + 1);
+        bounds.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (int i = 1; i < regions; i++) {
+            long position = Math.max(size / regions * i, bounds.get(bounds.size() - 1));
+            // move to the start of the next line
+            long lineStart = -1;
+            while (lineStart < 0 && position < size) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                for (int j = 0; j < n; j++) {
+                    if (buffer.get(j) == '\n') {
+                        lineStart = position + j + 1;
+                        break;
+                    }
+                }
+                position += n;
+            }
+            if (lineStart < 0 || lineStart >= size) {
+                break;
+            }
+            if (lineStart - bounds.get(bounds.size() - 1) > MAX_REGION) {
+                throw new IOException("Line longer than " + MAX_REGION + " bytes");
+            }
+            bounds.add(lineStart);
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static long forEachLine(ByteBuffer region, Consumer<CharSequence> consumer) {
+        int limit = region.limit();
+        int lineStart = 0;
+        long lines = 0;
+        for (int i = 0; i < limit; i++) {
+            if (region.get(i) == '\n') {
+                int end = i > lineStart && region.get(i - 1) == '\r' ? i - 1 : i;
+                consumer.accept(new AsciiCharSequence(region, lineStart, end - lineStart));
+                lines++;
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < limit) {
+            // the last line without terminator
+            int end = region.get(limit - 1) == '\r' ? limit - 1 : limit;
+            consumer.accept(new AsciiCharSequence(region, lineStart, end - lineStart));
+            lines++;
+        }
+        return lines;
+    }
+
+    /**
+     * @return  bytes of the spooled files and of the files being downloaded
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * The downloaded part of a file continued as a stream, deleted when closed.
+     */
+    private class SpooledPart extends FilterInputStream {
+
+        private final File file;
+
+        SpooledPart(File file) throws IOException {
+            super(new FileInputStream(file));
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                delete(file);
+            }
+        }
+    }
+}
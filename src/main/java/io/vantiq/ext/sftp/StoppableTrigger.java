@@ -0,0 +1,97 @@
+package io.vantiq.ext.sftp;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.TriggerContext;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trigger of a poller which can be stopped without interrupting the poll in progress, unlike stopping the polling
+ * endpoint. Once stopped, no poll is scheduled and the polls already scheduled are skipped, see
+ * {@link #pollAdvice()}, the one in progress completes.
+ * <p>
+ * With a direct channel, a poll returns when its file reached its end, so no poll in progress means no file in
+ * progress on the poller thread.
+ */
+public class StoppableTrigger implements Trigger {
+
+    private final Trigger trigger;
+    private boolean stopping;
+    /** polls in progress */
+    private int polls;
+
+    public StoppableTrigger(Trigger trigger) {
+        this.trigger = trigger;
+    }
+
+    @Override
+    public Date nextExecutionTime(TriggerContext triggerContext) {
+        if (isStopping()) {
+            return null;
+        }
+        return trigger.nextExecutionTime(triggerContext);
+    }
+
+    /**
+     * @return  the advice of the poller, around each message polled and sent to the flow
+     */
+    public MethodInterceptor pollAdvice() {
+        return invocation -> {
+            if (!startPoll()) {
+                // no message, the poll ends
+                return null;
+            }
+            try {
+                return invocation.proceed();
+            } finally {
+                endPoll();
+            }
+        };
+    }
+
+    /**
+     * @return  false if stopped, the poll is skipped
+     */
+    public synchronized boolean startPoll() {
+        if (stopping) {
+            return false;
+        }
+        polls++;
+        return true;
+    }
+
+    public synchronized void endPoll() {
+        polls--;
+        notifyAll();
+    }
+
+    /**
+     * Schedule no more polls.
+     */
+    public synchronized void stop() {
+        stopping = true;
+    }
+
+    public synchronized boolean isStopping() {
+        return stopping;
+    }
+
+    /**
+     * Wait until no poll is in progress, returns right away when idle. No poll starts once stopped.
+     *
+     * @return  false if a poll is still in progress after the timeout
+     */
+    public synchronized boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (polls > 0) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,171 @@
+package io.vantiq.ext.sftp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Thread safe {@link DeviceStateStore}. Devices are spread by deviceId hash over a fixed number of stripes, each
+ * one a plain store guarded by its own lock, so concurrent pipelines only contend when they update devices of the
+ * same stripe.
+ *
+ * Iteration returns a snapshot copy, stripe by stripe, so it is not in first seen order across stripes.
+ */
+public class StripedDeviceStateStore implements DeviceStateStore {
+
+    private final DeviceStateStore[] stripes;
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * Create with 4 stripes per available processor.
+     *
+     * @param storeFactory  creates the non thread safe store of each stripe
+     */
+    public StripedDeviceStateStore(Supplier<DeviceStateStore> storeFactory) {
+        this(Runtime.getRuntime().availableProcessors() * 4, storeFactory);
+    }
+
+    /**
+     * @param stripeCount   number of stripes, rounded up to a power of 2
+     * @param storeFactory  creates the non thread safe store of each stripe
+     */
+    public StripedDeviceStateStore(int stripeCount, Supplier<DeviceStateStore> storeFactory) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount * 2 - 1));
+        stripes = new DeviceStateStore[size];
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = storeFactory.get();
+            locks[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    private int stripeOf(int hash) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Hash of a deviceId for the stripe. The leading zeros of a numeric id are skipped, the compact store exports
+     * "000123" as "123", so the update of a record and the merge of an exported state pick the same stripe.
+     */
+    static int stripeHash(CharSequence deviceId, int length) {
+        int hash = 0;
+        int numericHash = 0;
+        boolean numeric = true;
+        boolean significant = false;
+        for (int i = 0; i < length; i++) {
+            char c = deviceId.charAt(i);
+            hash = 31 * hash + c;
+            if (c < '0' || c > '9') {
+                numeric = false;
+            } else if (significant || c != '0') {
+                significant = true;
+                numericHash = 31 * numericHash + c;
+            }
+        }
+        return numeric ? numericHash : hash;
+    }
+
+    @Override
+    public void update(MeterRecord record) {
+        int stripe = stripeOf(stripeHash(record.getLine(), record.getDeviceIdLength()));
+        ReentrantLock lock = locks[stripe];
+        lock.lock();
+        try {
+            stripes[stripe].update(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void merge(DeviceState state) {
+        String deviceId = state.getDeviceId();
+        int stripe = stripeOf(stripeHash(deviceId, deviceId.length()));
+        ReentrantLock lock = locks[stripe];
+        lock.lock();
+        try {
+            stripes[stripe].merge(state);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Each stripe is drained under its lock.
+     */
+    @Override
+    public void drainChanged(Consumer<DeviceState> consumer) {
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                stripes[i].drainChanged(consumer);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                size += stripes[i].size();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int getFileDeviceCount() {
+        int count = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                count += stripes[i].getFileDeviceCount();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void endFile() {
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                stripes[i].endFile();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * @return  iterator over a snapshot of copied states, each stripe is copied under its lock
+     */
+    @Override
+    public Iterator<DeviceState> iterator() {
+        List<DeviceState> snapshot = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                for (DeviceState state : stripes[i]) {
+                    snapshot.add(state.copy());
+                }
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return snapshot.iterator();
+    }
+}
@@ -0,0 +1,294 @@
+package io.vantiq.ext.sftp;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * {@link DeviceStateStore} aggregating each device by tumbling window of event time, e.g. hourly or daily, instead
+ * of over all its readings. Each window has its own store, keyed by the window start in seconds of the reading's
+ * date time, which is taken as is without time zone like {@link RecordTokenizer#packedToEpochSecond}.
+ * <p>
+ * The watermark is the latest reading time seen minus the allowed lateness. A window ending at or before the
+ * watermark is closed, it is removed by {@link #pollClosedWindows()} to be emitted, and the later readings of a
+ * polled window are dropped and counted as late. A store which is never polled, e.g. the state of one file merged
+ * into the total state at its end, keeps all its windows.
+ * <p>
+ * All methods are synchronized, the store of each window is a plain store from the factory.
+ */
+public class WindowedDeviceStateStore implements DeviceStateStore {
+
+    public static final long HOURLY = 3600;
+    public static final long DAILY = 86400;
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final long windowSeconds;
+    private final long latenessSeconds;
+    private final Supplier<DeviceStateStore> storeFactory;
+
+    /** store by window start */
+    private final TreeMap<Long, DeviceStateStore> windows = new TreeMap<>();
+    private long maxEventSecond = Long.MIN_VALUE;
+    /** end of the last polled window, earlier readings are late */
+    private long closedUntil = Long.MIN_VALUE;
+    private long lateRecords;
+
+    /**
+     * @param windowSeconds     window size, e.g. {@link #HOURLY} or {@link #DAILY}
+     * @param latenessSeconds   how long a window stays open after its end for out of order readings
+     * @param storeFactory      creates the store of each window
+     */
+    public WindowedDeviceStateStore(long windowSeconds, long latenessSeconds, Supplier<DeviceStateStore> storeFactory) {
+        this.windowSeconds = windowSeconds;
+        this.latenessSeconds = latenessSeconds;
+        this.storeFactory = storeFactory;
+    }
+
+    /**
+     * One tumbling window and the aggregates of its devices.
+     */
+    public static class Window {
+
+        private final long start;
+        private final long end;
+        private final DeviceStateStore states;
+
+        Window(long start, long end, DeviceStateStore states) {
+            this.start = start;
+            this.end = end;
+            this.states = states;
+        }
+
+        /**
+         * @return  the start of the window in "yyyy-MM-dd HH:mm:ss", inclusive
+         */
+        public String getStart() {
+            return format(start);
+        }
+
+        /**
+         * @return  the end of the window in "yyyy-MM-dd HH:mm:ss", exclusive
+         */
+        public String getEnd() {
+            return format(end);
+        }
+
+        public DeviceStateStore getStates() {
+            return states;
+        }
+    }
+
+    private long windowOf(long second) {
+        return Math.floorDiv(second, windowSeconds) * windowSeconds;
+    }
+
+    /**
+     * @return  the store of the window, null if it is closed
+     */
+    private DeviceStateStore windowStore(long second) {
+        if (second < closedUntil) {
+            return null;
+        }
+        if (second > maxEventSecond) {
+            maxEventSecond = second;
+        }
+        return windows.computeIfAbsent(windowOf(second), w -> storeFactory.get());
+    }
+
+    @Override
+    public synchronized void update(MeterRecord record) {
+        DeviceStateStore store = windowStore(RecordTokenizer.packedToEpochSecond(record.getPackedDateTime()));
+        if (store == null) {
+            lateRecords++;
+            return;
+        }
+        store.update(record);
+    }
+
+    /**
+     * Merge the windows of another windowed store window by window, or the states of another store into the window
+     * of their readings.
+     */
+    @Override
+    public void merge(DeviceStateStore other) {
+        if (!(other instanceof WindowedDeviceStateStore)) {
+            DeviceStateStore.super.merge(other);
+            return;
+        }
+        WindowedDeviceStateStore windowed = (WindowedDeviceStateStore) other;
+        Map<Long, DeviceStateStore> otherWindows;
+        long otherMaxEventSecond;
+        synchronized (windowed) {
+            otherWindows = new TreeMap<>(windowed.windows);
+            otherMaxEventSecond = windowed.maxEventSecond;
+        }
+        synchronized (this) {
+            for (Map.Entry<Long, DeviceStateStore> entry : otherWindows.entrySet()) {
+                long start = entry.getKey();
+                if (start + windowSeconds <= closedUntil) {
+                    lateRecords += countReadings(entry.getValue());
+                    continue;
+                }
+                windows.computeIfAbsent(start, w -> storeFactory.get()).merge(entry.getValue());
+            }
+            maxEventSecond = Math.max(maxEventSecond, otherMaxEventSecond);
+        }
+    }
+
+    /**
+     * The state is merged into the window of its min or max time, which are in the same window when the state is
+     * one of a windowed store.
+     */
+    @Override
+    public synchronized void merge(DeviceState state) {
+        String time = state.getMinTime() != null ? state.getMinTime() : state.getMaxTime();
+        if (time == null) {
+            time = state.getDate();
+        }
+        long second = RecordTokenizer.packedToEpochSecond(RecordTokenizer.parsePackedDateTime(time, 0, time.length()));
+        DeviceStateStore store = windowStore(second);
+        if (store == null) {
+            lateRecords += state.getCount();
+            return;
+        }
+        store.merge(state);
+    }
+
+    private static long countReadings(DeviceStateStore store) {
+        long count = 0;
+        for (DeviceState state : store) {
+            count += state.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return  true if a window ends at or before the watermark
+     */
+    public synchronized boolean hasClosedWindows() {
+        return !windows.isEmpty() && windows.firstKey() + windowSeconds <= getWatermark();
+    }
+
+    /**
+     * Remove the windows ending at or before the watermark, their later readings are dropped as late.
+     *
+     * @return  the closed windows, oldest first
+     */
+    public synchronized List<Window> pollClosedWindows() {
+        List<Window> closed = new ArrayList<>();
+        long watermark = getWatermark();
+        while (!windows.isEmpty() && windows.firstKey() + windowSeconds <= watermark) {
+            Map.Entry<Long, DeviceStateStore> first = windows.pollFirstEntry();
+            long end = first.getKey() + windowSeconds;
+            closed.add(new Window(first.getKey(), end, first.getValue()));
+            closedUntil = Math.max(closedUntil, end);
+        }
+        return closed;
+    }
+
+    /**
+     * Remove all the windows, open ones included, e.g. when the source stops: the store is not used afterwards and
+     * its open windows would be lost. The later readings of the removed windows are dropped as late.
+     *
+     * @return  the windows, oldest first
+     */
+    public synchronized List<Window> pollAllWindows() {
+        List<Window> all = new ArrayList<>();
+        while (!windows.isEmpty()) {
+            Map.Entry<Long, DeviceStateStore> first = windows.pollFirstEntry();
+            long end = first.getKey() + windowSeconds;
+            all.add(new Window(first.getKey(), end, first.getValue()));
+            closedUntil = Math.max(closedUntil, end);
+        }
+        return all;
+    }
+
+    /**
+     * @return  the latest reading time seen minus the lateness, in seconds
+     */
+    public synchronized long getWatermark() {
+        return maxEventSecond == Long.MIN_VALUE ? Long.MIN_VALUE : maxEventSecond - latenessSeconds;
+    }
+
+    /**
+     * @return  readings dropped because their window was closed
+     */
+    public synchronized long getLateRecords() {
+        return lateRecords;
+    }
+
+    /**
+     * @return  number of open windows
+     */
+    public synchronized int getWindowCount() {
+        return windows.size();
+    }
+
+    /**
+     * Drains the open windows, oldest first. The devices changed in a window closed since the last call are only in
+     * the closed window.
+     */
+    @Override
+    public synchronized void drainChanged(Consumer<DeviceState> consumer) {
+        for (DeviceStateStore store : windows.values()) {
+            store.drainChanged(consumer);
+        }
+    }
+
+    /**
+     * @return  number of device windows
+     */
+    @Override
+    public synchronized int size() {
+        int size = 0;
+        for (DeviceStateStore store : windows.values()) {
+            size += store.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return  number of device windows updated since the last {@link #endFile()}
+     */
+    @Override
+    public synchronized int getFileDeviceCount() {
+        int count = 0;
+        for (DeviceStateStore store : windows.values()) {
+            count += store.getFileDeviceCount();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void endFile() {
+        for (DeviceStateStore store : windows.values()) {
+            store.endFile();
+        }
+    }
+
+    /**
+     * @return  iterator over a snapshot of copied states of the open windows, oldest window first
+     */
+    @Override
+    public synchronized Iterator<DeviceState> iterator() {
+        List<DeviceState> snapshot = new ArrayList<>();
+        for (DeviceStateStore store : windows.values()) {
+            for (DeviceState state : store) {
+                snapshot.add(state.copy());
+            }
+        }
+        return snapshot.iterator();
+    }
+
+    private static String format(long second) {
+        return LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC).format(FORMAT);
+    }
+}
@@ -3,14 +3,23 @@ package io.vantiq.ext.sftp.handler;
 import io.vantiq.extjsdk.ExtensionWebSocketClient;
 import io.vantiq.extjsdk.Handler;
 import io.vantiq.ext.sftp.SFTPConnector;
+import io.vantiq.ext.sftp.SourceFlow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handles the loss of the WebSocket connection to VANTIQ: the notifications are spilled to disk, the flow stops
+ * polling new files, and the connection is restarted on a separate thread until it succeeds. VANTIQ then sends the
+ * config again and {@link ConfigHandler} drains the paused flow and starts a new one, with the same sessions.
+ */
 public class CloseHandler extends Handler<ExtensionWebSocketClient> {
 
     static final Logger LOG = LoggerFactory.getLogger(CloseHandler.class);
 
     private SFTPConnector connector;
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
 
     public CloseHandler(SFTPConnector connector) {
         this.connector = connector;
@@ -18,27 +27,28 @@ public class CloseHandler extends Handler<ExtensionWebSocketClient> {
 
     @Override
     public void handleMessage(ExtensionWebSocketClient client) {
-
-        LOG.info("Close handler: {}", client);
-//        SimpleMessageListenerContainer listener = this.connector.getMqListener();
-//        listener.stop();
-//        LOG.info("Stopped listener container:{}", listener);
-//        connector.getSessionFactory().destroy();
-
-        // reconnect
-//        boolean sourcesSucceeded = false;
-//        while (!sourcesSucceeded) {
-//            client.initiateFullConnection(connector.getVantiqUrl(), connector.getVantiqToken());
-//            sourcesSucceeded = connector.checkConnectionFails(client, CONNECTOR_CONNECT_TIMEOUT);
-//            if (!sourcesSucceeded) {
-//                try {
-//                    Thread.sleep(RECONNECT_INTERVAL);
-//                } catch (InterruptedException e) {
-//                    LOG.error("An error occurred when trying to sleep the current thread. Error Message: ", e);
-//                }
-//            }
-//        }
-
-
+        if (connector.isClosed()) {
+            LOG.info("Closed source: {}", connector.getSourceName());
+            return;
+        }
+        // the files in progress are spilled until the connection is back
+        connector.getSendQueue().disconnected();
+        SourceFlow flow = connector.getFlow();
+        if (flow != null) {
+            flow.pause();
+        }
+        if (!reconnecting.compareAndSet(false, true)) {
+            return;
+        }
+        LOG.warn("Connection lost for source: {}, reconnecting", connector.getSourceName());
+        Thread reconnect = new Thread(() -> {
+            try {
+                connector.connectWithRetry();
+            } finally {
+                reconnecting.set(false);
+            }
+        }, "sftp-reconnect-" + connector.getSourceName());
+        reconnect.setDaemon(true);
+        reconnect.start();
     }
 }
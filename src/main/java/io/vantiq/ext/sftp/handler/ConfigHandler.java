@@ -1,43 +1,96 @@
 package io.vantiq.ext.sftp.handler;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.dataformat.csv.CsvMapper;
-import com.fasterxml.jackson.dataformat.csv.CsvParser;
-import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import io.github.resilience4j.ratelimiter.RateLimiter;
 import io.github.resilience4j.ratelimiter.RateLimiterConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.vantiq.ext.sftp.ArrayDeviceStateStore;
+import io.vantiq.ext.sftp.BatchEncoder;
+import io.vantiq.ext.sftp.BatchingSender;
+import io.vantiq.ext.sftp.ClusterMembership;
+import io.vantiq.ext.sftp.ColumnarBatchEncoder;
 import io.vantiq.ext.sftp.DeviceState;
+import io.vantiq.ext.sftp.Decompression;
+import io.vantiq.ext.sftp.DeviceStateStore;
+import io.vantiq.ext.sftp.FileCheckpointStore;
+import io.vantiq.ext.sftp.FileProgress;
+import io.vantiq.ext.sftp.LogMetadataStore;
+import io.vantiq.ext.sftp.LogSampler;
+import io.vantiq.ext.sftp.MapDeviceStateStore;
+import io.vantiq.ext.sftp.MeterRecord;
+import io.vantiq.ext.sftp.ParseErrorLog;
+import io.vantiq.ext.sftp.PipelineMetrics;
+import io.vantiq.ext.sftp.ReadAheadInputStream;
+import io.vantiq.ext.sftp.RecordTokenizer;
+import io.vantiq.ext.sftp.RecursiveSftpRemoteFileTemplate;
+import io.vantiq.ext.sftp.ResultExporter;
+import io.vantiq.ext.sftp.RowBatchEncoder;
 import io.vantiq.ext.sftp.SFTPConnector;
+import io.vantiq.ext.sftp.SendBackpressure;
+import io.vantiq.ext.sftp.SharedExecutors;
+import io.vantiq.ext.sftp.SharedFileMetadataStore;
+import io.vantiq.ext.sftp.SourceFlow;
+import io.vantiq.ext.sftp.SftpSessionPool;
+import io.vantiq.ext.sftp.SpillingSendQueue;
+import io.vantiq.ext.sftp.SpoolProcessor;
+import io.vantiq.ext.sftp.StoppableTrigger;
+import io.vantiq.ext.sftp.StripedDeviceStateStore;
+import io.vantiq.ext.sftp.WindowedDeviceStateStore;
 import io.vantiq.extjsdk.ExtensionServiceMessage;
+import io.vantiq.extjsdk.ExtensionWebSocketClient;
 import io.vantiq.extjsdk.Handler;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.integration.aggregator.SimpleSequenceSizeReleaseStrategy;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.integration.channel.AbstractMessageChannel;
+import org.springframework.integration.channel.DirectChannel;
+import org.springframework.integration.channel.ExecutorChannel;
+import org.springframework.integration.dsl.IntegrationFlowBuilder;
 import org.springframework.integration.dsl.IntegrationFlows;
+import org.springframework.integration.dsl.PollerSpec;
 import org.springframework.integration.dsl.Pollers;
 import org.springframework.integration.dsl.StandardIntegrationFlow;
+import org.springframework.integration.file.FileHeaders;
 import org.springframework.integration.file.dsl.Files;
 import org.springframework.integration.file.filters.CompositeFileListFilter;
-import org.springframework.integration.file.remote.session.CachingSessionFactory;
+import org.springframework.integration.file.filters.FileListFilter;
+import org.springframework.integration.file.remote.session.Session;
+import org.springframework.integration.file.remote.session.SessionFactory;
 import org.springframework.integration.file.splitter.FileSplitter;
-import org.springframework.integration.handler.advice.RateLimiterRequestHandlerAdvice;
+import org.springframework.integration.metadata.ConcurrentMetadataStore;
 import org.springframework.integration.metadata.PropertiesPersistingMetadataStore;
 import org.springframework.integration.sftp.dsl.Sftp;
 import org.springframework.integration.sftp.filters.SftpPersistentAcceptOnceFileListFilter;
 import org.springframework.integration.sftp.filters.SftpRegexPatternFileListFilter;
 import org.springframework.integration.sftp.session.DefaultSftpSessionFactory;
 import org.springframework.integration.sftp.session.SftpRemoteFileTemplate;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.scheduling.support.PeriodicTrigger;
 import org.springframework.util.StringUtils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 public class ConfigHandler extends Handler<ExtensionServiceMessage> {
 
@@ -53,7 +106,73 @@ public class ConfigHandler extends Handler<ExtensionServiceMessage> {
     private static final String FETCH_INTERVAL = "fetch_interval";
     private static final String RATE_LIMIT = "rate_limit";
     private static final String PACKAGE_SIZE = "package_size";
+    private static final String PACKAGE_BYTES = "package_bytes";
+    private static final String PACKAGE_LINGER = "package_linger";
     private static final String OUTPUT_RESULT = "output_result";
+    private static final String OUTPUT_INTERVAL = "output_interval";
+    private static final String AGGREGATION_MODE = "aggregation_mode";
+    private static final String PARALLEL_FILES = "parallel_files";
+    private static final String SEND_MODE = "send_mode";
+    private static final String SEND_QUEUE_BYTES = "send_queue_bytes";
+    private static final String SEND_QUEUE_TIMEOUT = "send_queue_timeout";
+    private static final String PAYLOAD_FORMAT = "payload_format";
+    private static final String CHECKPOINT_LINES = "checkpoint_lines";
+    private static final String METADATA_STORE = "metadata_store";
+    private static final String RECURSIVE = "recursive";
+    private static final String SESSION_POOL_SIZE = "session_pool_size";
+    private static final String SESSION_WAIT_TIMEOUT = "session_wait_timeout";
+    private static final String SESSION_VALIDATION_INTERVAL = "session_validation_interval";
+    private static final String READ_AHEAD_DEPTH = "read_ahead_depth";
+    private static final String READ_AHEAD_CHUNK_SIZE = "read_ahead_chunk_size";
+    private static final String PROCESSING_MODE = "processing_mode";
+    private static final String SPOOL_MAX_BYTES = "spool_max_bytes";
+    private static final String SPOOL_THREADS = "spool_threads";
+    private static final String WINDOW = "window";
+    private static final String WINDOW_LATENESS = "window_lateness";
+    private static final String LOG_INTERVAL = "log_interval";
+    private static final String LOG_ERROR_SAMPLES = "log_error_samples";
+    private static final String DRAIN_TIMEOUT = "drain_timeout";
+    private static final String CLUSTER = "cluster";
+    private static final String CLUSTER_NODE = "cluster_node";
+    private static final String CLUSTER_STORE = "cluster_store";
+    private static final String CLUSTER_STORE_FILE = "cluster_store_file";
+    private static final String CLUSTER_HEARTBEAT = "cluster_heartbeat";
+    private static final String CLUSTER_NODE_TIMEOUT = "cluster_node_timeout";
+
+    /** header of a resumed file, the {@link FileProgress} restored from its checkpoint */
+    private static final String FILE_PROGRESS_HEADER = "sftp_fileProgress";
+
+    private static final String AGGREGATION_MODE_DECIMAL = "decimal";
+    private static final String AGGREGATION_MODE_FIXED = "fixed";
+    private static final String AGGREGATION_MODE_COMPACT = "compact";
+
+    private static final String SEND_MODE_RATE_LIMIT = "rate_limit";
+    private static final String SEND_MODE_ADAPTIVE = "adaptive";
+
+    private static final String PAYLOAD_FORMAT_ROWS = "rows";
+    private static final String PAYLOAD_FORMAT_COLUMNAR = "columnar";
+
+    private static final String PROCESSING_MODE_STREAM = "stream";
+    private static final String PROCESSING_MODE_SPOOL = "spool";
+
+    private static final String OUTPUT_RESULT_CSV = "csv";
+    private static final String OUTPUT_RESULT_VANTIQ = "vantiq";
+
+    /** devices per notification of the changed device states */
+    private static final int OUTPUT_BATCH_SIZE = 1000;
+
+    private static final String WINDOW_NONE = "none";
+    private static final String WINDOW_HOURLY = "hourly";
+    private static final String WINDOW_DAILY = "daily";
+
+    /** devices per notification of a closed window */
+    private static final int WINDOW_BATCH_SIZE = 1000;
+
+    private static final String METADATA_STORE_PROPERTIES = "properties";
+    private static final String METADATA_STORE_LOG = "log";
+
+    private static final String CLUSTER_STORE_FILE_TYPE = "file";
+    private static final String CLUSTER_STORE_BEAN = "bean";
 
     private SFTPConnector connector;
 
@@ -94,8 +213,129 @@ public class ConfigHandler extends Handler<ExtensionServiceMessage> {
         final int rateLimit = Integer.parseInt(rateLimitStr);
         String packageSizeStr = topicConfig.getOrDefault(PACKAGE_SIZE, "10");
         final int packageSize = Integer.parseInt(packageSizeStr);
+        String packageBytesStr = topicConfig.getOrDefault(PACKAGE_BYTES, "524288");
+        final int packageBytes = Integer.parseInt(packageBytesStr);
+        String packageLingerStr = topicConfig.getOrDefault(PACKAGE_LINGER, "10");
+        final int packageLinger = Integer.parseInt(packageLingerStr);
 
-        boolean outputResult = Boolean.parseBoolean(topicConfig.get(OUTPUT_RESULT));
+        String outputResult = topicConfig.getOrDefault(OUTPUT_RESULT, "false");
+        // true, the value of the versions rewriting the whole result.csv, is csv
+        final boolean outputCsv = OUTPUT_RESULT_CSV.equals(outputResult) || Boolean.parseBoolean(outputResult);
+        final boolean outputVantiq = OUTPUT_RESULT_VANTIQ.equals(outputResult);
+        String outputIntervalStr = topicConfig.getOrDefault(OUTPUT_INTERVAL, "60000");
+        final long outputInterval = Long.parseLong(outputIntervalStr);
+        final boolean recursive = Boolean.parseBoolean(topicConfig.get(RECURSIVE));
+        String sessionPoolSizeStr = topicConfig.getOrDefault(SESSION_POOL_SIZE, "10");
+        final int sessionPoolSize = Integer.parseInt(sessionPoolSizeStr);
+        String sessionWaitTimeoutStr = topicConfig.getOrDefault(SESSION_WAIT_TIMEOUT, "30000");
+        final long sessionWaitTimeout = Long.parseLong(sessionWaitTimeoutStr);
+        String sessionValidationIntervalStr = topicConfig.getOrDefault(SESSION_VALIDATION_INTERVAL, "30000");
+        final long sessionValidationInterval = Long.parseLong(sessionValidationIntervalStr);
+        String readAheadDepthStr = topicConfig.getOrDefault(READ_AHEAD_DEPTH, "0");
+        final int readAheadDepth = Integer.parseInt(readAheadDepthStr);
+        String readAheadChunkSizeStr = topicConfig.getOrDefault(READ_AHEAD_CHUNK_SIZE, "262144");
+        final int readAheadChunkSize = Integer.parseInt(readAheadChunkSizeStr);
+        String sendMode = topicConfig.getOrDefault(SEND_MODE, SEND_MODE_RATE_LIMIT);
+        if (!SEND_MODE_RATE_LIMIT.equals(sendMode) && !SEND_MODE_ADAPTIVE.equals(sendMode)) {
+            LOG.error("Unknown send mode: {}, should be '{}' or '{}'.", sendMode, SEND_MODE_RATE_LIMIT,
+                    SEND_MODE_ADAPTIVE);
+            return;
+        }
+        String sendQueueBytesStr = topicConfig.getOrDefault(SEND_QUEUE_BYTES, "4194304");
+        final long sendQueueBytes = Long.parseLong(sendQueueBytesStr);
+        String sendQueueTimeoutStr = topicConfig.getOrDefault(SEND_QUEUE_TIMEOUT, "30000");
+        final long sendQueueTimeout = Long.parseLong(sendQueueTimeoutStr);
+        String payloadFormat = topicConfig.getOrDefault(PAYLOAD_FORMAT, PAYLOAD_FORMAT_ROWS);
+        if (!PAYLOAD_FORMAT_ROWS.equals(payloadFormat) && !PAYLOAD_FORMAT_COLUMNAR.equals(payloadFormat)) {
+            LOG.error("Unknown payload format: {}, should be '{}' or '{}'.", payloadFormat, PAYLOAD_FORMAT_ROWS,
+                    PAYLOAD_FORMAT_COLUMNAR);
+            return;
+        }
+        String processingMode = topicConfig.getOrDefault(PROCESSING_MODE, PROCESSING_MODE_STREAM);
+        if (!PROCESSING_MODE_STREAM.equals(processingMode) && !PROCESSING_MODE_SPOOL.equals(processingMode)) {
+            LOG.error("Unknown processing mode: {}, should be '{}' or '{}'.", processingMode, PROCESSING_MODE_STREAM,
+                    PROCESSING_MODE_SPOOL);
+            return;
+        }
+        String spoolMaxBytesStr = topicConfig.getOrDefault(SPOOL_MAX_BYTES, "10737418240");
+        final long spoolMaxBytes = Long.parseLong(spoolMaxBytesStr);
+        String spoolThreadsStr = topicConfig.getOrDefault(SPOOL_THREADS,
+                String.valueOf(Runtime.getRuntime().availableProcessors()));
+        final int spoolThreads = Integer.parseInt(spoolThreadsStr);
+        String metadataStoreType = topicConfig.getOrDefault(METADATA_STORE, METADATA_STORE_PROPERTIES);
+        if (!METADATA_STORE_PROPERTIES.equals(metadataStoreType) && !METADATA_STORE_LOG.equals(metadataStoreType)) {
+            LOG.error("Unknown metadata store: {}, should be '{}' or '{}'.", metadataStoreType,
+                    METADATA_STORE_PROPERTIES, METADATA_STORE_LOG);
+            return;
+        }
+        String parallelFilesStr = topicConfig.getOrDefault(PARALLEL_FILES, "1");
+        final int parallelFiles = Integer.parseInt(parallelFilesStr);
+        final boolean parallel = parallelFiles > 1;
+        String checkpointLinesStr = topicConfig.getOrDefault(CHECKPOINT_LINES, "0");
+        final long checkpointLines = Long.parseLong(checkpointLinesStr);
+        final FileCheckpointStore checkpoints = checkpointLines > 0
+                ? new FileCheckpointStore(new File(connector.getDataFile("metadata"), "checkpoints")) : null;
+        // each file is aggregated into its own state with parallel files or checkpoints, merged at the end of file
+        final boolean perFileState = parallel || checkpoints != null;
+        String aggregationMode = topicConfig.getOrDefault(AGGREGATION_MODE, AGGREGATION_MODE_DECIMAL);
+        if (createStateStore(aggregationMode) == null) {
+            LOG.error("Unknown aggregation mode: {}, should be '{}', '{}' or '{}'.", aggregationMode,
+                    AGGREGATION_MODE_DECIMAL, AGGREGATION_MODE_FIXED, AGGREGATION_MODE_COMPACT);
+            return;
+        }
+        String window = topicConfig.getOrDefault(WINDOW, WINDOW_NONE);
+        final long windowSeconds;
+        if (WINDOW_NONE.equals(window)) {
+            windowSeconds = 0;
+        } else if (WINDOW_HOURLY.equals(window)) {
+            windowSeconds = WindowedDeviceStateStore.HOURLY;
+        } else if (WINDOW_DAILY.equals(window)) {
+            windowSeconds = WindowedDeviceStateStore.DAILY;
+        } else {
+            LOG.error("Unknown window: {}, should be '{}', '{}' or '{}'.", window, WINDOW_NONE, WINDOW_HOURLY,
+                    WINDOW_DAILY);
+            return;
+        }
+        String windowLatenessStr = topicConfig.getOrDefault(WINDOW_LATENESS, "3600");
+        final long windowLateness = Long.parseLong(windowLatenessStr);
+        String logIntervalStr = topicConfig.getOrDefault(LOG_INTERVAL, "10000");
+        final long logInterval = Long.parseLong(logIntervalStr);
+        String logErrorSamplesStr = topicConfig.getOrDefault(LOG_ERROR_SAMPLES, "10");
+        final int logErrorSamples = Integer.parseInt(logErrorSamplesStr);
+        String drainTimeoutStr = topicConfig.getOrDefault(DRAIN_TIMEOUT, "60000");
+        final long drainTimeout = Long.parseLong(drainTimeoutStr);
+        final boolean cluster = Boolean.parseBoolean(topicConfig.get(CLUSTER));
+        // pid@host, unique while the connector runs
+        final String clusterNode = topicConfig.getOrDefault(CLUSTER_NODE,
+                ManagementFactory.getRuntimeMXBean().getName());
+        String clusterStoreType = topicConfig.getOrDefault(CLUSTER_STORE, CLUSTER_STORE_FILE_TYPE);
+        if (!CLUSTER_STORE_FILE_TYPE.equals(clusterStoreType) && !CLUSTER_STORE_BEAN.equals(clusterStoreType)) {
+            LOG.error("Unknown cluster store: {}, should be '{}' or '{}'.", clusterStoreType, CLUSTER_STORE_FILE_TYPE,
+                    CLUSTER_STORE_BEAN);
+            return;
+        }
+        final String clusterStoreFile = topicConfig.get(CLUSTER_STORE_FILE);
+        String clusterHeartbeatStr = topicConfig.getOrDefault(CLUSTER_HEARTBEAT, "5000");
+        final long clusterHeartbeat = Long.parseLong(clusterHeartbeatStr);
+        String clusterNodeTimeoutStr = topicConfig.getOrDefault(CLUSTER_NODE_TIMEOUT, "15000");
+        final long clusterNodeTimeout = Long.parseLong(clusterNodeTimeoutStr);
+        // the state of a file, of a spooled region and of a resumed file
+        final Supplier<DeviceStateStore> stateStores = windowSeconds > 0
+                ? () -> new WindowedDeviceStateStore(windowSeconds, windowLateness, () -> createStateStore(aggregationMode))
+                : () -> createStateStore(aggregationMode);
+        // the total state is shared by the worker threads with parallel files, by the resumed files, and by the
+        // export timer
+        final DeviceStateStore stateStore;
+        if (windowSeconds > 0) {
+            // synchronized, with parallel files only updated by the merges at the end of the files
+            stateStore = stateStores.get();
+        } else if (perFileState || outputCsv || outputVantiq) {
+            stateStore = new StripedDeviceStateStore(() -> createStateStore(aggregationMode));
+        } else {
+            stateStore = createStateStore(aggregationMode);
+        }
+        // emits the closed windows of the total state
+        final WindowedDeviceStateStore windows = windowSeconds > 0 ? (WindowedDeviceStateStore) stateStore : null;
 
         if (StringUtils.isEmpty(sftpServer)) {
             LOG.error("No sftp server config for SFTP Connector.");
@@ -105,210 +345,484 @@ public class ConfigHandler extends Handler<ExtensionServiceMessage> {
         ApplicationContext context = this.connector.getContext();
         AutowireCapableBeanFactory registry = context.getAutowireCapableBeanFactory();
 
-        try {
-            CsvMapper mapper = new CsvMapper();
-            mapper.enable(CsvParser.Feature.SKIP_EMPTY_LINES);
-            ObjectReader reader = mapper.readerFor(String[].class);
-
-            DefaultSftpSessionFactory factory = new DefaultSftpSessionFactory(true);
-            factory.setHost(sftpServer);
-            factory.setPort(sftpPort);
-            factory.setUser(sftpUser);
-            if (StringUtils.hasText(sftpPassword)) {
-                factory.setPassword(sftpPassword);
-            } else {
-                factory.setPrivateKey(new ClassPathResource("key.pem")); // put key file in resource directory
+        // the accepted files and the nodes, shared by the connectors of the cluster
+        ConcurrentMetadataStore clusterStore = null;
+        if (cluster) {
+            clusterStore = createClusterStore(clusterStoreType, clusterStoreFile, context);
+            if (clusterStore == null) {
+                return;
             }
-            factory.setAllowUnknownKeys(true);
-            CachingSessionFactory sftpSessionFactory = new CachingSessionFactory<>(factory);
-            sftpSessionFactory.setTestSession(true);
+        }
+
+        // the sessions of the previous config are reused when the endpoint and the pool settings are the same, the
+        // key is kept by the flow, with a hash of the password
+        String endpoint = String.join("|", sftpUser, sftpServer, sftpPortStr, sha256(String.valueOf(sftpPassword)),
+                String.valueOf(readAheadDepth), String.valueOf(sessionPoolSize), String.valueOf(sessionWaitTimeout),
+                String.valueOf(sessionValidationInterval));
+        SftpSessionPool warmSessions = replaceFlow(endpoint);
+
+        try {
+            SftpSessionPool sftpSessionFactory = warmSessions != null ? warmSessions
+                    : createSessionPool(sftpServer, sftpPort, sftpUser, sftpPassword, readAheadDepth, sessionPoolSize,
+                                        sessionWaitTimeout, sessionValidationInterval);
             connector.setSessionFactory(sftpSessionFactory);
 
+            // the registry of the actuator, exposed at /actuator/prometheus
+            MeterRegistry meterRegistry = context.getBeanProvider(MeterRegistry.class)
+                                                 .getIfAvailable(SimpleMeterRegistry::new);
+            PipelineMetrics metrics = new PipelineMetrics(meterRegistry, connector.getSourceName());
+            metrics.bindSessionPool(sftpSessionFactory);
+            metrics.bindStateStore(stateStore);
+            metrics.bindSendQueue(connector.getSendQueue());
+
             // register
 //            registry.initializeBean(sftpSessionFactory, "sftpSessionFactory");
 
-            PropertiesPersistingMetadataStore metadataStore = new PropertiesPersistingMetadataStore();
-            metadataStore.setBaseDirectory("metadata");
-            metadataStore.setFileName("mt-metaStore");
-            metadataStore.afterPropertiesSet();
+            ConcurrentMetadataStore metadataStore;
+            String metadataPrefix = "mt_";
+            ClusterMembership membership = null;
+            if (clusterStore != null) {
+                // the store may be shared by several sources too
+                metadataStore = clusterStore;
+                metadataPrefix = connector.getSourceName() + "_mt_";
+                membership = new ClusterMembership(clusterStore, connector.getSourceName() + "_nodes", clusterNode,
+                        clusterHeartbeat, clusterNodeTimeout);
+            } else if (METADATA_STORE_LOG.equals(metadataStoreType)) {
+                // appends each accepted file instead of rewriting the whole store, imports mt-metaStore once
+                LogMetadataStore logStore = new LogMetadataStore();
+                logStore.setBaseDirectory(connector.getDataFile("metadata").getPath());
+                logStore.setFileName("mt-metaStore");
+                logStore.afterPropertiesSet();
+                metadataStore = logStore;
+            } else {
+                PropertiesPersistingMetadataStore propertiesStore = new PropertiesPersistingMetadataStore();
+                propertiesStore.setBaseDirectory(connector.getDataFile("metadata").getPath());
+                propertiesStore.setFileName("mt-metaStore");
+                propertiesStore.afterPropertiesSet();
+                metadataStore = propertiesStore;
+            }
 
-            SftpPersistentAcceptOnceFileListFilter acceptOnceFilter = new SftpPersistentAcceptOnceFileListFilter(metadataStore, "mt_");
+            SftpPersistentAcceptOnceFileListFilter acceptOnceFilter = new SftpPersistentAcceptOnceFileListFilter(metadataStore, metadataPrefix);
             acceptOnceFilter.setFlushOnUpdate(true);
 
+            // stopped when the flow is drained, see SourceFlow
+            StoppableTrigger trigger = new StoppableTrigger(new PeriodicTrigger(fetchInt));
+
             CompositeFileListFilter remoteFileFilter = new CompositeFileListFilter();
+            // no new file is accepted once the flow is draining, the listed ones are still emitted
+            remoteFileFilter.addFilter((FileListFilter<ChannelSftp.LsEntry>) files ->
+                    trigger.isStopping() ? Collections.emptyList() : Arrays.asList(files));
+            if (membership != null) {
+                ClusterMembership nodes = membership;
+                // only the files of this node are accepted in the shared store, the directories are all scanned
+                remoteFileFilter.addFilter((FileListFilter<ChannelSftp.LsEntry>) files -> {
+                    List<ChannelSftp.LsEntry> owned = new ArrayList<>(files.length);
+                    for (ChannelSftp.LsEntry file : files) {
+                        if (file.getAttrs().isDir() || nodes.isOwner(file.getFilename())) {
+                            owned.add(file);
+                        }
+                    }
+                    return owned;
+                });
+            }
             remoteFileFilter.addFilter(acceptOnceFilter);
             SftpRegexPatternFileListFilter fileListFilter;
             if (fileFilter != null) {
                 fileListFilter = new SftpRegexPatternFileListFilter(fileFilter);
             } else {
-                fileListFilter = new SftpRegexPatternFileListFilter(".*\\.DT");
+                fileListFilter = new SftpRegexPatternFileListFilter(".*\\.DT(\\.gz|\\.zst)?");
             }
             fileListFilter.setAlwaysAcceptDirectories(true);
             remoteFileFilter.addFilter(fileListFilter);
 
             // remoteFileFilter在close的时候会flush metaStore到文件
-            registry.initializeBean(remoteFileFilter, "remoteFileFilter");
-            SftpRemoteFileTemplate template = new SftpRemoteFileTemplate(sftpSessionFactory);
+            registry.initializeBean(remoteFileFilter, connector.getSourceName() + "_remoteFileFilter");
+            SftpRemoteFileTemplate template;
+            if (recursive) {
+                // lists the subtrees of remote_dir concurrently, each scan thread with its own session
+                template = new RecursiveSftpRemoteFileTemplate(sftpSessionFactory, connector.getExecutors().scan());
+            } else {
+                template = new SftpRemoteFileTemplate(sftpSessionFactory);
+            }
 
+            SendBackpressure backpressure = null;
+            LongSupplier queuedBytes = SendBackpressure.webSocketQueueSize(connector.getVantiqClient());
+            if (queuedBytes != null) {
+                metrics.inFlight("websocket", queuedBytes, LongSupplier::getAsLong);
+            }
+            if (SEND_MODE_ADAPTIVE.equals(sendMode)) {
+                if (queuedBytes != null) {
+                    ExtensionWebSocketClient client = connector.getVantiqClient();
+                    SpillingSendQueue sendQueue = connector.getSendQueue();
+                    // no wait while disconnected or spilling, the notifications go to disk instead
+                    backpressure = new SendBackpressure(queuedBytes,
+                            () -> sendQueue.isDirect() && client.isOpen() && client.isAuthed(),
+                            sendQueueBytes, sendQueueBytes / 2, sendQueueTimeout);
+                } else {
+                    LOG.warn("Cannot get WebSocket queue size of the VANTIQ client, use rate limit of {} lines/s.",
+                            rateLimit);
+                }
+            }
+            final SendBackpressure sendBackpressure = backpressure;
+            // throttled by the send queue instead with backpressure
+            final RateLimiter rateLimiter = sendBackpressure != null ? null
+                    : RateLimiter.of("sftpLines", RateLimiterConfig.custom()
+                                                              .limitRefreshPeriod(Duration.ofSeconds(1))
+                                                              .limitForPeriod(rateLimit)
+                                                              .build());
 
-//            RecursiveDirectoryScanner scanner =
-//            Sftp.inboundAdapter(sftpSessionFactory).scanner()
+            BatchEncoder encoder = PAYLOAD_FORMAT_COLUMNAR.equals(payloadFormat) ? new ColumnarBatchEncoder()
+                                                                                 : new RowBatchEncoder();
+            BatchingSender sender = new BatchingSender(packageSize, packageBytes, packageLinger, encoder,
+                    (data, rows) -> metrics.send(rows, () -> connector.send(data)));
+            // after a batch was sent, out of the lock of the sender so that the linger timer and close go on
+            final Runnable awaitCredit = sendBackpressure == null ? () -> { } : () -> {
+                try {
+                    metrics.awaitCredit(sendBackpressure);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting to send", e);
+                }
+            };
+            metrics.inFlight("batch", sender, BatchingSender::getPendingRows);
 
-            Set deviceSet = new HashSet(50000);
+            SpoolProcessor spoolProcessor = null;
+            if (PROCESSING_MODE_SPOOL.equals(processingMode)) {
+                // parses spoolThreads regions of each spooled file at the same time, on the shared spool threads
+                spoolProcessor = new SpoolProcessor(connector.getDataFile("spool"), spoolMaxBytes,
+                        connector.getExecutors().spool(), spoolThreads);
+            }
+            final SpoolProcessor spool = spoolProcessor;
 
-            AtomicLong lineCount = new AtomicLong(0);
-            AtomicLong packSentCount = new AtomicLong(0);
-            AtomicLong fileCount = new AtomicLong(0);
+            // only the device states changed since the last export
+            ResultExporter resultExporter = null;
+            if (outputVantiq) {
+                resultExporter = new ResultExporter(outputInterval, OUTPUT_BATCH_SIZE, states -> {
+                    List<Map<String, Object>> devices = new ArrayList<>(states.size());
+                    for (DeviceState state : states) {
+                        devices.add(deviceMap(state));
+                    }
+                    Map<String, Object> data = new HashMap<>();
+                    data.put("devices", devices);
+                    connector.send(data);
+                });
+            } else if (outputCsv) {
+                resultExporter = new ResultExporter(outputInterval, OUTPUT_BATCH_SIZE,
+                        ResultExporter.csv(connector.getDataFile("result.csv")));
+            }
+            final ResultExporter exporter = resultExporter;
+
+            // the thread splitting a file tracks its progress, with its own state when perFileState
+            ThreadLocal<FileProgress> fileProgress = new ThreadLocal<>();
+
+            // at most logErrorSamples invalid lines and one processed file are logged per logInterval
+            ParseErrorLog parseErrors = new ParseErrorLog(LOG, logInterval, logErrorSamples);
+            LogSampler fileLog = new LogSampler(logInterval);
+
+            // START and END of the files, from the splitter or for the spooled files
+            Consumer<FileSplitter.FileMarker> fileMarkers = marker -> {
+                FileProgress progress = fileProgress.get();
+                if (marker.getMark() == FileSplitter.FileMarker.Mark.START) {
+                    metrics.startFile();
+                    Map data = new HashMap();
+                    Map summary = new HashMap();
+                    data.put("summary", summary);
+                    summary.put("file", marker.getFilePath());
+                    if (progress.getResumedLines() > 0) {
+                        summary.put("resumeLine", progress.getResumedLines());
+                    }
+                    connector.send(data);
+                } else if (marker.getMark() == FileSplitter.FileMarker.Mark.END) {
+                    // End: FileMarker [filePath=mt_testFS_20200318_235521_TMR_1201001_1584547126001_2110.DT, mark=END, lineCount=5000]
+                    // send the rest of the file before its summary
+                    sender.flush();
+                    Map data = new HashMap();
+                    Map summary = new HashMap();
+                    data.put("summary", summary);
+                    summary.put("file", marker.getFilePath());
+                    // lines of the whole file, also when resumed
+                    summary.put("lineCount", progress.getLines());
+                    connector.send(data);
+
+                    DeviceStateStore fileState = progress.getState();
+                    metrics.endFile(fileState.getFileDeviceCount());
+                    long skipped = fileLog.sample();
+                    if (skipped >= 0) {
+                        LOG.info("Processed file: {}, device count: {}, line count: {}, processed files: {} "
+                                + "({} not logged)", marker.getFilePath(), fileState.getFileDeviceCount(), progress.getLines(),
+                                metrics.getFiles(), skipped);
+                        LOG.debug("Batch metrics: {}", sender.getMetrics());
+                        LOG.debug("Session pool: {}", sftpSessionFactory.toMap());
+                        if (sendBackpressure != null) {
+                            LOG.debug("Send queue: {} bytes, waited {} times for {} ms, {} timed out",
+                                    sendBackpressure.getQueuedBytes(), sendBackpressure.getWaits(),
+                                    sendBackpressure.getWaitMillis(), sendBackpressure.getTimeouts());
+                        }
+                    }
+                    parseErrors.flushIfDue();
 
-            Map<String, DeviceState> accumulateState = new HashMap();
-            List<DeviceState> deviceStateList = new ArrayList<>();
+                    fileProgress.remove();
+                    if (perFileState) {
+                        stateStore.merge(fileState);
+                    }
+                    if (checkpoints != null) {
+                        checkpoints.delete(progress);
+                    }
+                    if (windows != null) {
+                        sendClosedWindows(connector, windows, window);
+                    }
 
-            StandardIntegrationFlow flow = IntegrationFlows
+                    // not during an export
+                    synchronized (stateStore) {
+                        stateStore.endFile();
+                    }
+                }
+            };
+
+            // the drain waits for the polls in progress, the accepted files not emitted yet are reset in the
+            // filter when the registration is removed
+            PollerSpec poller = Pollers.trigger(trigger).advice(trigger.pollAdvice());
+            if (parallel) {
+                // emit all waiting files, the poller waits while the source has parallelFiles files in progress
+                poller.maxMessagesPerPoll(-1);
+            }
+            IntegrationFlowBuilder builder = IntegrationFlows
                     .from(Sftp.inboundStreamingAdapter(template)
                               .filter(remoteFileFilter)
                               .remoteDirectory(remoteDir),
-                            e -> e.id("sftpInboundAdapter")
+                            e -> e.id(connector.getSourceName() + "_sftpInboundAdapter")
                                   .autoStartup(true)
-                                  .poller(Pollers.fixedDelay(fetchInt)))
+                                  .poller(poller));
+            // the polled files and the files resumed from a checkpoint are sent to fileChannel
+            AbstractMessageChannel fileChannel;
+            SharedExecutors.LimitedExecutor fileExecutor = null;
+            if (parallel) {
+                // at most parallelFiles files of the source on the file threads shared by the sources
+                fileExecutor = connector.getExecutors().files(parallelFiles);
+                metrics.inFlight("submitted", fileExecutor, SharedExecutors.LimitedExecutor::getSubmitted);
+                fileChannel = new ExecutorChannel(fileExecutor);
+            } else {
+                fileChannel = new DirectChannel();
+            }
+
+            StandardIntegrationFlow flow = builder
+                    .channel(fileChannel)
+                    .<Object>handle((payload, headers) -> {
+                        FileProgress progress = headers.get(FILE_PROGRESS_HEADER, FileProgress.class);
+                        if (progress == null) {
+                            progress = new FileProgress(headers.get(FileHeaders.REMOTE_DIRECTORY, String.class),
+                                    headers.get(FileHeaders.REMOTE_FILE, String.class),
+                                    perFileState ? stateStores.get() : stateStore);
+                        }
+                        fileProgress.set(progress);
+                        if (!(payload instanceof InputStream)) {
+                            return payload;
+                        }
+                        InputStream stream = metrics.countBytes((InputStream) payload);
+                        if (readAheadDepth > 0) {
+                            // the next chunks are read while the splitter parses the current one
+                            stream = new ReadAheadInputStream(stream, readAheadChunkSize, readAheadDepth);
+                        }
+                        Closeable session = headers.get(IntegrationMessageHeaderAccessor.CLOSEABLE_RESOURCE,
+                                Closeable.class);
+                        InputStream lines;
+                        try {
+                            // .gz and .zst files are split by line as the plain ones
+                            lines = progress.detectTerminator(
+                                    Decompression.decompress(stream, progress.getRemoteFile()));
+                        } catch (IOException e) {
+                            // not a valid compressed stream, the splitter will not close them
+                            IOUtils.closeQuietly(stream, session);
+                            throw new UncheckedIOException("Cannot decompress file: " + progress.getRemotePath(), e);
+                        }
+                        if (spool == null || progress.isResumed()) {
+                            return lines;
+                        }
+
+                        /****** spool mode start *****/
+                        SpoolProcessor.Download download;
+                        try {
+                            download = spool.download(lines, 0);
+                        } catch (IOException e) {
+                            IOUtils.closeQuietly(lines, session);
+                            throw new UncheckedIOException("Cannot spool file: " + progress.getRemotePath(), e);
+                        }
+                        if (download.getFile() == null) {
+                            // the spool is full, the splitter reads the rest of the file
+                            return download.getStream();
+                        }
+                        IOUtils.closeQuietly(session);
+                        File spooled = download.getFile();
+                        // same as the splitter
+                        String filePath = StringUtils.hasText(progress.getRemoteDirectory())
+                                ? progress.getRemoteDirectory() + progress.getRemoteFile() : progress.getRemoteFile();
+                        try {
+                            if (checkpoints != null) {
+                                // resumed from the start after a restart
+                                checkpoints.save(progress);
+                            }
+                            fileMarkers.accept(new FileSplitter.FileMarker(filePath, FileSplitter.FileMarker.Mark.START, 0));
+                            // each region aggregates on its own, merged into the file when all are done
+                            List<DeviceStateStore> regionStates = new ArrayList<>();
+                            long count = spool.forEachLine(spooled, () -> {
+                                DeviceStateStore regionState = stateStores.get();
+                                regionStates.add(regionState);
+                                return line -> {
+                                    metrics.lineParsed();
+                                    MeterRecord record = RecordTokenizer.parse(line);
+                                    if (record == null) {
+                                        metrics.parseError(PipelineMetrics.PARSE_ERROR_COLUMNS);
+                                        parseErrors.invalidLine(line);
+                                        return;
+                                    }
+                                    try {
+                                        if (record.hasValue()) {
+                                            regionState.update(record);
+                                        }
+                                    } catch (Exception e) {
+                                        metrics.parseError(PipelineMetrics.PARSE_ERROR_VALUE);
+                                        parseErrors.failedLine(line, e);
+                                    }
+                                    if (rateLimiter != null) {
+                                        metrics.waitForPermission(rateLimiter);
+                                    }
+                                    if (sender.add(record)) {
+                                        awaitCredit.run();
+                                    }
+                                };
+                            });
+                            for (DeviceStateStore regionState : regionStates) {
+                                progress.getState().merge(regionState);
+                            }
+                            progress.countLines(count, spooled.length());
+                            fileMarkers.accept(new FileSplitter.FileMarker(filePath, FileSplitter.FileMarker.Mark.END,
+                                    count));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException("Cannot process spooled file: " + progress.getRemotePath(), e);
+                        } finally {
+                            spool.delete(spooled);
+                        }
+                        // the file is done, nothing for the splitter
+                        return null;
+                        /****** spool mode end *****/
+                    })
                     .handle(Files.splitter(true, true))
+                    .<Object, Object>transform(p -> {
+                        if (p instanceof String) {
+                            // tokenize once, the later stages reuse the record
+                            MeterRecord record = RecordTokenizer.parse((String) p);
+                            return record != null ? record : p;
+                        }
+                        return p;
+                    })
                     .filter(m -> {
-                        if (m instanceof String) {
-                            lineCount.incrementAndGet();
+                        if (m instanceof MeterRecord || m instanceof String) {
+                            FileProgress progress = fileProgress.get();
+                            if (progress.skipLine()) {
+                                return false;
+                            }
+                            if (checkpoints != null && progress.isCheckpointDue(checkpointLines)) {
+                                // the counted lines are sent before the checkpoint, the current one is not counted yet
+                                sender.flush();
+                                try {
+                                    checkpoints.save(progress);
+                                    progress.checkpointed();
+                                } catch (IOException e) {
+                                    LOG.error("Failed to save checkpoint of file: {}", progress.getRemotePath(), e);
+                                }
+                            }
+                            progress.countLine(m instanceof MeterRecord ? ((MeterRecord) m).getLine() : (String) m);
+                        }
+                        if (m instanceof MeterRecord) {
+                            metrics.lineParsed();
                             /****** calculate device start *****/
+                            MeterRecord record = (MeterRecord) m;
                             try {
-                                String line = m.toString().replace("||", ",");
-                                String[] result = reader.readValue(line);
-                                List dataList = new ArrayList(3);
-                                dataList.add(result[0]);
-                                dataList.add(result[1]);
-                                dataList.add(result[2]);
-                                if (StringUtils.hasText(result[2])) {
-
-                                    String deviceId = result[0];
-                                    String dateTime = result[1];
-                                    BigDecimal value = new BigDecimal(result[2]);
-
-                                    DeviceState deviceState = accumulateState.get(deviceId);
-                                    if (deviceState == null) {
-                                        deviceState = new DeviceState(deviceId, dateTime);
-                                        accumulateState.put(deviceId, deviceState);
-                                        deviceStateList.add(deviceState);
-                                    }
-                                    deviceState.updateMean(value);
-
-                                    if (value.compareTo(deviceState.getMaxValue()) > 0) {
-                                        deviceState.setMaxValue(value);
-                                        deviceState.setMaxTime(dateTime);
-                                        deviceState.setUpdateTime(new Date());
-                                    }
-                                    if (value.compareTo(deviceState.getMinValue()) < 0) {
-                                        deviceState.setMinValue(value);
-                                        deviceState.setMinTime(dateTime);
-                                        deviceState.setUpdateTime(new Date());
+                                if (record.hasValue()) {
+                                    fileProgress.get().getState().update(record);
+                                    if (windows != null && !perFileState && windows.hasClosedWindows()) {
+                                        sendClosedWindows(connector, windows, window);
                                     }
                                 }
                             } catch (Exception e) {
-                                LOG.error(e.getMessage(), e);
+                                metrics.parseError(PipelineMetrics.PARSE_ERROR_VALUE);
+                                parseErrors.failedLine(record.getLine(), e);
                             }
                             /****** calculate device end *****/
 
+                            if (rateLimiter != null) {
+                                metrics.waitForPermission(rateLimiter);
+                            }
                             return true;
+                        } else if (m instanceof String) {
+                            metrics.lineParsed();
+                            metrics.parseError(PipelineMetrics.PARSE_ERROR_COLUMNS);
+                            parseErrors.invalidLine((String) m);
                         } else if (m instanceof FileSplitter.FileMarker) {
-                            FileSplitter.FileMarker marker = (FileSplitter.FileMarker)m;
-                            if (marker.getMark() == FileSplitter.FileMarker.Mark.START) {
-                                Map data = new HashMap();
-                                Map summary = new HashMap();
-                                data.put("summary", summary);
-                                summary.put("file", marker.getFilePath());
-                                connector.getVantiqClient().sendNotification(data);
-                            } else if (marker.getMark() == FileSplitter.FileMarker.Mark.END) {
-                                // End: FileMarker [filePath=mt_testFS_20200318_235521_TMR_1201001_1584547126001_2110.DT, mark=END, lineCount=5000]
-                                Map data = new HashMap();
-                                Map summary = new HashMap();
-                                data.put("summary", summary);
-                                summary.put("file", marker.getFilePath());
-                                summary.put("lineCount", marker.getLineCount());
-                                connector.getVantiqClient().sendNotification(data);
-
-                                LOG.info("Device count: {}\t, line count:{}\tfor file: {}", deviceSet.size(),
-                                        marker.getLineCount(), marker.getFilePath());
-                                LOG.info("Processed file: {}", fileCount.incrementAndGet());
-
-                                /****** output result start *****/
-                                if (outputResult && fileCount.get() == 1 || fileCount.get() > 1035) {
-                                    File output = new File("result.csv");
-                                    try {
-                                        CsvMapper outMapper = new CsvMapper();
-                                        CsvSchema schema = outMapper.schemaFor(DeviceState.class).withHeader();
-                                        outMapper.writer(schema).writeValues(output).writeAll(deviceStateList);
-                                    } catch (IOException e) {
-                                        LOG.error(e.getMessage(), e);
-                                    }
-                                }
-                                /****** output result end *****/
-
-                                deviceSet.clear();
-                            }
+                            fileMarkers.accept((FileSplitter.FileMarker) m);
                         }
                         return false;
-                    },h -> {
-                        RateLimiterConfig conf = RateLimiterConfig.custom()
-                                                                  .limitRefreshPeriod(Duration.ofSeconds(1))
-                                                                  .limitForPeriod(rateLimit)
-                                                                  .build();
-                        RateLimiterRequestHandlerAdvice limiter = new RateLimiterRequestHandlerAdvice(conf);
-                        h.advice(limiter);
                     })
-                    .transform(msg -> {
-                        try {
-                            String line = msg.toString().replace("||", ",");
-                            String[] result = reader.readValue(line);
-                            List dataList = new ArrayList(3);
-                            dataList.add(result[0]);
-                            dataList.add(result[1]);
-                            dataList.add(result[2]);
-                            if (StringUtils.hasText(result[2])) {
-                                deviceSet.add(result[0]);
-                            }
-                            return dataList;
-                        } catch (JsonProcessingException e) {
-                            LOG.error(e.getMessage(), e);
-                            return null;
-                        }
-                    })
-                    .aggregate(m -> {
-                        m.correlationStrategy(message -> {
-                            if (message.getPayload() instanceof List) { // 已经转换成List
-                                long currentCount = lineCount.get();
-                                long groupIdCount = currentCount / packageSize;
-
-                                String groupId = message.getHeaders().get("file_remoteFile").toString() + groupIdCount;
-                                return groupId;  // 按文件名分组，
-                            } else {
-                                return "OTHER"; // separate group
-                            }
-                        })
-                         .groupTimeout(10)
-                         .sendPartialResultOnExpiry(true)
-                         .releaseStrategy(new SimpleSequenceSizeReleaseStrategy());
-                    })
-
                     .handle(m -> {
-//                        m.getHeaders().get()
-                        List aggregatedData = (List)m.getPayload();
-//                        LOG.info("got aggregated data:{}", m);
-                        LOG.info("Sent aggregated data count:{}, sent pack count:{}", aggregatedData.size(), packSentCount.incrementAndGet());
-
-                        Map data = new HashMap();
-                        data.put("data", m.getPayload());
-                        connector.getVantiqClient().sendNotification(data);
-
-                        if (lineCount.get() % 1000 == 0) {
-                            LOG.info("Sending data...");
+                        if (sender.add((MeterRecord) m.getPayload())) {
+                            awaitCredit.run();
                         }
                     })
                     .get();
-            connector.getFlowContext().registration(flow).register().getId();
+            String flowId = connector.getSourceName() + "_flow";
+            if (membership != null) {
+                membership.start();
+                metrics.bindCluster(membership);
+            }
+            connector.getFlowContext().registration(flow).id(flowId).register();
+
+            // drained when the source is reconfigured or closed: the files in progress are completed and sent
+            // before the sender is closed and the registration removed
+            SourceFlow sourceFlow = new SourceFlow(endpoint, sftpSessionFactory, trigger, drainTimeout);
+            if (fileExecutor != null) {
+                SharedExecutors.LimitedExecutor workers = fileExecutor;
+                sourceFlow.onDrain(() -> {
+                    try {
+                        while (!workers.awaitCompletion(drainTimeout)) {
+                            LOG.warn("{} files still in progress after {} ms, waiting for their end",
+                                    workers.getSubmitted(), drainTimeout);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            sourceFlow.onDrain(sender::close);
+            if (windows != null) {
+                // the open windows too, the next config starts with a new state
+                sourceFlow.onDrain(() -> sendWindows(connector, windows, windows.pollAllWindows(), window));
+            }
+            if (exporter != null) {
+                // every outputInterval while the files are processed, the rest once they are done
+                exporter.start(stateStore);
+                sourceFlow.onDrain(() -> {
+                    try {
+                        exporter.close();
+                    } catch (IOException e) {
+                        LOG.error(e.getMessage(), e);
+                    }
+                });
+            }
+            sourceFlow.onDrain(parseErrors::flush);
+            sourceFlow.onDrain(() -> connector.getFlowContext().remove(flowId));
+            // flushes the metadata store
+            sourceFlow.onDrain(() -> IOUtils.closeQuietly(remoteFileFilter));
+            sourceFlow.onDrain(metrics::close);
+            if (membership != null) {
+                // the other nodes take over the files of this node while it is disconnected or reconfigured
+                sourceFlow.onPause(membership::close);
+                sourceFlow.onDrain(membership::close);
+            }
+            connector.setFlow(sourceFlow);
+
+            if (checkpoints != null) {
+                resumeFiles(checkpoints.load(stateStores), sftpSessionFactory, fileChannel, trigger);
+            }
 
         } catch (Exception e) {
             LOG.error(e.getMessage(), e);
@@ -316,6 +830,246 @@ public class ConfigHandler extends Handler<ExtensionServiceMessage> {
 
     }
 
+    /**
+     * @return  the shared metadata store of the cluster, or null if it is not configured
+     */
+    private static ConcurrentMetadataStore createClusterStore(String clusterStoreType, String clusterStoreFile,
+                                                              ApplicationContext context) {
+        if (CLUSTER_STORE_BEAN.equals(clusterStoreType)) {
+            // e.g. a JdbcMetadataStore or RedisMetadataStore defined in the application context
+            ConcurrentMetadataStore store = context.getBeanProvider(ConcurrentMetadataStore.class).getIfAvailable();
+            if (store == null) {
+                LOG.error("No ConcurrentMetadataStore bean for the cluster store.");
+            }
+            return store;
+        }
+        if (StringUtils.isEmpty(clusterStoreFile)) {
+            LOG.error("No {} config for the cluster store, it should be on a disk shared by the nodes.",
+                    CLUSTER_STORE_FILE);
+            return null;
+        }
+        try {
+            return new SharedFileMetadataStore(new File(clusterStoreFile));
+        } catch (IOException e) {
+            LOG.error("Cannot open cluster store: {}", clusterStoreFile, e);
+            return null;
+        }
+    }
+
+    private static SftpSessionPool createSessionPool(String sftpServer, int sftpPort, String sftpUser,
+                                                    String sftpPassword, int readAheadDepth, int sessionPoolSize,
+                                                    long sessionWaitTimeout, long sessionValidationInterval) {
+        DefaultSftpSessionFactory factory = new DefaultSftpSessionFactory(true);
+        factory.setHost(sftpServer);
+        factory.setPort(sftpPort);
+        factory.setUser(sftpUser);
+        if (StringUtils.hasText(sftpPassword)) {
+            factory.setPassword(sftpPassword);
+        } else {
+            factory.setPrivateKey(new ClassPathResource("key.pem")); // put key file in resource directory
+        }
+        factory.setAllowUnknownKeys(true);
+        // idle sessions are tested in the background instead of on each checkout
+        SessionFactory<ChannelSftp.LsEntry> sessions = factory;
+        if (readAheadDepth > 0) {
+            // keep up to readAheadDepth read requests outstanding on the remote streams
+            sessions = () -> {
+                Session<ChannelSftp.LsEntry> session = factory.getSession();
+                try {
+                    ((ChannelSftp) session.getClientInstance()).setBulkRequests(readAheadDepth);
+                } catch (JSchException e) {
+                    session.close();
+                    throw new IllegalStateException("Failed to set the bulk requests of the sftp channel", e);
+                }
+                return session;
+            };
+        }
+        return new SftpSessionPool(sessions, sessionPoolSize, sessionWaitTimeout, sessionValidationInterval);
+    }
+
+    /**
+     * Drain the flow of the previous config of the source, if any: its poller is stopped, the files in progress are
+     * completed and sent, and its registration is removed.
+     *
+     * @return  the session pool of the previous flow if it has the same endpoint, else null once it is closed
+     */
+    private SftpSessionPool replaceFlow(String endpoint) {
+        SourceFlow previous = connector.getFlow();
+        if (previous == null) {
+            return null;
+        }
+        connector.setFlow(null);
+        LOG.info("Replace the flow of source: {}", connector.getSourceName());
+        try {
+            previous.drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (previous.getEndpoint().equals(endpoint)) {
+            LOG.info("Reuse the {} idle sftp sessions", previous.getSessionPool().getIdleCount());
+            return previous.getSessionPool();
+        }
+        previous.getSessionPool().destroy();
+        return null;
+    }
+
+    /**
+     * Resume the files which were not completed, at the byte offset of their checkpoint. The streams are sent to
+     * the splitter one after the other on a separate thread, the poller keeps fetching the new files. Each file
+     * counts as a poll of the trigger, so that the drain waits for it; once the flow is draining the next files are
+     * left to the next flow, with their checkpoint.
+     */
+    private static void resumeFiles(List<FileProgress> files, SessionFactory<ChannelSftp.LsEntry> sessionFactory,
+                                    MessageChannel fileChannel, StoppableTrigger trigger) {
+        if (files.isEmpty()) {
+            return;
+        }
+        Thread resume = new Thread(() -> {
+            for (FileProgress progress : files) {
+                if (!trigger.startPoll()) {
+                    return;
+                }
+                LOG.info("Resume file: {} at line: {}", progress.getRemotePath(), progress.getLines());
+                try {
+                    resumeFile(progress, sessionFactory, fileChannel);
+                } catch (Exception e) {
+                    LOG.error("Failed to resume file: {}", progress.getRemotePath(), e);
+                } finally {
+                    trigger.endPoll();
+                }
+            }
+        }, "sftp-resume");
+        resume.setDaemon(true);
+        resume.start();
+    }
+
+    private static void resumeFile(FileProgress progress, SessionFactory<ChannelSftp.LsEntry> sessionFactory,
+                                   MessageChannel fileChannel) throws SftpException, IOException {
+        Session<ChannelSftp.LsEntry> session = sessionFactory.getSession();
+        try {
+            ChannelSftp channel = (ChannelSftp) session.getClientInstance();
+            String path = progress.getRemotePath();
+            InputStream stream = null;
+            // the offset is in the decompressed stream, a compressed file is read from the start
+            if (progress.getBytes() > 0 && !isCompressed(channel, progress)) {
+                // the checkpoint is at a line start if the byte before it ends a line
+                stream = channel.get(path, null, progress.getBytes() - 1);
+                if (stream.read() != '\n') {
+                    stream.close();
+                    stream = null;
+                }
+            }
+            if (stream == null && progress.getBytes() > 0) {
+                LOG.warn("Cannot seek to the checkpoint of file: {}, skip {} lines from the start", path,
+                        progress.getLines());
+            }
+            if (stream == null) {
+                progress.skipFromStart();
+                stream = channel.get(path);
+            }
+            // the splitter closes the session at the end of the stream
+            fileChannel.send(MessageBuilder.withPayload(stream)
+                                           .setHeader(FileHeaders.REMOTE_DIRECTORY, progress.getRemoteDirectory())
+                                           .setHeader(FileHeaders.REMOTE_FILE, progress.getRemoteFile())
+                                           .setHeader(IntegrationMessageHeaderAccessor.CLOSEABLE_RESOURCE, session)
+                                           .setHeader(FILE_PROGRESS_HEADER, progress)
+                                           .build());
+        } catch (SftpException | IOException | RuntimeException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return  the hex SHA-256 of the UTF-8 bytes
+     */
+    private static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isCompressed(ChannelSftp channel, FileProgress progress) throws SftpException, IOException {
+        if (Decompression.byExtension(progress.getRemoteFile()) != Decompression.Format.NONE) {
+            return true;
+        }
+        byte[] magic = new byte[4];
+        try (InputStream in = channel.get(progress.getRemotePath())) {
+            return Decompression.byMagic(magic, IOUtils.read(in, magic)) != Decompression.Format.NONE;
+        }
+    }
+
+    /**
+     * Send the aggregates of the windows closed by the watermark, {@link #WINDOW_BATCH_SIZE} devices per
+     * notification:
+     * {"window": {"size": "hourly", "start": "2020-03-15 23:00:00", "end": "2020-03-16 00:00:00"},
+     * "devices": [{"deviceId": "511182490", "count": 4, "mean": 0.97, ...}, ...]}
+     */
+    private static void sendClosedWindows(SFTPConnector connector, WindowedDeviceStateStore windows, String size) {
+        sendWindows(connector, windows, windows.pollClosedWindows(), size);
+    }
+
+    private static void sendWindows(SFTPConnector connector, WindowedDeviceStateStore windows,
+                                    List<WindowedDeviceStateStore.Window> polled, String size) {
+        for (WindowedDeviceStateStore.Window window : polled) {
+            Map<String, Object> windowInfo = new LinkedHashMap<>();
+            windowInfo.put("size", size);
+            windowInfo.put("start", window.getStart());
+            windowInfo.put("end", window.getEnd());
+            List<Map<String, Object>> devices = new ArrayList<>();
+            for (DeviceState state : window.getStates()) {
+                devices.add(deviceMap(state));
+                if (devices.size() == WINDOW_BATCH_SIZE) {
+                    sendWindow(connector, windowInfo, devices);
+                    devices = new ArrayList<>();
+                }
+            }
+            if (!devices.isEmpty()) {
+                sendWindow(connector, windowInfo, devices);
+            }
+            LOG.info("Sent window {} of {} devices, {} late readings dropped", window.getStart(),
+                    window.getStates().size(), windows.getLateRecords());
+        }
+    }
+
+    private static Map<String, Object> deviceMap(DeviceState state) {
+        Map<String, Object> device = new LinkedHashMap<>();
+        device.put("deviceId", state.getDeviceId());
+        device.put("date", state.getDate());
+        device.put("count", state.getCount());
+        device.put("mean", state.getMean());
+        device.put("minValue", state.getMinValue());
+        device.put("minTime", state.getMinTime());
+        device.put("maxValue", state.getMaxValue());
+        device.put("maxTime", state.getMaxTime());
+        return device;
+    }
+
+    private static void sendWindow(SFTPConnector connector, Map<String, Object> window,
+                                   List<Map<String, Object>> devices) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("window", window);
+        data.put("devices", devices);
+        connector.send(data);
+    }
+
+    private static DeviceStateStore createStateStore(String aggregationMode) {
+        switch (aggregationMode) {
+            case AGGREGATION_MODE_DECIMAL:
+                return new MapDeviceStateStore(false);
+            case AGGREGATION_MODE_FIXED:
+                return new MapDeviceStateStore(true);
+            case AGGREGATION_MODE_COMPACT:
+                return new ArrayDeviceStateStore();
+            default:
+                return null;
+        }
+    }
+
     /**
      * Closes the source {@link SFTPConnector} and marks the configuration as completed. The source will
      * be reactivated when the source reconnects, due either to a Reconnect message (likely created by an update to the
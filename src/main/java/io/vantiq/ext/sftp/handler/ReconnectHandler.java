@@ -1,11 +1,22 @@
 package io.vantiq.ext.sftp.handler;
 
+import io.vantiq.extjsdk.ConnectorConstants;
 import io.vantiq.extjsdk.ExtensionServiceMessage;
+import io.vantiq.extjsdk.ExtensionWebSocketClient;
 import io.vantiq.extjsdk.Handler;
 import io.vantiq.ext.sftp.SFTPConnector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handles the reconnect messages of VANTIQ, e.g. when the source is updated: the source is connected again on the
+ * same WebSocket, VANTIQ then sends the new config and {@link ConfigHandler} replaces the flow.
+ */
 public class ReconnectHandler extends Handler<ExtensionServiceMessage> {
 
     static final Logger LOG = LoggerFactory.getLogger(ReconnectHandler.class);
@@ -18,22 +29,24 @@ public class ReconnectHandler extends Handler<ExtensionServiceMessage> {
 
     @Override
     public void handleMessage(ExtensionServiceMessage message) {
+        LOG.info("Reconnect source: {}", message.getSourceName());
+        ExtensionWebSocketClient client = connector.getVantiqClient();
+        CompletableFuture<Boolean> success = client.connectToSource();
 
-//        ExtensionWebSocketClient client = connector.getVantiqClient();
-//        CompletableFuture<Boolean> success = client.connectToSource();
-//
-//        try {
-//            if ( !success.get(ConnectorConstants.CONNECTOR_CONNECT_TIMEOUT, TimeUnit.SECONDS) ) {
-//                if (!client.isOpen()) {
-//                    LOG.error("Failed to connect to server url.");
-//                } else if (!client.isAuthed()) {
-//                    LOG.error("Failed to authenticate within 10 seconds using the given authentication data.");
-//                } else {
-//                    LOG.error("Failed to connect within 10 seconds");
-//                }
-//            }
-//        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-//            LOG.error("Could not reconnect to source within 10 seconds: ", e);
-//        }
+        try {
+            if (!success.get(ConnectorConstants.CONNECTOR_CONNECT_TIMEOUT, TimeUnit.SECONDS)) {
+                if (!client.isOpen()) {
+                    LOG.error("Failed to connect to server url.");
+                } else if (!client.isAuthed()) {
+                    LOG.error("Failed to authenticate within 10 seconds using the given authentication data.");
+                } else {
+                    LOG.error("Failed to connect within 10 seconds");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOG.error("Could not reconnect to source within 10 seconds: ", e);
+        }
     }
 }
@@ -0,0 +1,109 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.BatchMetrics.FlushReason;
+import io.vantiq.ext.sftp.BatchingSender;
+import io.vantiq.ext.sftp.ColumnarBatchEncoder;
+import io.vantiq.ext.sftp.MeterRecord;
+import io.vantiq.ext.sftp.RecordTokenizer;
+import io.vantiq.ext.sftp.RowBatchEncoder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestBatchingSender {
+
+    private static final String LINE = "511182490||2020-03-15 23:00:00||0.9700||0.0000";
+
+    @Test
+    public void testRowsAndFlush() {
+        List<Integer> sizes = new ArrayList<>();
+        BatchingSender sender = new BatchingSender(10, 1 << 20, 60000, new RowBatchEncoder(),
+                (data, rows) -> sizes.add(((List) data.get("data")).size()));
+        int sent = 0;
+        for (int i = 0; i < 25; i++) {
+            if (sender.add(RecordTokenizer.parse(LINE))) {
+                sent++;
+            }
+        }
+        assertEquals(2, sent);
+        sender.flush();
+        sender.close();
+
+        assertEquals("[10, 10, 5]", sizes.toString());
+        assertEquals(3, sender.getMetrics().getBatches());
+        assertEquals(25, sender.getMetrics().getRows());
+        assertEquals(2, sender.getMetrics().getFlushCount(FlushReason.ROWS));
+        assertEquals(1, sender.getMetrics().getFlushCount(FlushReason.FLUSH));
+    }
+
+    @Test
+    public void testBytes() {
+        List<Integer> sizes = new ArrayList<>();
+        // 9 + 19 + 6 chars + 11 overhead = 45 bytes per row
+        BatchingSender sender = new BatchingSender(1000, 100, 60000, new RowBatchEncoder(),
+                (data, rows) -> sizes.add(rows));
+        for (int i = 0; i < 5; i++) {
+            sender.add(RecordTokenizer.parse(LINE));
+        }
+        sender.close();
+
+        assertEquals("[2, 2, 1]", sizes.toString());
+        assertEquals(2, sender.getMetrics().getFlushCount(FlushReason.BYTES));
+        assertEquals(90, sender.getMetrics().getMaxBatchBytes());
+    }
+
+    @Test
+    public void testLinger() throws InterruptedException {
+        List<List<String>> rows = new ArrayList<>();
+        BatchingSender sender = new BatchingSender(1000, 1 << 20, 20, new RowBatchEncoder(), (data, count) -> {
+            synchronized (rows) {
+                rows.addAll((List<List<String>>) data.get("data"));
+            }
+        });
+        sender.add(RecordTokenizer.parse(LINE));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getMetrics().getBatches() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        sender.close();
+
+        assertEquals(1, sender.getMetrics().getFlushCount(FlushReason.LINGER));
+        synchronized (rows) {
+            assertEquals(1, rows.size());
+            assertEquals("511182490", rows.get(0).get(0));
+        }
+    }
+
+    @Test
+    public void testColumnar() {
+        List<MeterRecord> records = Arrays.asList(
+                RecordTokenizer.parse("511182490||2020-03-15 23:00:00||0.9700||0.0000"),
+                RecordTokenizer.parse("511182491||2020-03-15 23:15:00||||0.0000"),
+                RecordTokenizer.parse("511182492||2020-03-16 00:00:00||1.5"));
+        Map<String, Object> notification = new ColumnarBatchEncoder().encode(records);
+        Map<String, Object> columns = (Map<String, Object>) notification.get("columns");
+
+        assertEquals("2020-03-15 23:00:00", columns.get("baseTime"));
+        assertEquals("[511182490, 511182491, 511182492]", Arrays.toString((long[]) columns.get("deviceId")));
+        assertEquals("[0, 900, 3600]", Arrays.toString((int[]) columns.get("time")));
+        assertEquals("[0.97, 0.0, 1.5]", Arrays.toString((double[]) columns.get("value")));
+        assertEquals("[1]", Arrays.toString((int[]) columns.get("noValue")));
+    }
+
+    @Test
+    public void testColumnarFallback() {
+        List<MeterRecord> records = Arrays.asList(
+                RecordTokenizer.parse("0511182490||2020-03-15 23:00:00||0.9700"),
+                RecordTokenizer.parse("511182491||15/03/2020||0.5"));
+        Map<String, Object> columns = (Map<String, Object>) new ColumnarBatchEncoder().encode(records).get("columns");
+
+        assertEquals("[0511182490, 511182491]", Arrays.toString((String[]) columns.get("deviceId")));
+        assertEquals("[2020-03-15 23:00:00, 15/03/2020]", Arrays.toString((String[]) columns.get("time")));
+        assertNull(columns.get("baseTime"));
+    }
+}
@@ -0,0 +1,96 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.ClusterMembership;
+import io.vantiq.ext.sftp.SharedFileMetadataStore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class TestClusterMembership {
+
+    private static String file(int i) {
+        return "mt_FS_20200318_235521_TMR_1201001_" + i + ".DT";
+    }
+
+    @Test
+    public void testSharedFileStore() throws IOException {
+        File file = new File(Files.createTempDirectory("cluster").toFile(), "store");
+        SharedFileMetadataStore store = new SharedFileMetadataStore(file);
+        SharedFileMetadataStore other = new SharedFileMetadataStore(file);
+        assertNull(store.putIfAbsent("mt_a", "1"));
+        // accepted by one node only
+        assertEquals("1", other.putIfAbsent("mt_a", "2"));
+        assertFalse(other.replace("mt_a", "2", "3"));
+        assertTrue(other.replace("mt_a", "1", "3"));
+        assertEquals("3", store.get("mt_a"));
+        assertEquals("3", store.remove("mt_a"));
+        assertNull(other.get("mt_a"));
+
+        // survives a restart
+        store.put("mt_b", "4");
+        assertEquals("4", new SharedFileMetadataStore(file).get("mt_b"));
+    }
+
+    @Test
+    public void testJoinAndLeave() throws IOException {
+        File file = new File(Files.createTempDirectory("cluster").toFile(), "store");
+        ClusterMembership node1 = new ClusterMembership(new SharedFileMetadataStore(file), "sftp_nodes", "node1",
+                60000, 180000);
+        ClusterMembership node2 = new ClusterMembership(new SharedFileMetadataStore(file), "sftp_nodes", "node2",
+                60000, 180000);
+        node1.start();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(node1.isOwner(file(i)));
+        }
+
+        node2.start();
+        assertTrue(node1.heartbeat());
+        assertEquals(new HashSet<>(Arrays.asList("node1", "node2")), node1.getNodes());
+        assertEquals(node1.getNodes(), node2.getNodes());
+        int owned1 = 0;
+        for (int i = 0; i < 100; i++) {
+            // exactly one owner
+            assertTrue(node1.isOwner(file(i)) ^ node2.isOwner(file(i)));
+            if (node1.isOwner(file(i))) {
+                owned1++;
+            }
+        }
+        assertTrue(owned1 > 0 && owned1 < 100);
+
+        // node1 takes over on its next heartbeat
+        node2.close();
+        assertFalse(node2.isOwner(file(0)));
+        assertTrue(node1.heartbeat());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(node1.isOwner(file(i)));
+        }
+        node1.close();
+    }
+
+    @Test
+    public void testTimedOutNodeRemoved() throws IOException, InterruptedException {
+        File file = new File(Files.createTempDirectory("cluster").toFile(), "store");
+        SharedFileMetadataStore store = new SharedFileMetadataStore(file);
+        ClusterMembership node1 = new ClusterMembership(store, "sftp_nodes", "node1", 60000, 100);
+        // a node which stopped without leaving
+        store.put("sftp_nodes", "crashed=" + System.currentTimeMillis());
+        node1.heartbeat();
+        assertEquals(2, node1.getNodes().size());
+        Thread.sleep(200);
+        assertTrue(node1.heartbeat());
+        assertEquals(new HashSet<>(Arrays.asList("node1")), node1.getNodes());
+        assertEquals("node1", store.get("sftp_nodes").split("=")[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidNode() throws IOException {
+        File file = new File(Files.createTempDirectory("cluster").toFile(), "store");
+        new ClusterMembership(new SharedFileMetadataStore(file), "sftp_nodes", "a=b", 1000, 3000);
+    }
+}
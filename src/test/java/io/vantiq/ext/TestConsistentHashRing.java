@@ -0,0 +1,64 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.ConsistentHashRing;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestConsistentHashRing {
+
+    private static final int FILES = 10000;
+
+    private static String file(int i) {
+        return "mt_FS_20200318_235521_TMR_1201001_" + i + ".DT";
+    }
+
+    @Test
+    public void testEmpty() {
+        assertNull(new ConsistentHashRing(Collections.emptySet(), 128).owner(file(1)));
+    }
+
+    @Test
+    public void testBalanced() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3", "node4"), 128);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < FILES; i++) {
+            counts.merge(ring.owner(file(i)), 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            // 2500 each, within 30%
+            assertTrue("Unbalanced: " + counts, count > 1750 && count < 3250);
+        }
+    }
+
+    @Test
+    public void testSameOwnerOnEveryNode() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"), 128);
+        ConsistentHashRing other = new ConsistentHashRing(Arrays.asList("node3", "node1", "node2"), 128);
+        for (int i = 0; i < FILES; i++) {
+            assertEquals(ring.owner(file(i)), other.owner(file(i)));
+        }
+    }
+
+    @Test
+    public void testJoinMovesOnlyFilesToNewNode() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"), 128);
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3", "node4"), 128);
+        int moved = 0;
+        for (int i = 0; i < FILES; i++) {
+            String owner = after.owner(file(i));
+            if (!owner.equals(before.owner(file(i)))) {
+                assertEquals("node4", owner);
+                moved++;
+            }
+        }
+        // about a quarter
+        assertTrue("Moved: " + moved, moved > FILES / 8 && moved < FILES * 3 / 8);
+    }
+}
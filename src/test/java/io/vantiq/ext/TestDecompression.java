@@ -0,0 +1,65 @@
+package io.vantiq.ext;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import io.vantiq.ext.sftp.Decompression;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class TestDecompression {
+
+    private static final String CONTENT = "511182490||2020-03-15 23:00:00||0.9700||0.0000\n"
+            + "511182490||2020-03-15 23:15:00||0.1200||0.0000\n";
+
+    private static byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            return new String(IOUtils.toByteArray(stream), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        byte[] compressed = gzip(CONTENT);
+        assertEquals(CONTENT, read(Decompression.decompress(new ByteArrayInputStream(compressed), "FS_1.DT.gz")));
+        // by the magic bytes
+        assertEquals(CONTENT, read(Decompression.decompress(new ByteArrayInputStream(compressed), "FS_1.DT")));
+    }
+
+    @Test
+    public void testZstd() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new ZstdOutputStream(bytes)) {
+            out.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] compressed = bytes.toByteArray();
+        assertEquals(Decompression.Format.ZSTD, Decompression.byMagic(compressed, compressed.length));
+        assertEquals(CONTENT, read(Decompression.decompress(new ByteArrayInputStream(compressed), "FS_1.DT.zst")));
+        assertEquals(CONTENT, read(Decompression.decompress(new ByteArrayInputStream(compressed), null)));
+    }
+
+    @Test
+    public void testPlain() throws IOException {
+        assertEquals(CONTENT, read(Decompression.decompress(
+                new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8)), "FS_1.DT")));
+        assertEquals("1", read(Decompression.decompress(new ByteArrayInputStream(new byte[] {'1'}), "FS_1.DT")));
+        assertEquals("", read(Decompression.decompress(new ByteArrayInputStream(new byte[0]), "FS_1.DT")));
+        assertEquals(Decompression.Format.NONE, Decompression.byMagic(new byte[] {0x1f}, 1));
+    }
+}
@@ -0,0 +1,144 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.ArrayDeviceStateStore;
+import io.vantiq.ext.sftp.DeviceState;
+import io.vantiq.ext.sftp.DeviceStateStore;
+import io.vantiq.ext.sftp.FixedPointDeviceState;
+import io.vantiq.ext.sftp.MapDeviceStateStore;
+import io.vantiq.ext.sftp.MeterRecord;
+import io.vantiq.ext.sftp.RecordTokenizer;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestDeviceState {
+
+    private static final String[] LINES = {
+            "511182490||2020-03-15 23:00:00||0.0000||0.0000",
+            "511182490||2020-03-15 23:15:00||0.9700||0.0000",
+            "511182490||2020-03-15 23:30:00||0.3333||0.0000",
+            "511182490||2020-03-15 23:45:00||0.12345||0.0000",
+    };
+
+    @Test
+    public void testFixedPointMatchesDecimal() {
+        DeviceState decimal = new DeviceState("511182490", "2020-03-15 23:00:00");
+        DeviceState fixed = new FixedPointDeviceState("511182490", "2020-03-15 23:00:00");
+        for (String line : LINES) {
+            MeterRecord record = RecordTokenizer.parse(line);
+            decimal.update(record);
+            fixed.update(record);
+        }
+
+        assertEquals(decimal.getCount(), fixed.getCount());
+        assertEquals(0, decimal.getMaxValue().compareTo(fixed.getMaxValue()));
+        assertEquals(decimal.getMaxTime(), fixed.getMaxTime());
+        assertEquals(0, decimal.getMinValue().compareTo(fixed.getMinValue()));
+        assertEquals(decimal.getMinTime(), fixed.getMinTime());
+        // 1.42675 / 4 = 0.3567 with 4 digits HALF_UP, fixed point rounds 0.12345 to 0.1235 first
+        assertEquals(new BigDecimal("0.3567"), decimal.getMean());
+        assertEquals(new BigDecimal("0.3567"), fixed.getMean());
+    }
+
+    @Test
+    public void testParseFixed() {
+        assertEquals(9700, RecordTokenizer.parseFixed("0.97", 0, 4, 4));
+        assertEquals(12345, RecordTokenizer.parseFixed("1.2345", 0, 6, 4));
+        assertEquals(1235, RecordTokenizer.parseFixed("0.12345", 0, 7, 4));
+        assertEquals(-1235, RecordTokenizer.parseFixed(" -0.12345 ", 0, 10, 4));
+        assertEquals(30000, RecordTokenizer.parseFixed("3", 0, 1, 4));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseFixedInvalid() {
+        RecordTokenizer.parseFixed("0.9a", 0, 4, 4);
+    }
+
+    @Test
+    public void testArrayStoreMatchesMapStore() {
+        DeviceStateStore mapStore = new MapDeviceStateStore(true);
+        DeviceStateStore arrayStore = new ArrayDeviceStateStore(16);
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            long deviceId = 511182490L + random.nextInt(3000);
+            String line = deviceId + "||2020-03-15 23:" + String.format("%02d", i % 60) + ":00||"
+                    + String.format(Locale.ROOT, "%.4f", random.nextDouble()) + "||0.0000";
+            MeterRecord record = RecordTokenizer.parse(line);
+            mapStore.update(record);
+            arrayStore.update(record);
+        }
+        assertEquals(mapStore.size(), arrayStore.size());
+        assertEquals(mapStore.getFileDeviceCount(), arrayStore.getFileDeviceCount());
+
+        Iterator<DeviceState> expected = mapStore.iterator();
+        Iterator<DeviceState> actual = arrayStore.iterator();
+        while (expected.hasNext()) {
+            DeviceState e = expected.next();
+            DeviceState a = actual.next();
+            assertEquals(e.getDeviceId(), a.getDeviceId());
+            assertEquals(e.getDate(), a.getDate());
+            assertEquals(e.getCount(), a.getCount());
+            assertEquals(e.getMean(), a.getMean());
+            assertEquals(e.getMaxValue(), a.getMaxValue());
+            assertEquals(e.getMaxTime(), a.getMaxTime());
+            assertEquals(e.getMinValue(), a.getMinValue());
+            assertEquals(e.getMinTime(), a.getMinTime());
+        }
+        assertFalse(actual.hasNext());
+
+        arrayStore.endFile();
+        assertEquals(0, arrayStore.getFileDeviceCount());
+        arrayStore.update(RecordTokenizer.parse("511182490||2020-03-16 00:00:00||0.1000"));
+        assertEquals(1, arrayStore.getFileDeviceCount());
+    }
+
+    @Test
+    public void testMerge() {
+        DeviceStateStore[] whole = {new MapDeviceStateStore(false), new MapDeviceStateStore(true),
+                new ArrayDeviceStateStore()};
+        DeviceStateStore[] merged = {new MapDeviceStateStore(false), new MapDeviceStateStore(true),
+                new ArrayDeviceStateStore()};
+        DeviceStateStore[] parts = {new MapDeviceStateStore(false), new ArrayDeviceStateStore(),
+                new MapDeviceStateStore(true)};
+        Random random = new Random(7);
+        for (int i = 0; i < 9000; i++) {
+            long deviceId = 511182490L + random.nextInt(500);
+            String line = deviceId + "||2020-03-15 23:" + String.format("%02d", i % 60) + ":00||"
+                    + String.format(Locale.ROOT, "%.4f", random.nextDouble());
+            MeterRecord record = RecordTokenizer.parse(line);
+            for (DeviceStateStore store : whole) {
+                store.update(record);
+            }
+            parts[i % parts.length].update(record);
+        }
+        for (DeviceStateStore store : merged) {
+            for (DeviceStateStore part : parts) {
+                store.merge(part);
+            }
+        }
+        for (int i = 0; i < whole.length; i++) {
+            assertEquals(whole[i].size(), merged[i].size());
+            for (DeviceState expected : whole[i]) {
+                DeviceState actual = find(merged[i], expected.getDeviceId());
+                assertEquals(expected.getCount(), actual.getCount());
+                assertEquals(expected.getMean(), actual.getMean());
+                assertEquals(0, expected.getMaxValue().compareTo(actual.getMaxValue()));
+                assertEquals(0, expected.getMinValue().compareTo(actual.getMinValue()));
+            }
+        }
+    }
+
+    private static DeviceState find(DeviceStateStore store, String deviceId) {
+        for (DeviceState state : store) {
+            if (state.getDeviceId().equals(deviceId)) {
+                return state;
+            }
+        }
+        throw new AssertionError("No device " + deviceId);
+    }
+}
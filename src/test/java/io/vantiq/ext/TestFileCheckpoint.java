@@ -0,0 +1,139 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.DeviceState;
+import io.vantiq.ext.sftp.FileCheckpointStore;
+import io.vantiq.ext.sftp.FileProgress;
+import io.vantiq.ext.sftp.MapDeviceStateStore;
+import io.vantiq.ext.sftp.RecordTokenizer;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestFileCheckpoint {
+
+    private static final String[] LINES = {
+            "511182490||2020-03-15 23:00:00||0.9700||0.0000",
+            "511182490||2020-03-15 23:15:00||0.1200||0.0000",
+            "511182491||2020-03-15 23:15:00||||0.0000",
+            "511182491||2020-03-15 23:30:00||1.5000||0.0000",
+    };
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        File dir = Files.createTempDirectory("checkpoints").toFile();
+        FileCheckpointStore store = new FileCheckpointStore(dir);
+
+        FileProgress progress = new FileProgress("mt_test", "FS_1.DT", new MapDeviceStateStore(false));
+        for (String line : LINES) {
+            progress.countLine(line);
+            if (RecordTokenizer.parse(line).hasValue()) {
+                progress.getState().update(RecordTokenizer.parse(line));
+            }
+        }
+        assertEquals(4, progress.getLines());
+        assertEquals(LINES[0].length() * 2 + LINES[2].length() + LINES[3].length() + 4, progress.getBytes());
+        store.save(progress);
+
+        List<FileProgress> loaded = store.load(() -> new MapDeviceStateStore(true));
+        assertEquals(1, loaded.size());
+        FileProgress resumed = loaded.get(0);
+        assertEquals("mt_test/FS_1.DT", resumed.getRemotePath());
+        assertEquals(4, resumed.getLines());
+        assertEquals(4, resumed.getResumedLines());
+        assertEquals(progress.getBytes(), resumed.getBytes());
+        assertFalse(resumed.isCheckpointDue(1));
+        assertFalse(resumed.skipLine());
+
+        assertEquals(2, resumed.getState().size());
+        for (DeviceState state : resumed.getState()) {
+            if (state.getDeviceId().equals("511182490")) {
+                assertEquals(2, state.getCount());
+                assertEquals("1.0900", state.getSum().toPlainString());
+                assertEquals("0.1200", state.getMinValue().toPlainString());
+                assertEquals("2020-03-15 23:15:00", state.getMinTime());
+                assertEquals("0.9700", state.getMaxValue().toPlainString());
+                assertEquals("2020-03-15 23:00:00", state.getMaxTime());
+                assertNotNull(state.getUpdateTime());
+            } else {
+                assertEquals(1, state.getCount());
+                assertEquals("1.5000", state.getMaxValue().toPlainString());
+            }
+        }
+
+        store.delete(resumed);
+        assertTrue(store.load(() -> new MapDeviceStateStore(true)).isEmpty());
+    }
+
+    @Test
+    public void testSkipFromStart() throws IOException {
+        File dir = Files.createTempDirectory("checkpoints").toFile();
+        FileCheckpointStore store = new FileCheckpointStore(dir);
+        FileProgress progress = new FileProgress(null, "FS_2.DT", new MapDeviceStateStore(false));
+        progress.countLine(LINES[0]);
+        progress.countLine(LINES[1]);
+        store.save(progress);
+
+        FileProgress resumed = store.load(() -> new MapDeviceStateStore(false)).get(0);
+        assertEquals("FS_2.DT", resumed.getRemotePath());
+        resumed.skipFromStart();
+        assertEquals(0, resumed.getResumedLines());
+        assertTrue(resumed.skipLine());
+        assertTrue(resumed.skipLine());
+        assertFalse(resumed.skipLine());
+        resumed.countLine("\u00e9\u4e2d\ud83d\ude00");
+        assertEquals(3, resumed.getLines());
+        assertEquals(progress.getBytes() + 2 + 3 + 4 + 1, resumed.getBytes());
+    }
+
+    @Test
+    public void testCrlfOffsets() throws IOException {
+        byte[] file = (String.join("\r\n", LINES) + "\r\n").getBytes(StandardCharsets.UTF_8);
+        File dir = Files.createTempDirectory("checkpoints").toFile();
+        FileCheckpointStore store = new FileCheckpointStore(dir);
+
+        FileProgress progress = new FileProgress(null, "FS_3.DT", new MapDeviceStateStore(false));
+        InputStream in = progress.detectTerminator(new ByteArrayInputStream(file));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        progress.countLine(reader.readLine());
+        progress.countLine(reader.readLine());
+        assertEquals(LINES[0].length() + LINES[1].length() + 4, progress.getBytes());
+        store.save(progress);
+
+        // the checkpoint is at the start of the third line
+        FileProgress resumed = store.load(() -> new MapDeviceStateStore(false)).get(0);
+        int offset = (int) resumed.getBytes();
+        assertEquals('\n', file[offset - 1]);
+        in = resumed.detectTerminator(new ByteArrayInputStream(file, offset, file.length - offset));
+        reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            assertEquals(LINES[(int) resumed.getLines()], line);
+            resumed.countLine(line);
+        }
+        assertEquals(LINES.length, resumed.getLines());
+        assertEquals(file.length, resumed.getBytes());
+    }
+
+    @Test
+    public void testLfOffsets() throws IOException {
+        byte[] file = (String.join("\n", LINES) + "\n").getBytes(StandardCharsets.UTF_8);
+        FileProgress progress = new FileProgress(null, "FS_4.DT", new MapDeviceStateStore(false));
+        InputStream in = progress.detectTerminator(new ByteArrayInputStream(file));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            progress.countLine(line);
+        }
+        assertEquals(file.length, progress.getBytes());
+    }
+}
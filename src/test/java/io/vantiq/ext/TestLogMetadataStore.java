@@ -0,0 +1,97 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.LogMetadataStore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TestLogMetadataStore {
+
+    private static LogMetadataStore open(File dir) throws IOException {
+        LogMetadataStore store = new LogMetadataStore();
+        store.setBaseDirectory(dir.getPath());
+        store.setFileName("mt-metaStore");
+        store.afterPropertiesSet();
+        return store;
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        File dir = Files.createTempDirectory("metadata").toFile();
+        LogMetadataStore store = open(dir);
+        assertNull(store.putIfAbsent("mt_FS_1.DT", "1584932409000"));
+        assertEquals("1584932409000", store.putIfAbsent("mt_FS_1.DT", "1"));
+        assertFalse(store.replace("mt_FS_1.DT", "1", "2"));
+        assertTrue(store.replace("mt_FS_1.DT", "1584932409000", "1584932410000"));
+        store.put("mt_dir2", "1585812041000");
+        store.put("mt_tab\tand\\newline\n", "v");
+        assertEquals("1585812041000", store.remove("mt_dir2"));
+        store.flush();
+
+        // reopened without close, from the appended log
+        LogMetadataStore reopened = open(dir);
+        assertEquals(2, reopened.size());
+        assertEquals("1584932410000", reopened.get("mt_FS_1.DT"));
+        assertEquals("v", reopened.get("mt_tab\tand\\newline\n"));
+        assertNull(reopened.get("mt_dir2"));
+        reopened.close();
+        store.close();
+    }
+
+    @Test
+    public void testTruncatedLastLine() throws IOException {
+        File dir = Files.createTempDirectory("metadata").toFile();
+        // the last append was cut in the middle of the value
+        Files.write(new File(dir, "mt-metaStore.log").toPath(),
+                "P\tmt_FS_1.DT\t1584932409000\nP\tmt_FS_2.DT\t15849".getBytes(StandardCharsets.UTF_8));
+        LogMetadataStore store = open(dir);
+        assertEquals(1, store.size());
+        assertEquals("1584932409000", store.get("mt_FS_1.DT"));
+        assertNull(store.get("mt_FS_2.DT"));
+        store.put("mt_FS_2.DT", "1584932410000");
+        store.close();
+
+        // the torn line is dropped by the compaction, not joined with the next append
+        LogMetadataStore reopened = open(dir);
+        assertEquals(2, reopened.size());
+        assertEquals("1584932410000", reopened.get("mt_FS_2.DT"));
+        reopened.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        File dir = Files.createTempDirectory("metadata").toFile();
+        LogMetadataStore store = open(dir);
+        for (int i = 0; i < 10000; i++) {
+            store.put("mt_dir", String.valueOf(i));
+        }
+        store.flush();
+        File log = new File(dir, "mt-metaStore.log");
+        assertTrue(Files.readAllLines(log.toPath(), StandardCharsets.UTF_8).size() <= 1025);
+        store.close();
+        assertEquals(Arrays.asList("P\tmt_dir\t9999"), Files.readAllLines(log.toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testImportProperties() throws IOException {
+        File dir = Files.createTempDirectory("metadata").toFile();
+        Files.write(new File(dir, "mt-metaStore").toPath(),
+                "#Last entry\nmt_FS_2.DT=1584932409000\nmt_.=1585812056000\n".getBytes(StandardCharsets.UTF_8));
+        LogMetadataStore store = open(dir);
+        assertEquals(2, store.size());
+        assertEquals("1584932409000", store.get("mt_FS_2.DT"));
+        store.put("mt_FS_3.DT", "1");
+        store.close();
+
+        // the log is used once it exists
+        LogMetadataStore reopened = open(dir);
+        assertEquals(3, reopened.size());
+        reopened.close();
+    }
+}
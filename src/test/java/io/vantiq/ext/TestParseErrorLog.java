@@ -0,0 +1,61 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.LogSampler;
+import io.vantiq.ext.sftp.ParseErrorLog;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestParseErrorLog {
+
+    @Test
+    public void testCountsPerType() {
+        ParseErrorLog log = new ParseErrorLog(LoggerFactory.getLogger(TestParseErrorLog.class), 60000, 2);
+        for (int i = 0; i < 5; i++) {
+            log.invalidLine("511182490,2020-03-15 23:00:00");
+        }
+        log.failedLine("511182490,2020-03-15 23:00:00,abc", new NumberFormatException("abc"));
+        Map<String, Long> counts = log.getCounts();
+        assertEquals(Long.valueOf(5), counts.get(ParseErrorLog.COLUMNS));
+        assertEquals(Long.valueOf(1), counts.get("NumberFormatException"));
+        // only the first 2 lines of the interval are logged
+        assertEquals(4, log.getSuppressed());
+    }
+
+    @Test
+    public void testFlushStartsInterval() {
+        ParseErrorLog log = new ParseErrorLog(LoggerFactory.getLogger(TestParseErrorLog.class), 60000, 1);
+        log.invalidLine("a");
+        log.invalidLine("b");
+        assertEquals(1, log.getSuppressed());
+        log.flush();
+        assertEquals(0, log.getSuppressed());
+        log.invalidLine("c");
+        assertEquals(0, log.getSuppressed());
+        assertEquals(Long.valueOf(3), log.getCounts().get(ParseErrorLog.COLUMNS));
+    }
+
+    @Test
+    public void testNoInterval() {
+        ParseErrorLog log = new ParseErrorLog(LoggerFactory.getLogger(TestParseErrorLog.class), 0, 1);
+        for (int i = 0; i < 3; i++) {
+            log.invalidLine("a");
+        }
+        assertEquals(0, log.getSuppressed());
+    }
+
+    @Test
+    public void testSampler() {
+        LogSampler sampler = new LogSampler(60000);
+        assertEquals(0, sampler.sample());
+        assertEquals(-1, sampler.sample());
+        assertEquals(-1, sampler.sample());
+
+        LogSampler all = new LogSampler(0);
+        assertEquals(0, all.sample());
+        assertEquals(0, all.sample());
+    }
+}
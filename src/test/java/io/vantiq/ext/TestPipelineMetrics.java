@@ -0,0 +1,107 @@
+package io.vantiq.ext;
+
+import io.github.resilience4j.ratelimiter.RateLimiter;
+import io.github.resilience4j.ratelimiter.RateLimiterConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.vantiq.ext.sftp.PipelineMetrics;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestPipelineMetrics {
+
+    private MeterRegistry registry;
+    private PipelineMetrics metrics;
+
+    @Before
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        metrics = new PipelineMetrics(registry, "sftp_connector");
+    }
+
+    @Test
+    public void testCountBytes() throws IOException {
+        InputStream in = metrics.countBytes(new ByteArrayInputStream(new byte[10000]));
+        assertEquals(1, in.read(new byte[1]));
+        IOUtils.toByteArray(in);
+        assertEquals(10000, metrics.getBytesRead());
+        assertEquals(10000, registry.get("sftp.bytes.read").tag("source", "sftp_connector").counter().count(), 0);
+    }
+
+    @Test
+    public void testLinesAndParseErrors() {
+        for (int i = 0; i < 5; i++) {
+            metrics.lineParsed();
+        }
+        metrics.parseError(PipelineMetrics.PARSE_ERROR_COLUMNS);
+        metrics.parseError(PipelineMetrics.PARSE_ERROR_COLUMNS);
+        metrics.parseError(PipelineMetrics.PARSE_ERROR_VALUE);
+        assertEquals(5, metrics.getLines());
+        assertEquals(3, metrics.getParseErrors());
+        assertEquals(2, registry.get("sftp.parse.errors").tag("type", "columns").counter().count(), 0);
+        assertEquals(1, registry.get("sftp.parse.errors").tag("type", "value").counter().count(), 0);
+    }
+
+    @Test
+    public void testFileInFlight() {
+        metrics.startFile();
+        assertEquals(1, metrics.getFilesInFlight());
+        assertEquals(1, registry.get("sftp.inflight").tag("stage", "files").gauge().value(), 0);
+        metrics.endFile(42);
+        assertEquals(0, metrics.getFilesInFlight());
+        assertEquals(1, metrics.getFiles());
+        assertEquals(42, registry.get("sftp.file.devices").summary().totalAmount(), 0);
+    }
+
+    @Test
+    public void testFailedFileNotInFlight() {
+        // the first file of the thread fails before its end
+        metrics.startFile();
+        metrics.startFile();
+        metrics.endFile(1);
+        assertEquals(0, metrics.getFilesInFlight());
+        assertEquals(1, metrics.getFiles());
+    }
+
+    @Test
+    public void testSend() {
+        List<Integer> sent = new ArrayList<>();
+        metrics.send(10, () -> sent.add(10));
+        metrics.send(5, () -> sent.add(5));
+        assertEquals(2, sent.size());
+        assertEquals(2, metrics.getSent());
+        assertEquals(15, registry.get("sftp.send.rows").summary().totalAmount(), 0);
+    }
+
+    @Test
+    public void testRateLimiterWait() {
+        RateLimiter rateLimiter = RateLimiter.of("test", RateLimiterConfig.custom()
+                                                                         .limitRefreshPeriod(Duration.ofMillis(100))
+                                                                         .limitForPeriod(1)
+                                                                         .timeoutDuration(Duration.ofSeconds(1))
+                                                                         .build());
+        metrics.waitForPermission(rateLimiter);
+        metrics.waitForPermission(rateLimiter);
+        // the second permission is in the next period
+        assertEquals(2, registry.get("sftp.ratelimiter.wait").timer().count());
+        assertTrue(registry.get("sftp.ratelimiter.wait").timer().totalTime(TimeUnit.MILLISECONDS) > 10);
+    }
+
+    @Test
+    public void testClose() {
+        metrics.inFlight("batch", new ArrayList<>(), List::size);
+        metrics.close();
+        assertTrue(registry.getMeters().isEmpty());
+    }
+}
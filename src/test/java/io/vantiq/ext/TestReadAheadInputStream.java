@@ -0,0 +1,113 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.ReadAheadInputStream;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class TestReadAheadInputStream {
+
+    /**
+     * Returns at most 1000 bytes per read, as a remote stream does.
+     */
+    private static class SlowStream extends FilterInputStream {
+
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        SlowStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1000));
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed.set(true);
+            super.close();
+        }
+    }
+
+    @Test
+    public void testLines() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            content.append(511182490 + i).append("||2020-03-15 23:00:00||0.9700\n");
+        }
+        byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+        SlowStream source = new SlowStream(new ByteArrayInputStream(bytes));
+
+        int lines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ReadAheadInputStream(source, 4096, 3), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                assertEquals((511182490 + lines) + "||2020-03-15 23:00:00||0.9700", line);
+                lines++;
+            }
+        }
+        assertEquals(20000, lines);
+        assertTrue(source.closed.get());
+    }
+
+    @Test
+    public void testSingleBytes() throws IOException {
+        ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(new byte[] {1, (byte) 200, 3}),
+                2, 2);
+        assertEquals(1, in.read());
+        assertEquals(200, in.read());
+        assertEquals(3, in.read());
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(new byte[4], 0, 4));
+        in.close();
+    }
+
+    @Test
+    public void testError() throws IOException {
+        InputStream failing = new InputStream() {
+            int count;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ >= 10) {
+                    throw new IOException("Connection lost");
+                }
+                return 'a';
+            }
+        };
+        ReadAheadInputStream in = new ReadAheadInputStream(failing, 4, 2);
+        byte[] buffer = new byte[4];
+        int read = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+                read += n;
+            }
+            fail("The error is thrown to the reader");
+        } catch (IOException e) {
+            assertEquals("Connection lost", e.getCause().getMessage());
+        }
+        assertEquals(8, read);
+        in.close();
+    }
+
+    @Test
+    public void testCloseBeforeEnd() throws IOException {
+        SlowStream source = new SlowStream(new ByteArrayInputStream(new byte[1 << 20]));
+        ReadAheadInputStream in = new ReadAheadInputStream(source, 1024, 2);
+        assertEquals(0, in.read());
+        in.close();
+        assertTrue(source.closed.get());
+    }
+}
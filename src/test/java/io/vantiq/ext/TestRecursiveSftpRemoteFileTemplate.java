@@ -0,0 +1,279 @@
+package io.vantiq.ext;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import io.vantiq.ext.sftp.RecursiveSftpRemoteFileTemplate;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.integration.file.remote.session.Session;
+import org.springframework.messaging.MessagingException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestRecursiveSftpRemoteFileTemplate {
+
+    private static final int FILE = 0100644;
+    private static final int DIRECTORY = 0040755;
+
+    /** a day ago, out of the window of the recently modified directories */
+    private final int old = (int) (System.currentTimeMillis() / 1000) - 86400;
+
+    /** the remote tree: the entries of each directory, and the mtime of the directories */
+    private final Map<String, List<String>> tree = new ConcurrentHashMap<>();
+    private final Map<String, Integer> mtimes = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> lists = new ConcurrentHashMap<>();
+    private final AtomicInteger opened = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    private volatile String failing;
+
+    private RecursiveSftpRemoteFileTemplate template;
+
+    @Before
+    public void setUp() {
+        directory("/data", "FS_1.DT", "2020-03-15/");
+        directory("/data/2020-03-15", "FS_2.DT", "north/");
+        directory("/data/2020-03-15/north", "FS_3.DT");
+        template = new RecursiveSftpRemoteFileTemplate(StubSession::new, new SimpleAsyncTaskExecutor()) {
+
+            @Override
+            protected long readMtime(Session<ChannelSftp.LsEntry> session, String path) {
+                return mtimes.get(path);
+            }
+        };
+    }
+
+    /**
+     * @param entries   names of the files, and of the subdirectories with a trailing '/'
+     */
+    private void directory(String path, String... entries) {
+        tree.put(path, Arrays.asList(entries));
+        mtimes.put(path, old);
+    }
+
+    private static TreeSet<String> names(ChannelSftp.LsEntry[] files) {
+        TreeSet<String> names = new TreeSet<>();
+        for (ChannelSftp.LsEntry file : files) {
+            names.add(file.getFilename());
+        }
+        return names;
+    }
+
+    private int lists(String path) {
+        AtomicInteger count = lists.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    @Test
+    public void testRelativeNames() {
+        ChannelSftp.LsEntry[] files = template.list("/data");
+        assertEquals("[2020-03-15/FS_2.DT, 2020-03-15/north/FS_3.DT, FS_1.DT]", names(files).toString());
+        for (ChannelSftp.LsEntry file : files) {
+            assertTrue(file.getLongname().endsWith(" " + file.getFilename()));
+        }
+        assertEquals(3, template.getListings());
+        assertEquals(0, template.getCacheHits());
+        assertEquals(opened.get(), closed.get());
+    }
+
+    @Test
+    public void testCacheHitOnSameMtime() {
+        template.list("/data");
+        ChannelSftp.LsEntry[] files = template.list("/data");
+        assertEquals("[2020-03-15/FS_2.DT, 2020-03-15/north/FS_3.DT, FS_1.DT]", names(files).toString());
+        assertEquals(1, lists("/data"));
+        assertEquals(1, lists("/data/2020-03-15"));
+        assertEquals(1, lists("/data/2020-03-15/north"));
+        assertEquals(3, template.getListings());
+        assertEquals(3, template.getCacheHits());
+        assertEquals(opened.get(), closed.get());
+    }
+
+    @Test
+    public void testListAgainOnChangedMtime() {
+        template.list("/data");
+        tree.put("/data/2020-03-15/north", Arrays.asList("FS_3.DT", "FS_4.DT"));
+        mtimes.put("/data/2020-03-15/north", old + 60);
+        ChannelSftp.LsEntry[] files = template.list("/data");
+        assertEquals("[2020-03-15/FS_2.DT, 2020-03-15/north/FS_3.DT, 2020-03-15/north/FS_4.DT, FS_1.DT]",
+                names(files).toString());
+        assertEquals(1, lists("/data"));
+        assertEquals(1, lists("/data/2020-03-15"));
+        assertEquals(2, lists("/data/2020-03-15/north"));
+        assertEquals(2, template.getCacheHits());
+    }
+
+    @Test
+    public void testRecentlyModifiedNotCached() {
+        // the mtime has a precision of seconds, a file may still be added in the same second
+        mtimes.put("/data", (int) (System.currentTimeMillis() / 1000));
+        template.list("/data");
+        template.list("/data");
+        assertEquals(2, lists("/data"));
+        assertEquals(1, lists("/data/2020-03-15"));
+        assertEquals(1, lists("/data/2020-03-15/north"));
+    }
+
+    @Test
+    public void testSessionClosedOnFailure() {
+        failing = "/data/2020-03-15/north";
+        try {
+            template.list("/data");
+            fail("The listing of a subdirectory failed");
+        } catch (MessagingException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(3, opened.get());
+        assertEquals(opened.get(), closed.get());
+
+        // nothing of the failed scan is cached
+        failing = null;
+        assertEquals(3, template.list("/data").length);
+        assertEquals(0, template.getCacheHits());
+    }
+
+    private static ChannelSftp.LsEntry entry(String name, int permissions, int mtime) {
+        try {
+            Constructor<SftpATTRS> attrsConstructor = SftpATTRS.class.getDeclaredConstructor();
+            attrsConstructor.setAccessible(true);
+            SftpATTRS attrs = attrsConstructor.newInstance();
+            // the type bits are only read from the server, setPERMISSIONS sets the flag and the mode bits
+            Field type = SftpATTRS.class.getDeclaredField("permissions");
+            type.setAccessible(true);
+            type.setInt(attrs, permissions);
+            attrs.setPERMISSIONS(permissions);
+            attrs.setACMODTIME(mtime, mtime);
+            String longName = attrs.getPermissionsString() + " 1 user group 0 Mar 15 23:00 " + name;
+            // LsEntry is an inner class of ChannelSftp in the older JSch versions
+            for (Constructor<?> constructor : ChannelSftp.LsEntry.class.getDeclaredConstructors()) {
+                constructor.setAccessible(true);
+                if (constructor.getParameterCount() == 4) {
+                    Constructor<ChannelSftp> channel = ChannelSftp.class.getDeclaredConstructor();
+                    channel.setAccessible(true);
+                    return (ChannelSftp.LsEntry) constructor.newInstance(channel.newInstance(), name, longName, attrs);
+                }
+                return (ChannelSftp.LsEntry) constructor.newInstance(name, longName, attrs);
+            }
+            throw new IllegalStateException("No LsEntry constructor");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private class StubSession implements Session<ChannelSftp.LsEntry> {
+
+        boolean open = true;
+
+        StubSession() {
+            opened.incrementAndGet();
+        }
+
+        @Override
+        public ChannelSftp.LsEntry[] list(String path) throws IOException {
+            lists.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+            if (path.equals(failing)) {
+                throw new IOException("Permission denied: " + path);
+            }
+            List<ChannelSftp.LsEntry> entries = new ArrayList<>();
+            entries.add(entry(".", DIRECTORY, mtimes.get(path)));
+            entries.add(entry("..", DIRECTORY, old));
+            for (String name : tree.getOrDefault(path, Collections.emptyList())) {
+                if (name.endsWith("/")) {
+                    String directory = name.substring(0, name.length() - 1);
+                    entries.add(entry(directory, DIRECTORY, mtimes.get(path + "/" + directory)));
+                } else {
+                    entries.add(entry(name, FILE, old));
+                }
+            }
+            return entries.toArray(new ChannelSftp.LsEntry[0]);
+        }
+
+        @Override
+        public boolean remove(String path) {
+            return false;
+        }
+
+        @Override
+        public void read(String source, OutputStream outputStream) {
+        }
+
+        @Override
+        public void write(InputStream inputStream, String destination) {
+        }
+
+        @Override
+        public void append(InputStream inputStream, String destination) {
+        }
+
+        @Override
+        public boolean mkdir(String directory) {
+            return false;
+        }
+
+        @Override
+        public boolean rmdir(String directory) {
+            return false;
+        }
+
+        @Override
+        public void rename(String pathFrom, String pathTo) {
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                closed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public boolean exists(String path) {
+            return tree.containsKey(path);
+        }
+
+        @Override
+        public String[] listNames(String path) {
+            return new String[0];
+        }
+
+        @Override
+        public InputStream readRaw(String source) {
+            return null;
+        }
+
+        @Override
+        public boolean finalizeRaw() {
+            return true;
+        }
+
+        @Override
+        public Object getClientInstance() {
+            return null;
+        }
+
+        @Override
+        public String getHostPort() {
+            return "localhost:22";
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.ArrayDeviceStateStore;
+import io.vantiq.ext.sftp.DeviceState;
+import io.vantiq.ext.sftp.DeviceStateStore;
+import io.vantiq.ext.sftp.MapDeviceStateStore;
+import io.vantiq.ext.sftp.RecordTokenizer;
+import io.vantiq.ext.sftp.ResultExporter;
+import io.vantiq.ext.sftp.StripedDeviceStateStore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class TestResultExporter {
+
+    private static void update(DeviceStateStore store, String line) {
+        store.update(RecordTokenizer.parse(line));
+    }
+
+    private static List<String> drain(DeviceStateStore store) {
+        List<String> changed = new ArrayList<>();
+        store.drainChanged(state -> changed.add(state.getDeviceId() + ":" + state.getCount()));
+        return changed;
+    }
+
+    private void testDrainChanged(Supplier<DeviceStateStore> storeFactory) {
+        DeviceStateStore store = storeFactory.get();
+        update(store, "511182490||2020-03-15 23:00:00||1.0000");
+        update(store, "511182491||2020-03-15 23:00:00||2.0000");
+        update(store, "511182490||2020-03-15 23:15:00||3.0000");
+        List<String> changed = drain(store);
+        changed.sort(null);
+        assertEquals(2, changed.size());
+        assertEquals("511182490:2", changed.get(0));
+        assertEquals("511182491:1", changed.get(1));
+        assertTrue(drain(store).isEmpty());
+
+        update(store, "511182491||2020-03-15 23:15:00||4.0000");
+        DeviceStateStore other = storeFactory.get();
+        update(other, "511182492||2020-03-15 23:15:00||4.0000");
+        store.merge(other);
+        changed = drain(store);
+        changed.sort(null);
+        assertEquals(2, changed.size());
+        assertEquals("511182491:2", changed.get(0));
+        assertEquals("511182492:1", changed.get(1));
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void testDecimal() {
+        testDrainChanged(() -> new MapDeviceStateStore(false));
+    }
+
+    @Test
+    public void testCompact() {
+        testDrainChanged(ArrayDeviceStateStore::new);
+    }
+
+    @Test
+    public void testStriped() {
+        testDrainChanged(() -> new StripedDeviceStateStore(4, () -> new MapDeviceStateStore(true)));
+    }
+
+    @Test
+    public void testBatchesAndInterval() throws IOException {
+        DeviceStateStore store = new MapDeviceStateStore(true);
+        for (int i = 0; i < 25; i++) {
+            update(store, (511182490 + i) + "||2020-03-15 23:00:00||1.0000");
+        }
+        List<Integer> batches = new ArrayList<>();
+        ResultExporter exporter = new ResultExporter(0, 10, states -> batches.add(states.size()));
+        assertEquals(25, exporter.export(store));
+        assertEquals(3, batches.size());
+        assertEquals(5, (int) batches.get(2));
+        assertEquals(0, exporter.export(store));
+        assertEquals(25, exporter.getExported());
+    }
+
+    @Test
+    public void testTimer() throws IOException, InterruptedException {
+        DeviceStateStore store = new StripedDeviceStateStore(4, () -> new MapDeviceStateStore(true));
+        List<String> exported = Collections.synchronizedList(new ArrayList<>());
+        ResultExporter exporter = new ResultExporter(10, 1000, states -> {
+            for (DeviceState state : states) {
+                exported.add(state.getDeviceId() + ":" + state.getCount());
+            }
+        });
+        exporter.start(store);
+        // exported while the file is still in progress
+        update(store, "511182490||2020-03-15 23:00:00||1.0000");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (exported.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("[511182490:1]", exported.toString());
+
+        // the rest on close, even before the next interval
+        synchronized (store) {
+            update(store, "511182491||2020-03-15 23:00:00||1.0000");
+            exporter.close();
+        }
+        assertEquals("[511182490:1, 511182491:1]", exported.toString());
+        assertEquals(2, exporter.getExported());
+    }
+
+    @Test
+    public void testCsvAppend() throws IOException {
+        File file = File.createTempFile("result", ".csv");
+        try {
+            DeviceStateStore store = new MapDeviceStateStore(false);
+            ResultExporter exporter = new ResultExporter(0, 1000, ResultExporter.csv(file));
+            update(store, "511182490||2020-03-15 23:00:00||1.0000");
+            update(store, "511182491||2020-03-15 23:00:00||2.0000");
+            exporter.export(store);
+            update(store, "511182490||2020-03-15 23:15:00||3.0000");
+            exporter.export(store);
+
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            assertEquals(4, lines.size());
+            assertTrue(lines.get(0).startsWith("deviceId,date,"));
+            assertTrue(lines.get(1).startsWith("511182490,"));
+            assertTrue(lines.get(2).startsWith("511182491,"));
+            // the current state of the changed device is appended
+            assertTrue(lines.get(3).startsWith("511182490,"));
+            assertTrue(lines.get(3).contains("2020-03-15 23:15:00"));
+        } finally {
+            file.delete();
+        }
+    }
+}
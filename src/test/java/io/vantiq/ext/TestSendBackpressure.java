@@ -0,0 +1,87 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.SendBackpressure;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TestSendBackpressure {
+
+    @Test
+    public void testNoWaitBelowHighWatermark() throws InterruptedException {
+        AtomicLong queued = new AtomicLong(999);
+        SendBackpressure backpressure = new SendBackpressure(queued::get, () -> true, 1000, 500, 60000);
+        backpressure.awaitCredit();
+        assertEquals(0, backpressure.getWaits());
+    }
+
+    @Test
+    public void testWaitUntilLowWatermark() throws InterruptedException {
+        AtomicLong queued = new AtomicLong(2000);
+        SendBackpressure backpressure = new SendBackpressure(queued::get, () -> true, 1000, 500, 60000);
+        Thread drain = new Thread(() -> {
+            // the WebSocket transmits 100 bytes every 5 ms
+            while (queued.get() > 0) {
+                queued.addAndGet(-100);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        drain.start();
+        backpressure.awaitCredit();
+        assertTrue(queued.get() <= 500);
+        assertEquals(1, backpressure.getWaits());
+        drain.interrupt();
+    }
+
+    @Test
+    public void testNoWaitWhenDisconnected() throws InterruptedException {
+        AtomicLong queued = new AtomicLong(2000);
+        SendBackpressure backpressure = new SendBackpressure(queued::get, () -> false, 1000, 500, 60000);
+        backpressure.awaitCredit();
+        assertEquals(0, backpressure.getWaits());
+    }
+
+    @Test
+    public void testWaitEndsWhenDisconnected() throws InterruptedException {
+        AtomicLong queued = new AtomicLong(2000);
+        AtomicBoolean connected = new AtomicBoolean(true);
+        SendBackpressure backpressure = new SendBackpressure(queued::get, connected::get, 1000, 500, 60000);
+        Thread close = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+            connected.set(false);
+        });
+        close.start();
+        long start = System.nanoTime();
+        backpressure.awaitCredit();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 10000);
+        assertEquals(1, backpressure.getWaits());
+        assertEquals(0, backpressure.getTimeouts());
+    }
+
+    @Test
+    public void testWaitTimesOut() throws InterruptedException {
+        AtomicLong queued = new AtomicLong(2000);
+        SendBackpressure backpressure = new SendBackpressure(queued::get, () -> true, 1000, 500, 30);
+        backpressure.awaitCredit();
+        assertEquals(1, backpressure.getWaits());
+        assertEquals(1, backpressure.getTimeouts());
+        assertTrue(backpressure.getWaitMillis() >= 30);
+    }
+
+    @Test
+    public void testNoWebSocket() {
+        assertNull(SendBackpressure.webSocketQueueSize(new Object()));
+    }
+}
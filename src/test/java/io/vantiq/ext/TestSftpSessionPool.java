@@ -0,0 +1,194 @@
+package io.vantiq.ext;
+
+import com.jcraft.jsch.ChannelSftp;
+import io.vantiq.ext.sftp.SftpSessionPool;
+import org.junit.Test;
+import org.springframework.integration.file.remote.session.Session;
+import org.springframework.integration.util.PoolItemNotAvailableException;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestSftpSessionPool {
+
+    private final List<FakeSession> sessions = new ArrayList<>();
+
+    private FakeSession create() {
+        FakeSession session = new FakeSession();
+        sessions.add(session);
+        return session;
+    }
+
+    @Test
+    public void testReuse() {
+        SftpSessionPool pool = new SftpSessionPool(this::create, 2, 100, 0);
+        Session<ChannelSftp.LsEntry> first = pool.getSession();
+        first.close();
+        // closing twice does not release twice
+        first.close();
+        Session<ChannelSftp.LsEntry> second = pool.getSession();
+        assertEquals(1, sessions.size());
+        assertEquals(0, sessions.get(0).tests);
+        assertEquals(1, pool.getActiveCount());
+        assertEquals(0.5, pool.getUtilization(), 0);
+        second.close();
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(2, pool.getCheckouts());
+        pool.destroy();
+        assertFalse(sessions.get(0).open);
+    }
+
+    @Test
+    public void testWaitTimeout() {
+        SftpSessionPool pool = new SftpSessionPool(this::create, 1, 50, 0);
+        pool.getSession();
+        try {
+            pool.getSession();
+            fail("The pool is exhausted");
+        } catch (PoolItemNotAvailableException e) {
+            // expected
+        }
+        assertEquals(1, pool.getWaits());
+        assertEquals(1, pool.getWaitTimeouts());
+        assertEquals(1, sessions.size());
+    }
+
+    @Test
+    public void testWaitRelease() {
+        SftpSessionPool pool = new SftpSessionPool(this::create, 1, 5000, 0);
+        Session<ChannelSftp.LsEntry> session = pool.getSession();
+        Thread release = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+            session.close();
+        });
+        release.start();
+        pool.getSession().close();
+        assertEquals(1, pool.getWaits());
+        assertEquals(0, pool.getWaitTimeouts());
+        assertEquals(1, sessions.size());
+        assertEquals(1, pool.getPeakActiveCount());
+    }
+
+    @Test
+    public void testBackgroundValidation() throws InterruptedException {
+        SftpSessionPool pool = new SftpSessionPool(this::create, 2, 100, 20);
+        Session<ChannelSftp.LsEntry> first = pool.getSession();
+        Session<ChannelSftp.LsEntry> second = pool.getSession();
+        first.close();
+        second.close();
+        sessions.get(0).broken = true;
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((pool.getValidationFailures() == 0 || pool.getValidations() < 2 || pool.getIdleCount() == 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, pool.getValidationFailures());
+        assertFalse(sessions.get(0).open);
+        assertTrue(sessions.get(1).open);
+        assertEquals(1, pool.getAllocatedCount());
+
+        // a closed idle session is replaced on checkout
+        sessions.get(1).open = false;
+        pool.getSession().close();
+        assertEquals(3, sessions.size());
+        pool.destroy();
+    }
+
+    private static class FakeSession implements Session<ChannelSftp.LsEntry> {
+
+        volatile boolean open = true;
+        volatile boolean broken;
+        int tests;
+
+        @Override
+        public boolean remove(String path) {
+            return false;
+        }
+
+        @Override
+        public ChannelSftp.LsEntry[] list(String path) {
+            return new ChannelSftp.LsEntry[0];
+        }
+
+        @Override
+        public void read(String source, OutputStream outputStream) {
+        }
+
+        @Override
+        public void write(InputStream inputStream, String destination) {
+        }
+
+        @Override
+        public void append(InputStream inputStream, String destination) {
+        }
+
+        @Override
+        public boolean mkdir(String directory) {
+            return false;
+        }
+
+        @Override
+        public boolean rmdir(String directory) {
+            return false;
+        }
+
+        @Override
+        public void rename(String pathFrom, String pathTo) {
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public boolean exists(String path) {
+            return false;
+        }
+
+        @Override
+        public String[] listNames(String path) {
+            return new String[0];
+        }
+
+        @Override
+        public InputStream readRaw(String source) {
+            return null;
+        }
+
+        @Override
+        public boolean finalizeRaw() {
+            return true;
+        }
+
+        @Override
+        public Object getClientInstance() {
+            return null;
+        }
+
+        @Override
+        public String getHostPort() {
+            return "localhost:22";
+        }
+
+        @Override
+        public boolean test() {
+            tests++;
+            return !broken;
+        }
+    }
+}
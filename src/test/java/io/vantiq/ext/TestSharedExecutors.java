@@ -0,0 +1,79 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.SharedExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestSharedExecutors {
+
+    private SharedExecutors executors;
+
+    @Before
+    public void setUp() {
+        executors = new SharedExecutors(4, 1, 1);
+    }
+
+    @After
+    public void tearDown() {
+        executors.destroy();
+    }
+
+    @Test
+    public void testLimitPerSource() throws InterruptedException {
+        SharedExecutors.LimitedExecutor source = executors.files(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Thread poller = new Thread(() -> {
+            for (int i = 0; i < 5; i++) {
+                source.execute(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                });
+            }
+        });
+        poller.start();
+        // the poller waits for a permit after 2 files, although the shared executor has 4 threads
+        Thread.sleep(200);
+        assertEquals(2, source.getSubmitted());
+        assertTrue(poller.isAlive());
+        release.countDown();
+        poller.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(poller.isAlive());
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testSourcesShareThreads() throws InterruptedException {
+        SharedExecutors.LimitedExecutor north = executors.files(2);
+        SharedExecutors.LimitedExecutor south = executors.files(2);
+        CountDownLatch started = new CountDownLatch(4);
+        CountDownLatch release = new CountDownLatch(1);
+        for (SharedExecutors.LimitedExecutor source : new SharedExecutors.LimitedExecutor[]{north, south}) {
+            for (int i = 0; i < 2; i++) {
+                source.execute(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        release.countDown();
+    }
+}
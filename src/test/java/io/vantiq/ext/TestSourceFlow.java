@@ -0,0 +1,120 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.SftpSessionPool;
+import io.vantiq.ext.sftp.SourceFlow;
+import io.vantiq.ext.sftp.StoppableTrigger;
+import org.junit.Test;
+import org.springframework.scheduling.TriggerContext;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestSourceFlow {
+
+    private static final TriggerContext COMPLETED = new TriggerContext() {
+        @Override
+        public Date lastScheduledExecutionTime() {
+            return new Date();
+        }
+
+        @Override
+        public Date lastActualExecutionTime() {
+            return new Date();
+        }
+
+        @Override
+        public Date lastCompletionTime() {
+            return new Date();
+        }
+    };
+
+    private static SftpSessionPool pool() {
+        return new SftpSessionPool(() -> {
+            throw new IllegalStateException("No session in this test");
+        }, 1, 100, 0);
+    }
+
+    @Test
+    public void testDrainWaitsForPoll() throws InterruptedException {
+        StoppableTrigger trigger = new StoppableTrigger(context -> new Date());
+        // shorter than the file in progress
+        SourceFlow flow = new SourceFlow("endpoint", pool(), trigger, 20);
+        List<String> steps = new CopyOnWriteArrayList<>();
+        flow.onDrain(() -> steps.add("workers"));
+        flow.onDrain(() -> steps.add("sender"));
+        flow.onDrain(() -> steps.add("registration"));
+
+        // a file in progress on the poller thread
+        assertTrue(trigger.startPoll());
+        Thread drain = new Thread(() -> {
+            try {
+                flow.drain();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        drain.start();
+        Thread.sleep(200);
+        // the file is not cut off by the timeout
+        assertTrue(drain.isAlive());
+        assertTrue(steps.isEmpty());
+        assertNull(trigger.nextExecutionTime(COMPLETED));
+        trigger.endPoll();
+        drain.join(5000);
+        assertFalse(drain.isAlive());
+        assertEquals(3, steps.size());
+        assertEquals("workers", steps.get(0));
+        assertEquals("registration", steps.get(2));
+
+        // only once
+        flow.drain();
+        assertEquals(3, steps.size());
+    }
+
+    @Test
+    public void testDrainWhenIdle() throws InterruptedException {
+        StoppableTrigger trigger = new StoppableTrigger(context -> new Date());
+        SourceFlow flow = new SourceFlow("endpoint", pool(), trigger, 60000);
+        List<String> steps = new ArrayList<>();
+        flow.onDrain(() -> steps.add("sender"));
+        long start = System.nanoTime();
+        // the next poll is not due yet
+        flow.drain();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, steps.size());
+        // the polls already scheduled are skipped
+        assertFalse(trigger.startPoll());
+    }
+
+    @Test
+    public void testFailedStepDoesNotStopDrain() throws InterruptedException {
+        StoppableTrigger trigger = new StoppableTrigger(context -> new Date());
+        SourceFlow flow = new SourceFlow("endpoint", pool(), trigger, 1000);
+        List<String> steps = new ArrayList<>();
+        flow.onDrain(() -> {
+            throw new IllegalStateException("Failed step");
+        });
+        flow.onDrain(() -> steps.add("registration"));
+        flow.drain();
+        assertEquals(1, steps.size());
+    }
+
+    @Test
+    public void testCloseDestroysSessions() throws InterruptedException {
+        StoppableTrigger trigger = new StoppableTrigger(context -> new Date());
+        SftpSessionPool pool = pool();
+        SourceFlow flow = new SourceFlow("endpoint", pool, trigger, 1000);
+        flow.close();
+        try {
+            pool.getSession();
+            fail("The pool should be destroyed");
+        } catch (IllegalStateException e) {
+            assertEquals("Session pool is destroyed", e.getMessage());
+        }
+    }
+}
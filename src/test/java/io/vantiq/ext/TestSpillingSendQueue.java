@@ -0,0 +1,198 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.SendBackpressure;
+import io.vantiq.ext.sftp.SpillingSendQueue;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TestSpillingSendQueue {
+
+    private static Map<String, Object> notification(int seq) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("seq", seq);
+        return data;
+    }
+
+    private static List<Integer> seqs(List<Map<String, Object>> sent) {
+        List<Integer> seqs = new ArrayList<>();
+        synchronized (sent) {
+            for (Map<String, Object> data : sent) {
+                seqs.add((Integer) data.get("seq"));
+            }
+        }
+        return seqs;
+    }
+
+    private static void awaitCaughtUp(SpillingSendQueue queue) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (queue.isSpilling() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(queue.isSpilling());
+    }
+
+    @Test
+    public void testDirectWhileConnected() throws IOException {
+        File dir = Files.createTempDirectory("sendspool").toFile();
+        List<Map<String, Object>> sent = Collections.synchronizedList(new ArrayList<>());
+        SpillingSendQueue queue = new SpillingSendQueue(dir, 1000, 1000, () -> 0, sent::add, "test");
+        queue.connected();
+        queue.send(notification(1));
+        assertEquals(1, sent.size());
+        assertEquals(0, queue.getSpilled());
+        assertEquals(0, dir.list().length);
+        queue.close();
+    }
+
+    @Test
+    public void testSpillWhileDisconnectedAndReplayInOrder() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("sendspool").toFile();
+        List<Map<String, Object>> sent = Collections.synchronizedList(new ArrayList<>());
+        // small segments, several are written
+        SpillingSendQueue queue = new SpillingSendQueue(dir, 1000, 500, () -> 0, sent::add, "test");
+        queue.connected();
+        queue.send(notification(0));
+        queue.disconnected();
+        for (int i = 1; i <= 100; i++) {
+            queue.send(notification(i));
+        }
+        assertEquals(1, sent.size());
+        assertEquals(100, queue.getSpilled());
+        assertTrue(queue.getPendingBytes() > 0);
+        assertTrue(dir.list().length > 1);
+
+        queue.connected();
+        // sent after the spilled ones
+        queue.send(notification(101));
+        awaitCaughtUp(queue);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i <= 101; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, seqs(sent));
+        assertEquals(0, queue.getPendingBytes());
+        assertEquals(101, queue.getReplayed());
+        assertEquals(0, dir.list().length);
+
+        // direct again
+        queue.send(notification(102));
+        assertEquals(103, sent.size());
+        assertEquals(101, queue.getSpilled());
+        queue.close();
+    }
+
+    @Test
+    public void testSpillWhenFull() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("sendspool").toFile();
+        List<Map<String, Object>> sent = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong queued = new AtomicLong(2000);
+        SpillingSendQueue queue = new SpillingSendQueue(dir, 1000, 1000, queued::get, sent::add, "test");
+        queue.connected();
+        queue.send(notification(1));
+        queue.send(notification(2));
+        Thread.sleep(50);
+        // the replay waits for the WebSocket queue
+        assertTrue(sent.isEmpty());
+        assertEquals(2, queue.getSpilled());
+
+        queued.set(0);
+        awaitCaughtUp(queue);
+        assertEquals(2, queue.getReplayed());
+        assertEquals(2, seqs(sent).get(1).intValue());
+        queue.close();
+    }
+
+    @Test
+    public void testFailedSendIsSpilled() throws IOException {
+        File dir = Files.createTempDirectory("sendspool").toFile();
+        SpillingSendQueue queue = new SpillingSendQueue(dir, 1000, 1000, () -> 0, data -> {
+            throw new IllegalStateException("WebSocket closed");
+        }, "test");
+        queue.connected();
+        queue.send(notification(1));
+        assertEquals(1, queue.getSpilled());
+        assertTrue(queue.isSpilling());
+        queue.close();
+    }
+
+    @Test
+    public void testReplayAfterRestart() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("sendspool").toFile();
+        SpillingSendQueue queue = new SpillingSendQueue(dir, 1000, 1000, () -> 0, data -> { }, "test");
+        for (int i = 1; i <= 3; i++) {
+            queue.send(notification(i));
+        }
+        queue.close();
+        // the connector stopped while writing a fourth one
+        File segment = dir.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(file.length());
+            file.writeInt(100);
+            file.write(new byte[10]);
+        }
+
+        List<Map<String, Object>> sent = Collections.synchronizedList(new ArrayList<>());
+        queue = new SpillingSendQueue(dir, 1000, 1000, () -> 0, sent::add, "test");
+        assertTrue(queue.isSpilling());
+        queue.send(notification(4));
+        queue.connected();
+        awaitCaughtUp(queue);
+        assertEquals(4, sent.size());
+        assertEquals(4, seqs(sent).get(3).intValue());
+        assertEquals(0, queue.getPendingBytes());
+        assertEquals(0, dir.list().length);
+        queue.close();
+    }
+
+    @Test
+    public void testDisconnectReleasesBackpressure() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("sendspool").toFile();
+        List<Map<String, Object>> sent = Collections.synchronizedList(new ArrayList<>());
+        // the WebSocket does not drain, the sender waits for credit
+        AtomicLong queued = new AtomicLong(5000);
+        SpillingSendQueue queue = new SpillingSendQueue(dir, 10000, 1000, queued::get, sent::add, "test");
+        queue.connected();
+        SendBackpressure backpressure = new SendBackpressure(queued::get, queue::isDirect, 1000, 500, 60000);
+        Thread sender = new Thread(() -> {
+            try {
+                backpressure.awaitCredit();
+                queue.send(notification(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        sender.start();
+        sender.join(50);
+        assertTrue(sender.isAlive());
+
+        queue.disconnected();
+        sender.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(sender.isAlive());
+        assertEquals(0, backpressure.getTimeouts());
+        assertEquals(0, sent.size());
+        assertEquals(1, queue.getSpilled());
+        assertTrue(queue.isSpilling());
+        queue.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSendAfterClose() throws IOException {
+        File dir = Files.createTempDirectory("sendspool").toFile();
+        SpillingSendQueue queue = new SpillingSendQueue(dir, 1000, 1000, () -> 0, data -> { }, "test");
+        queue.close();
+        queue.send(notification(1));
+    }
+}
@@ -5,11 +5,18 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvParser;
+import io.vantiq.ext.sftp.AsciiCharSequence;
+import io.vantiq.ext.sftp.MeterRecord;
+import io.vantiq.ext.sftp.RecordTokenizer;
 import io.vantiq.extjsdk.ExtensionServiceMessage;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+import static org.junit.Assert.*;
+
 public class TestSplit {
 
     @Test
@@ -75,4 +82,35 @@ public class TestSplit {
         System.out.println(resultString);
     }
 
+    @Test
+    public void testTokenizer() {
+        String line  = "511182490||2020-03-15 23:00:00||0.0000||0.0000||||0.9700";
+        MeterRecord record = RecordTokenizer.parse(line);
+        assertNotNull(record);
+        assertTrue(record.hasValue());
+        assertEquals(Arrays.asList("511182490", "2020-03-15 23:00:00", "0.0000"), record.toList());
+
+        record = RecordTokenizer.parse("511182490||2020-03-15 23:00:00||||0.9700");
+        assertNotNull(record);
+        assertFalse(record.hasValue());
+        assertEquals("", record.getValue());
+
+        record = RecordTokenizer.parse("511182490||2020-03-15 23:00:00||0.5 ");
+        assertEquals("0.5", record.getValue());
+
+        assertNull(RecordTokenizer.parse("511182490||2020-03-15 23:00:00"));
+        assertNull(RecordTokenizer.parse(""));
+    }
+
+    @Test
+    public void testTokenizerOnBuffer() {
+        byte[] bytes = "xx511182490||2020-03-15 23:00:00||0.9700||0.0000".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        MeterRecord record = RecordTokenizer.parse(new AsciiCharSequence(buffer, 2, bytes.length - 2));
+        assertNotNull(record);
+        assertEquals("511182490", record.getDeviceId());
+        assertEquals("2020-03-15 23:00:00", record.getDateTime());
+        assertEquals("0.9700", record.getValue());
+    }
+
 }
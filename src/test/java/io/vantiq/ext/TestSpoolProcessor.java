@@ -0,0 +1,179 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.ArrayDeviceStateStore;
+import io.vantiq.ext.sftp.DeviceStateStore;
+import io.vantiq.ext.sftp.MapDeviceStateStore;
+import io.vantiq.ext.sftp.RecordTokenizer;
+import io.vantiq.ext.sftp.SpoolProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class TestSpoolProcessor {
+
+    private File directory;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spool").toFile();
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static byte[] lines(int count, String terminator) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            content.append(511182490 + i).append("||2020-03-15 23:00:00||0.9700").append(terminator);
+        }
+        return content.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testRegions() throws IOException {
+        SpoolProcessor spool = new SpoolProcessor(directory, 1 << 30, executor, 4);
+        // about 4 MB, split into 4 regions
+        byte[] content = lines(100000, "\n");
+        SpoolProcessor.Download download = spool.download(new ByteArrayInputStream(content), 0);
+        File file = download.getFile();
+        assertNotNull(file);
+        assertEquals(content.length, file.length());
+        assertEquals(content.length, spool.getUsedBytes());
+
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        List<List<String>> regions = Collections.synchronizedList(new ArrayList<>());
+        long count = spool.forEachLine(file, () -> {
+            List<String> region = new ArrayList<>();
+            regions.add(region);
+            return line -> {
+                assertTrue(seen.add(line.toString()));
+                region.add(line.toString());
+            };
+        });
+        assertEquals(100000, count);
+        assertEquals(100000, seen.size());
+        assertEquals(4, regions.size());
+        // each region is in file order
+        for (List<String> region : regions) {
+            long first = Long.parseLong(region.get(0).substring(0, 9));
+            for (int i = 0; i < region.size(); i++) {
+                assertEquals((first + i) + "||2020-03-15 23:00:00||0.9700", region.get(i));
+            }
+        }
+
+        spool.delete(file);
+        assertFalse(file.exists());
+        assertEquals(0, spool.getUsedBytes());
+    }
+
+    private void testFileDeviceCount(Supplier<DeviceStateStore> stores) throws IOException {
+        SpoolProcessor spool = new SpoolProcessor(directory, 1 << 30, executor, 4);
+        // each device twice, in different regions
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(lines(50000, "\n"));
+        content.write(lines(50000, "\n"));
+        File file = spool.download(new ByteArrayInputStream(content.toByteArray()), 0).getFile();
+
+        // as the spool mode of the flow: the regions are merged into the state of the file before its END marker
+        List<DeviceStateStore> regionStates = Collections.synchronizedList(new ArrayList<>());
+        spool.forEachLine(file, () -> {
+            DeviceStateStore regionState = stores.get();
+            regionStates.add(regionState);
+            return line -> regionState.update(RecordTokenizer.parse(line.toString()));
+        });
+        DeviceStateStore fileState = stores.get();
+        for (DeviceStateStore regionState : regionStates) {
+            fileState.merge(regionState);
+        }
+        assertEquals(50000, fileState.getFileDeviceCount());
+        fileState.endFile();
+        assertEquals(0, fileState.getFileDeviceCount());
+        spool.delete(file);
+    }
+
+    @Test
+    public void testFileDeviceCount() throws IOException {
+        testFileDeviceCount(() -> new MapDeviceStateStore(true));
+        testFileDeviceCount(ArrayDeviceStateStore::new);
+    }
+
+    @Test
+    public void testTerminators() throws IOException {
+        SpoolProcessor spool = new SpoolProcessor(directory, 1 << 30, executor, 4);
+        byte[] content = "a||1||2\r\nb||3||4\n\r\nc||5||6".getBytes(StandardCharsets.US_ASCII);
+        File file = spool.download(new ByteArrayInputStream(content), content.length).getFile();
+        List<String> lines = new ArrayList<>();
+        assertEquals(4, spool.forEachLine(file, () -> line -> lines.add(line.toString())));
+        assertEquals(Arrays.asList("a||1||2", "b||3||4", "", "c||5||6"), lines);
+        spool.delete(file);
+    }
+
+    @Test
+    public void testSpoolFull() throws IOException {
+        SpoolProcessor spool = new SpoolProcessor(directory, 1 << 20, executor, 4);
+        byte[] content = lines(100000, "\n");
+
+        // too large from the start
+        SpoolProcessor.Download download = spool.download(new ByteArrayInputStream(content), content.length);
+        assertNull(download.getFile());
+        assertArrayEquals(content, readAll(download.getStream()));
+
+        // too large while downloading, the downloaded part is read first
+        download = spool.download(new ByteArrayInputStream(content), 0);
+        assertNull(download.getFile());
+        assertTrue(spool.getUsedBytes() > 0);
+        assertArrayEquals(content, readAll(download.getStream()));
+        assertEquals(0, spool.getUsedBytes());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testLeftovers() throws IOException {
+        File leftover = new File(directory, "1.spool");
+        Files.write(leftover.toPath(), lines(10, "\n"));
+        new SpoolProcessor(directory, 1 << 20, executor, 4);
+        assertFalse(leftover.exists());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = stream.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
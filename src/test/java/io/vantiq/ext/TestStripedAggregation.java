@@ -0,0 +1,144 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.ArrayDeviceStateStore;
+import io.vantiq.ext.sftp.DeviceState;
+import io.vantiq.ext.sftp.DeviceStateStore;
+import io.vantiq.ext.sftp.MapDeviceStateStore;
+import io.vantiq.ext.sftp.MeterRecord;
+import io.vantiq.ext.sftp.RecordTokenizer;
+import io.vantiq.ext.sftp.StripedDeviceStateStore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrent updates and merges on {@link StripedDeviceStateStore} must give the same result as single threaded
+ * aggregation of the same records.
+ */
+public class TestStripedAggregation {
+
+    private static final int THREADS = 8;
+    private static final int LINES_PER_THREAD = 50000;
+    private static final int DEVICES = 2000;
+
+    @Test
+    public void testDecimal() throws Exception {
+        stress(() -> new MapDeviceStateStore(false));
+    }
+
+    @Test
+    public void testFixed() throws Exception {
+        stress(() -> new MapDeviceStateStore(true));
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        stress(ArrayDeviceStateStore::new);
+    }
+
+    @Test
+    public void testLeadingZeros() {
+        // the compact store exports "000123" as "123", the merge must find the device of the update
+        DeviceStateStore striped = new StripedDeviceStateStore(64, ArrayDeviceStateStore::new);
+        DeviceStateStore partial = new ArrayDeviceStateStore();
+        for (int i = 0; i < 100; i++) {
+            String deviceId = String.format("%06d", 123 + i);
+            striped.update(RecordTokenizer.parse(deviceId + "||2020-03-15 23:00:00||1.0000"));
+            partial.update(RecordTokenizer.parse(deviceId + "||2020-03-15 23:15:00||2.0000"));
+        }
+        striped.merge(partial);
+        assertEquals(100, striped.size());
+        for (DeviceState state : striped) {
+            assertEquals(2, state.getCount());
+        }
+    }
+
+    private void stress(Supplier<DeviceStateStore> storeFactory) throws Exception {
+        List<List<MeterRecord>> records = generate();
+
+        DeviceStateStore expected = storeFactory.get();
+        for (List<MeterRecord> threadRecords : records) {
+            for (MeterRecord record : threadRecords) {
+                expected.update(record);
+            }
+        }
+
+        DeviceStateStore striped = new StripedDeviceStateStore(4, storeFactory);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            List<MeterRecord> threadRecords = records.get(t);
+            boolean useMerge = t % 2 == 0;
+            futures.add(executor.submit(() -> {
+                start.await();
+                if (useMerge) {
+                    // like a file worker, aggregate locally and merge in chunks
+                    DeviceStateStore partial = storeFactory.get();
+                    for (int i = 0; i < threadRecords.size(); i++) {
+                        partial.update(threadRecords.get(i));
+                        if (i % 10000 == 9999) {
+                            striped.merge(partial);
+                            partial = storeFactory.get();
+                        }
+                    }
+                    striped.merge(partial);
+                } else {
+                    for (MeterRecord record : threadRecords) {
+                        striped.update(record);
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        Map<String, DeviceState> actual = new HashMap<>();
+        for (DeviceState state : striped) {
+            assertNull("Duplicated device " + state.getDeviceId(), actual.put(state.getDeviceId(), state));
+        }
+        assertEquals(expected.size(), striped.size());
+        assertEquals(expected.size(), actual.size());
+        for (DeviceState e : expected) {
+            DeviceState a = actual.get(e.getDeviceId());
+            assertNotNull(a);
+            assertEquals(e.getCount(), a.getCount());
+            assertEquals(0, e.getSum().compareTo(a.getSum()));
+            assertEquals(e.getMean(), a.getMean());
+            assertEquals(0, e.getMaxValue().compareTo(a.getMaxValue()));
+            assertEquals(0, e.getMinValue().compareTo(a.getMinValue()));
+        }
+    }
+
+    private static List<List<MeterRecord>> generate() {
+        Random random = new Random(2020);
+        List<List<MeterRecord>> records = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            List<MeterRecord> threadRecords = new ArrayList<>(LINES_PER_THREAD);
+            for (int i = 0; i < LINES_PER_THREAD; i++) {
+                long deviceId = 511182490L + random.nextInt(DEVICES);
+                String line = deviceId + "||2020-03-15 " + String.format("%02d:%02d", i / 60 % 24, i % 60)
+                        + ":00||" + String.format(Locale.ROOT, "%.4f", random.nextDouble() * 10);
+                threadRecords.add(RecordTokenizer.parse(line));
+            }
+            records.add(threadRecords);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,156 @@
+package io.vantiq.ext;
+
+import io.vantiq.ext.sftp.ArrayDeviceStateStore;
+import io.vantiq.ext.sftp.DeviceState;
+import io.vantiq.ext.sftp.DeviceStateStore;
+import io.vantiq.ext.sftp.MapDeviceStateStore;
+import io.vantiq.ext.sftp.RecordTokenizer;
+import io.vantiq.ext.sftp.WindowedDeviceStateStore;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestWindowedAggregation {
+
+    private static WindowedDeviceStateStore hourly(long lateness) {
+        return new WindowedDeviceStateStore(WindowedDeviceStateStore.HOURLY, lateness,
+                () -> new MapDeviceStateStore(true));
+    }
+
+    private static void update(DeviceStateStore store, String line) {
+        store.update(RecordTokenizer.parse(line));
+    }
+
+    private static List<DeviceState> states(DeviceStateStore store) {
+        List<DeviceState> states = new ArrayList<>();
+        store.forEach(states::add);
+        return states;
+    }
+
+    @Test
+    public void testHourly() {
+        WindowedDeviceStateStore store = hourly(0);
+        update(store, "511182490||2020-03-15 22:45:00||1.0000");
+        update(store, "511182490||2020-03-15 23:00:00||2.0000");
+        update(store, "511182490||2020-03-15 23:15:00||4.0000");
+        update(store, "511182491||2020-03-15 23:30:00||3.0000");
+        assertEquals(2, store.getWindowCount());
+        assertEquals(3, store.size());
+
+        // the watermark passed 22:00-23:00 only
+        List<WindowedDeviceStateStore.Window> closed = store.pollClosedWindows();
+        assertEquals(1, closed.size());
+        assertEquals("2020-03-15 22:00:00", closed.get(0).getStart());
+        assertEquals("2020-03-15 23:00:00", closed.get(0).getEnd());
+        assertEquals(1, closed.get(0).getStates().size());
+
+        update(store, "511182490||2020-03-16 00:00:00||5.0000");
+        assertTrue(store.hasClosedWindows());
+        closed = store.pollClosedWindows();
+        assertEquals(1, closed.size());
+        assertEquals("2020-03-15 23:00:00", closed.get(0).getStart());
+        List<DeviceState> states = states(closed.get(0).getStates());
+        assertEquals(2, states.size());
+        assertEquals(2, states.get(0).getCount());
+        assertEquals(0, new BigDecimal("3").compareTo(states.get(0).getMean()));
+        assertEquals("2020-03-15 23:15:00", states.get(0).getMaxTime());
+        assertFalse(store.hasClosedWindows());
+
+        // the window of 23:00 is already emitted
+        update(store, "511182490||2020-03-15 23:45:00||6.0000");
+        assertEquals(1, store.getLateRecords());
+        assertEquals(1, store.getWindowCount());
+    }
+
+    @Test
+    public void testPollAllWindows() {
+        WindowedDeviceStateStore store = hourly(0);
+        update(store, "511182490||2020-03-15 22:45:00||1.0000");
+        update(store, "511182490||2020-03-15 23:15:00||2.0000");
+        update(store, "511182491||2020-03-15 23:30:00||3.0000");
+        assertEquals(1, store.pollClosedWindows().size());
+
+        // the window of 23:00 is still open, it is polled when the source stops
+        List<WindowedDeviceStateStore.Window> all = store.pollAllWindows();
+        assertEquals(1, all.size());
+        assertEquals("2020-03-15 23:00:00", all.get(0).getStart());
+        assertEquals(2, all.get(0).getStates().size());
+        assertEquals(0, store.getWindowCount());
+        assertTrue(store.pollAllWindows().isEmpty());
+
+        update(store, "511182490||2020-03-15 23:45:00||4.0000");
+        assertEquals(1, store.getLateRecords());
+    }
+
+    @Test
+    public void testLateness() {
+        WindowedDeviceStateStore store = hourly(1800);
+        update(store, "511182490||2020-03-15 23:10:00||1.0000");
+        update(store, "511182490||2020-03-16 00:20:00||1.0000");
+        assertFalse(store.hasClosedWindows());
+        // out of order, still within the lateness
+        update(store, "511182490||2020-03-15 23:50:00||2.0000");
+        update(store, "511182490||2020-03-16 00:30:00||1.0000");
+        List<WindowedDeviceStateStore.Window> closed = store.pollClosedWindows();
+        assertEquals(1, closed.size());
+        assertEquals(2, states(closed.get(0).getStates()).get(0).getCount());
+        assertEquals(0, store.getLateRecords());
+    }
+
+    @Test
+    public void testDaily() {
+        WindowedDeviceStateStore store = new WindowedDeviceStateStore(WindowedDeviceStateStore.DAILY, 0,
+                ArrayDeviceStateStore::new);
+        update(store, "511182490||2020-03-15 00:00:00||1.0000");
+        update(store, "511182490||2020-03-15 23:59:59||3.0000");
+        update(store, "511182490||2020-03-16 00:00:00||8.0000");
+        List<WindowedDeviceStateStore.Window> closed = store.pollClosedWindows();
+        assertEquals(1, closed.size());
+        assertEquals("2020-03-15 00:00:00", closed.get(0).getStart());
+        assertEquals("2020-03-16 00:00:00", closed.get(0).getEnd());
+        DeviceState state = states(closed.get(0).getStates()).get(0);
+        assertEquals(2, state.getCount());
+        assertEquals("2020-03-15", state.getDate());
+        List<DeviceState> open = states(store);
+        assertEquals(1, open.size());
+        assertEquals("2020-03-16", open.get(0).getDate());
+    }
+
+    @Test
+    public void testMerge() {
+        WindowedDeviceStateStore total = hourly(0);
+        WindowedDeviceStateStore file = hourly(0);
+        update(file, "511182490||2020-03-15 22:45:00||1.0000");
+        update(file, "511182490||2020-03-15 23:15:00||2.0000");
+        // a file state is not polled, it keeps all its windows
+        assertEquals(2, file.getWindowCount());
+
+        total.merge(file);
+        assertEquals(2, total.getWindowCount());
+        assertTrue(total.hasClosedWindows());
+        assertEquals(1, total.pollClosedWindows().size());
+
+        // states restored from a checkpoint go to the window of their readings
+        DeviceState restored = new DeviceState("511182490", "2020-03-15");
+        restored.setCount(1);
+        restored.setSum(new BigDecimal("4"));
+        restored.setMinValue(new BigDecimal("4"));
+        restored.setMinTime("2020-03-15 23:30:00");
+        restored.setMaxValue(new BigDecimal("4"));
+        restored.setMaxTime("2020-03-15 23:30:00");
+        total.merge(restored);
+        List<DeviceState> states = states(total);
+        assertEquals(1, states.size());
+        assertEquals(2, states.get(0).getCount());
+
+        // a closed window is late
+        WindowedDeviceStateStore late = hourly(0);
+        update(late, "511182490||2020-03-15 22:50:00||1.0000");
+        total.merge(late);
+        assertEquals(1, total.getLateRecords());
+    }
+}
@@ -0,0 +1,300 @@
+package io.vantiq.ext.harness;
+
+import io.vantiq.ext.sftp.SFTPConnector;
+import io.vantiq.ext.sftp.SharedExecutors;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.integration.config.EnableIntegration;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end throughput of the connector, without a real SFTP host or VANTIQ tenant. It starts an in-process SFTP
+ * server (Apache MINA SSHD) on a temporary directory and a {@link FakeVantiqServer}, connects a {@link SFTPConnector}
+ * to them, drops generated .DT files into the remote directory and waits for the end summary of each file. It
+ * reports files/s, lines/s, the latency from the drop of a file to its end summary, and the peak heap.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=io.vantiq.ext.harness.EndToEndHarness \
+ *     -Dexec.args="--files 20 --lines 100000 --config parallel_files=4"
+ * </pre>
+ */
+public class EndToEndHarness {
+
+    private static final String USER = "harness";
+    private static final String PASSWORD = "harness";
+    private static final String SOURCE_NAME = "sftp_harness";
+    private static final String REMOTE_DIR = "upload";
+
+    @Configuration
+    @EnableIntegration
+    @Import(SharedExecutors.class)
+    static class HarnessConfiguration {
+    }
+
+    private final int fileCount;
+    private final int linesPerFile;
+    private final int devices;
+    private final double filesPerSecond;
+    private final long timeoutSeconds;
+    private final Map<String, String> extraConfig;
+
+    /** drop time by file name */
+    private final Map<String, Long> dropNanos = new ConcurrentHashMap<>();
+    private final List<Long> latencyNanos = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong dataRows = new AtomicLong();
+    private volatile long lastSummaryNanos;
+    private CountDownLatch done;
+
+    public EndToEndHarness(int fileCount, int linesPerFile, int devices, double filesPerSecond, long timeoutSeconds,
+                           Map<String, String> extraConfig) {
+        this.fileCount = fileCount;
+        this.linesPerFile = linesPerFile;
+        this.devices = devices;
+        this.filesPerSecond = filesPerSecond;
+        this.timeoutSeconds = timeoutSeconds;
+        this.extraConfig = extraConfig;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption(null, "files", true, "number of files, default 10");
+        options.addOption(null, "lines", true, "lines per file, default 100000");
+        options.addOption(null, "devices", true, "distinct devices, default 10000");
+        options.addOption(null, "rate", true, "files dropped per second, default 0: all at once");
+        options.addOption(null, "timeout", true, "seconds to wait for the files, default 600");
+        options.addOption(null, "config", true, "source config key=value, e.g. parallel_files=4, repeatable");
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            new HelpFormatter().printHelp("EndToEndHarness", options);
+            throw e;
+        }
+        Map<String, String> extraConfig = new HashMap<>();
+        String[] configs = cmd.getOptionValues("config");
+        if (configs != null) {
+            for (String config : configs) {
+                int equals = config.indexOf('=');
+                extraConfig.put(config.substring(0, equals), config.substring(equals + 1));
+            }
+        }
+        EndToEndHarness harness = new EndToEndHarness(
+                Integer.parseInt(cmd.getOptionValue("files", "10")),
+                Integer.parseInt(cmd.getOptionValue("lines", "100000")),
+                Integer.parseInt(cmd.getOptionValue("devices", "10000")),
+                Double.parseDouble(cmd.getOptionValue("rate", "0")),
+                Long.parseLong(cmd.getOptionValue("timeout", "600")),
+                extraConfig);
+        boolean completed = harness.run();
+        System.exit(completed ? 0 : 1);
+    }
+
+    /**
+     * @return  true if all the files were processed within the timeout
+     */
+    public boolean run() throws Exception {
+        Path root = Files.createTempDirectory("sftp-harness");
+        Path remote = Files.createDirectories(root.resolve(REMOTE_DIR));
+        Path staging = Files.createDirectories(root.resolve("staging"));
+        String runId = String.valueOf(System.currentTimeMillis());
+        List<String> names = new ArrayList<>(fileCount);
+        Random random = new Random(42);
+        for (int i = 0; i < fileCount; i++) {
+            String name = "harness_" + runId + "_" + i + ".DT";
+            writeFile(staging.resolve(name), random);
+            names.add(name);
+        }
+        System.out.printf("Generated %d files of %d lines in %s%n", fileCount, linesPerFile, staging);
+
+        SshServer sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("localhost");
+        sshd.setPort(0);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(root.resolve("hostkey.ser")));
+        sshd.setPasswordAuthenticator((user, password, session) -> USER.equals(user) && PASSWORD.equals(password));
+        sshd.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        sshd.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        sshd.start();
+
+        Map<String, String> config = new HashMap<>();
+        config.put("sftp_server_host", "localhost");
+        config.put("sftp_server_port", String.valueOf(sshd.getPort()));
+        config.put("sftp_user", USER);
+        config.put("sftp_password", PASSWORD);
+        // the file of the summaries is the remote directory followed by the file name
+        config.put("remote_dir", REMOTE_DIR + "/");
+        config.put("fetch_interval", "100");
+        config.put("rate_limit", "100000000");
+        config.putAll(extraConfig);
+
+        done = new CountDownLatch(fileCount);
+        FakeVantiqServer vantiq = new FakeVantiqServer(config, this::onNotification);
+        vantiq.startAndWait();
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(HarnessConfiguration.class);
+        SFTPConnector connector = new SFTPConnector();
+        context.getAutowireCapableBeanFactory().autowireBean(connector);
+        // the metadata, spool and checkpoints of the run are deleted with the rest of the temporary directory
+        connector.setDataDirectory(root.resolve("data").toFile());
+
+        resetPeakHeap();
+        long start = System.nanoTime();
+        boolean completed;
+        try {
+            connector.connect(vantiq.getUrl(), "harness-token", SOURCE_NAME);
+            for (int i = 0; i < names.size(); i++) {
+                if (filesPerSecond > 0) {
+                    long due = start + (long) (i / filesPerSecond * 1e9);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                String name = names.get(i);
+                dropNanos.put(name, System.nanoTime());
+                Files.move(staging.resolve(name), remote.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+            }
+            completed = done.await(timeoutSeconds, TimeUnit.SECONDS);
+        } finally {
+            connector.close();
+            context.close();
+            sshd.stop();
+            vantiq.stop();
+        }
+        long end = completed ? lastSummaryNanos : System.nanoTime();
+        report(end - start, vantiq, completed);
+        deleteRecursively(root.toFile());
+        return completed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onNotification(Map<String, Object> object) {
+        if (object == null) {
+            return;
+        }
+        Object data = object.get("data");
+        if (data instanceof List) {
+            dataRows.addAndGet(((List<?>) data).size());
+        }
+        Object summary = object.get("summary");
+        if (!(summary instanceof Map) || !((Map<String, Object>) summary).containsKey("lineCount")) {
+            return;
+        }
+        Map<String, Object> fileSummary = (Map<String, Object>) summary;
+        String file = String.valueOf(fileSummary.get("file"));
+        String name = file.substring(file.lastIndexOf('/') + 1);
+        Long dropped = dropNanos.remove(name);
+        if (dropped == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        latencyNanos.add(now - dropped);
+        lines.addAndGet(((Number) fileSummary.get("lineCount")).longValue());
+        lastSummaryNanos = now;
+        done.countDown();
+    }
+
+    private void report(long elapsedNanos, FakeVantiqServer vantiq, boolean completed) {
+        double seconds = elapsedNanos / 1e9;
+        long[] latencies;
+        synchronized (latencyNanos) {
+            latencies = latencyNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+        System.out.println("========== SFTP connector end to end ==========");
+        System.out.printf(Locale.ROOT, "config:          %s%n", extraConfig);
+        System.out.printf(Locale.ROOT, "completed:       %s, %d of %d files in %.2f s%n", completed,
+                latencies.length, fileCount, seconds);
+        System.out.printf(Locale.ROOT, "files/s:         %.2f%n", latencies.length / seconds);
+        System.out.printf(Locale.ROOT, "lines/s:         %.0f (%d lines)%n", lines.get() / seconds, lines.get());
+        System.out.printf(Locale.ROOT, "data rows/s:     %.0f (%d rows)%n", dataRows.get() / seconds, dataRows.get());
+        System.out.printf(Locale.ROOT, "notifications:   %d, %.1f MB%n", vantiq.getNotifications(),
+                vantiq.getNotificationBytes() / 1e6);
+        System.out.printf(Locale.ROOT, "latency ms:      p50 %.0f, p90 %.0f, p99 %.0f, max %.0f%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                percentile(latencies, 1.0));
+        System.out.printf(Locale.ROOT, "peak heap:       %.1f MB%n", peakHeap() / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return  sum of the peak usage of the heap pools, an upper bound of the peak heap
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Write linesPerFile lines in the .DT layout, one reading per device every 15 minutes.
+     */
+    private void writeFile(Path file, Random random) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < linesPerFile; i++) {
+                int minutes = i / devices * 15;
+                writer.write(String.valueOf(511182490L + i % devices));
+                writer.write(String.format(Locale.ROOT, "||2020-03-%02d %02d:%02d:00||%.4f", 15 + minutes / 1440 % 17,
+                        minutes / 60 % 24, minutes % 60, random.nextInt(100_000) / 10_000.0));
+                writer.write("||0.0000||0.0000||0.0000||||||0.9700\n");
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            Arrays.stream(children).forEach(EndToEndHarness::deleteRecursively);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,154 @@
+package io.vantiq.ext.harness;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Local stand-in for the VANTIQ WebSocket endpoint of the extension sources. It accepts any token, answers the
+ * connection of the source with its config, and hands the notifications of the source to a listener:
+ * <ul>
+ *     <li>{@code validate}: the authentication, answered with status 200</li>
+ *     <li>{@code connectExtension}: answered with {@code configureExtension} and {"config": config}</li>
+ *     <li>{@code notification}: the object is passed to the listener</li>
+ * </ul>
+ * The messages are JSON, received as text or binary frames and sent as binary frames.
+ */
+public class FakeVantiqServer extends WebSocketServer {
+
+    static final Logger LOG = LoggerFactory.getLogger(FakeVantiqServer.class);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, String> config;
+    private final Consumer<Map<String, Object>> listener;
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong notificationBytes = new AtomicLong();
+
+    /**
+     * @param config    the source config sent on connection
+     * @param listener  receives the object of each notification, on the WebSocket thread
+     */
+    public FakeVantiqServer(Map<String, String> config, Consumer<Map<String, Object>> listener) {
+        super(new InetSocketAddress("localhost", 0));
+        this.config = config;
+        this.listener = listener;
+        setReuseAddr(true);
+    }
+
+    /**
+     * Start and wait until the server listens.
+     */
+    public void startAndWait() throws InterruptedException {
+        start();
+        if (!started.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Fake VANTIQ server did not start");
+        }
+    }
+
+    /**
+     * @return  the URL to give the connector as VANTIQ URL
+     */
+    public String getUrl() {
+        return "http://localhost:" + getPort();
+    }
+
+    @Override
+    public void onStart() {
+        LOG.info("Fake VANTIQ server listening on port {}", getPort());
+        started.countDown();
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        LOG.info("Connector connected: {}", handshake.getResourceDescriptor());
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        LOG.info("Connector disconnected: {} {}", code, reason);
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        handle(conn, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        handle(conn, bytes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handle(WebSocket conn, byte[] bytes) {
+        Map<String, Object> message;
+        try {
+            message = mapper.readValue(bytes, Map.class);
+        } catch (IOException e) {
+            LOG.error("Invalid message: {}", new String(bytes, StandardCharsets.UTF_8), e);
+            return;
+        }
+        String op = (String) message.get("op");
+        if ("notification".equals(op)) {
+            notifications.incrementAndGet();
+            notificationBytes.addAndGet(bytes.length);
+            listener.accept((Map<String, Object>) message.get("object"));
+        } else if ("validate".equals(op)) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("status", 200);
+            response.put("contentType", "application/json");
+            response.put("body", new HashMap<>());
+            send(conn, response);
+        } else if ("connectExtension".equals(op)) {
+            Map<String, Object> object = new HashMap<>();
+            object.put("config", config);
+            Map<String, Object> configure = new HashMap<>();
+            configure.put("op", "configureExtension");
+            configure.put("resourceName", "sources");
+            configure.put("resourceId", message.get("resourceId"));
+            configure.put("object", object);
+            send(conn, configure);
+        } else {
+            LOG.debug("Ignored message: {}", message);
+        }
+    }
+
+    private void send(WebSocket conn, Map<String, Object> message) {
+        try {
+            conn.send(mapper.writeValueAsBytes(message));
+        } catch (IOException e) {
+            LOG.error("Failed to send message: {}", message, e);
+        }
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        LOG.error("Fake VANTIQ server error", ex);
+        started.countDown();
+    }
+
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    public long getNotificationBytes() {
+        return notificationBytes.get();
+    }
+}